@@ -32,6 +32,8 @@ public interface ASTVisitor {
 
 	Object visitIntLitExpression(IntLitExpression intLitExpression, Object arg) throws Exception;
 
+	Object visitParallelStatement(ParallelStatement parallelStatement, Object arg) throws Exception;
+
 	Object visitParamDec(ParamDec paramDec, Object arg) throws Exception;
 
 	Object visitProgram(Program program, Object arg) throws Exception;
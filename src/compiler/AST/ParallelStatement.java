@@ -0,0 +1,60 @@
+package compiler.AST;
+
+import compiler.Scanner.Token;
+
+public class ParallelStatement extends Statement {
+	
+	final Block b;
+	
+	public ParallelStatement(Token firstToken, Block b) {
+		super(firstToken);
+		this.b = b;
+	}
+
+	public Block getB() {
+		return b;
+	}
+
+	@Override
+	public String toString() {
+		return "ParallelStatement [b=" + b + "]";
+	}
+	
+	
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = super.hashCode();
+		result = prime * result + ((b == null) ? 0 : b.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!super.equals(obj)) {
+			return false;
+		}
+		if (!(obj instanceof ParallelStatement)) {
+			return false;
+		}
+		ParallelStatement other = (ParallelStatement) obj;
+		if (b == null) {
+			if (other.b != null) {
+				return false;
+			}
+		} else if (!b.equals(other.b)) {
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public Object visit(ASTVisitor v, Object arg) throws Exception {
+		return v.visitParallelStatement(this, arg);
+	}
+
+}
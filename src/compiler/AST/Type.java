@@ -22,8 +22,8 @@ public class Type  {
 	public static enum TypeName {
 		INTEGER("I"), 
 		BOOLEAN("Z"), 
-		IMAGE("Ljava/awt/image/BufferedImage;"), 
-		FRAME("Lcop5556sp17/MyFrame;"),
+		IMAGE("Lcop5556sp17/PLPRuntimeImage;"), 
+		FRAME("Lcop5556sp17/PLPRuntimeFrame;"),
 	    URL("Ljava/net/URL;"), 
 	    FILE("Ljava/io/File;"), 
 	    NONE(null);
@@ -0,0 +1,189 @@
+package compiler;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A directory of class files produced by Compiler.main, keyed by the hash
+ * of the source, the compiler version and the code generation options.
+ *
+ * The entry for a key is a directory named by the key holding the single
+ * file name.class. Entries are written in a temporary directory that is
+ * then renamed, so that other processes see either the whole entry or
+ * nothing. A hit is hard linked into the output directory if possible and
+ * copied otherwise, again through a temporary file and a rename. When the
+ * class files in the cache take more than maxBytes, the entries used
+ * least recently are deleted. A process that loses a race with another
+ * one over an entry treats it as a miss and compiles.
+ */
+public class ClassFileCache {
+
+	final Path dir;
+	final long maxBytes;
+
+	public ClassFileCache(Path dir, long maxBytes) throws IOException {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		Files.createDirectories(dir);
+	}
+
+	/**
+	 * Returns the key of a program with the given source compiled with the
+	 * given options by this version of the compiler.
+	 */
+	public static String key(String source, String options) {
+		return Compiler.hash(Compiler.VERSION + "\n" + options + "\n" + source);
+	}
+
+	/**
+	 * Puts the class file cached under key into outputDir and returns its
+	 * name, or returns null if there is no entry for key.
+	 */
+	public Path copyTo(String key, Path outputDir) throws IOException {
+		Path entry = dir.resolve(key);
+		try {
+			Path cached = classFileOf(entry);
+			if (cached == null) {
+				return null;
+			}
+			Path output = outputDir.resolve(cached.getFileName().toString());
+			Path temp = outputDir.resolve(".tmp-" + UUID.randomUUID() + ".class");
+			Files.deleteIfExists(temp);
+			try {
+				Files.createLink(temp, cached);
+			} catch (IOException | UnsupportedOperationException e) {
+				Files.copy(cached, temp);
+			}
+			Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+			return output;
+		} catch (NoSuchFileException e) {
+			// evicted by another process meanwhile
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the class file file through a temporary file and a rename. The
+	 * old file may be a hard link to an entry, made by copyTo, so writing
+	 * into it would change the entry; every writer of class files that the
+	 * cache may have linked must use this.
+	 */
+	public static void write(Path file, byte[] bytecode) throws IOException {
+		Path dir = file.toAbsolutePath().getParent();
+		Path temp = Files.createTempFile(dir, ".tmp-", ".class");
+		try {
+			Files.write(temp, bytecode);
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Caches the class file of the program name under key.
+	 */
+	public void store(String key, String name, byte[] bytecode) throws IOException {
+		Path temp = Files.createTempDirectory(dir, ".tmp-");
+		Files.write(temp.resolve(name + ".class"), bytecode);
+		try {
+			Files.move(temp, dir.resolve(key), StandardCopyOption.ATOMIC_MOVE);
+		} catch (FileAlreadyExistsException e) {
+			// stored by another process meanwhile
+			deleteEntry(temp);
+		} catch (IOException e) {
+			// some file systems report an existing target differently
+			deleteEntry(temp);
+			if (!Files.isDirectory(dir.resolve(key))) {
+				throw e;
+			}
+		}
+		evict();
+	}
+
+	static Path classFileOf(Path entry) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(entry, "*.class")) {
+			for (Path file : files) {
+				return file;
+			}
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		return null;
+	}
+
+	/**
+	 * Deletes the entries used least recently until the rest fit in
+	 * maxBytes. Temporary directories are left to the process writing them.
+	 */
+	void evict() throws IOException {
+		final List<Path> entries = new ArrayList<Path>();
+		final List<Long> times = new ArrayList<Long>();
+		long total = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path entry : stream) {
+				if (entry.getFileName().toString().startsWith(".tmp-")) {
+					continue;
+				}
+				try {
+					Path file = classFileOf(entry);
+					if (file != null) {
+						total += Files.size(file);
+						times.add(Files.getLastModifiedTime(entry).toMillis());
+						entries.add(entry);
+					}
+				} catch (NoSuchFileException e) {
+					// evicted by another process meanwhile
+				}
+			}
+		}
+		if (total <= maxBytes) {
+			return;
+		}
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < entries.size(); i++) {
+			order.add(i);
+		}
+		Collections.sort(order, new Comparator<Integer>() {
+			public int compare(Integer i0, Integer i1) {
+				return Long.compare(times.get(i0), times.get(i1));
+			}
+		});
+		for (int i : order) {
+			if (total <= maxBytes) {
+				return;
+			}
+			Path file = classFileOf(entries.get(i));
+			if (file != null) {
+				try {
+					total -= Files.size(file);
+				} catch (NoSuchFileException e) {
+					continue;
+				}
+			}
+			deleteEntry(entries.get(i));
+		}
+	}
+
+	static void deleteEntry(Path entry) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(entry)) {
+			for (Path file : files) {
+				Files.deleteIfExists(file);
+			}
+		} catch (NoSuchFileException e) {
+			return;
+		}
+		Files.deleteIfExists(entry);
+	}
+}
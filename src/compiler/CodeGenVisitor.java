@@ -5,16 +5,23 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.MethodNode;
 import org.objectweb.asm.util.TraceClassVisitor;
 
+import compiler.AST.ASTNode;
 import compiler.AST.ASTVisitor;
 import compiler.AST.BinaryChain;
 import compiler.AST.BinaryExpression;
@@ -33,6 +40,7 @@ import compiler.AST.IdentLValue;
 import compiler.AST.IfStatement;
 import compiler.AST.ImageOpChain;
 import compiler.AST.IntLitExpression;
+import compiler.AST.ParallelStatement;
 import compiler.AST.ParamDec;
 import compiler.AST.Program;
 import compiler.AST.SleepStatement;
@@ -40,6 +48,8 @@ import compiler.AST.Statement;
 import compiler.AST.Tuple;
 import compiler.AST.WhileStatement;
 import compiler.AST.Type.TypeName;
+import compiler.IR.IRBuilder;
+import compiler.IR.IRCodeGen;
 import compiler.Scanner.Kind;
 import compiler.Scanner.Token;
 import compiler.AST.AssignmentStatement;
@@ -51,6 +61,20 @@ import static compiler.Scanner.Kind.*;
 
 public class CodeGenVisitor implements ASTVisitor, Opcodes {
 
+	/** The bootstrap method of the call sites of image and filter ops. */
+	public static final Handle linkerBootstrap = new Handle(H_INVOKESTATIC, PLPRuntimeLinker.JVMClassName, "bootstrap",
+			PLPRuntimeLinker.bootstrapDesc, false);
+	/** The bootstrap method of the call sites of ops whose backend the profile chose. */
+	public static final Handle linkerBootstrapBackend = new Handle(H_INVOKESTATIC, PLPRuntimeLinker.JVMClassName, "bootstrapBackend",
+			PLPRuntimeLinker.bootstrapBackendDesc, false);
+
+	/**
+	 * An if statement is cold if the profile has it run at least
+	 * COLD_MIN_RUNS times and its body at most once per COLD_RATIO runs.
+	 */
+	static final long COLD_MIN_RUNS = 100;
+	static final long COLD_RATIO = 100;
+
 	/**
 	 * @param DEVEL
 	 *            used as parameter to genPrint and genPrintTOS
@@ -75,16 +99,169 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 	FieldVisitor fv; // visitor of field 
 	
 	int paramDecCount = 0, slotNumber = 1;
+
+	/** Slots holding the values of loop invariants computed before the loop. */
+	final Map<ASTNode, Integer> precomputed = new IdentityHashMap<ASTNode, Integer>();
+	/** Invariants of a loop condition whose value is saved the first time it is generated. */
+	final Set<ASTNode> capturing = Collections.newSetFromMap(new IdentityHashMap<ASTNode, Boolean>());
+
+	/** Image computations whose results are reused, and the slots of their temporaries. */
+	CommonSubexpressionAnalysis cse;
+	int[] cseSlots;
+	ImageOwnershipAnalysis ownership;
+	LivenessAnalysis liveness;
+
+	/**
+	 * Indicates whether run() is split into private methods when it would
+	 * be too large for the JIT, see MethodSplitter. Only the AST backend
+	 * splits methods.
+	 */
+	boolean splitMethods = false;
+	/** Set while generating a run() that is split; its variables are then fields. */
+	boolean splitting = false;
+	final Map<Dec, String> fieldNames = new IdentityHashMap<Dec, String>();
+	int chunkCount = 0;
+	/**
+	 * Loops the Interpreter may transfer execution into, or null. Each gets
+	 * a method osr$i that runs it from its test on, with the variables in
+	 * fields so that the interpreter can set and read them.
+	 */
+	List<WhileStatement> osrLoops = null;
+	/** Set if the variables of run() are fields. */
+	boolean varFields = false;
+	/**
+	 * Command line arguments the program is specialized for, or null. The
+	 * integer and boolean params that run() never assigns are then
+	 * constants, whose values are in constantParams, with booleans as 0 or 1.
+	 */
+	String[] paramValues = null;
+	final Map<Dec, Integer> constantParams = new IdentityHashMap<Dec, Integer>();
+	/**
+	 * Set to generate a class that records a PLPRuntimeProfile of its runs,
+	 * held in the static field profile$.
+	 */
+	boolean profiling = false;
+	/**
+	 * The profile the class is generated from, or null. It picks the
+	 * backend of each image op call site that ran, and the bodies of cold
+	 * if statements are laid out after the code of their method. Only the
+	 * AST backend profiles or uses a profile.
+	 */
+	PLPRuntimeProfile profile = null;
+	ProfileSites sites = null;
+	/** The cold if bodies of the method under construction, see genColdBlocks. */
+	List<ColdBlock> coldBlocks = new ArrayList<ColdBlock>();
+
+	/**
+	 * The body of a cold if statement, and the state of the generator at
+	 * the if that it is generated with.
+	 */
+	static class ColdBlock {
+		final IfStatement ifStatement;
+		final Label body, join;
+		final int slotNumber;
+		final Map<ASTNode, Integer> precomputed;
+
+		ColdBlock(IfStatement ifStatement, Label body, Label join, int slotNumber, Map<ASTNode, Integer> precomputed) {
+			this.ifStatement = ifStatement;
+			this.body = body;
+			this.join = join;
+			this.slotNumber = slotNumber;
+			this.precomputed = new IdentityHashMap<ASTNode, Integer>(precomputed);
+		}
+	}
+
+	/**
+	 * Set to run independent statements of run() concurrently, see
+	 * DataflowAnalysis. Only the AST backend forks statements, and only
+	 * when DEVEL and GRADE are not set.
+	 */
+	boolean dataflowParallel = false;
+	DataflowAnalysis dataflow;
+	/**
+	 * Set if statements of run() run on other threads, because they are
+	 * forked or in a parallel block. The variables and the values of loop
+	 * invariants are then fields, and there is no reuse of common
+	 * subexpressions.
+	 */
+	boolean tasks = false;
+	/** The slots of the Futures of the statements forked in the current method. */
+	final Map<Statement, Integer> futures = new IdentityHashMap<Statement, Integer>();
+	int taskCount = 0;
+	int invariantCount = 0;
+	/** Guarded nodes whose value is being computed because their temporary was null. */
+	final Set<ASTNode> recomputing = Collections.newSetFromMap(new IdentityHashMap<ASTNode, Boolean>());
 	
 	/** Indicates whether genPrint and genPrintTOS should generate code. */
 	final boolean DEVEL;
 	final boolean GRADE;
 
+	/**
+	 * Indicates whether run() is generated from the SSA form built by
+	 * IRBuilder instead of directly from the AST. The IR backend does not
+	 * log assignments, so it is ignored when DEVEL or GRADE is set.
+	 */
+	boolean useIR = false;
+
+	public void setUseIR(boolean useIR) {
+		this.useIR = useIR;
+	}
+
+	public void setSplitMethods(boolean splitMethods) {
+		this.splitMethods = splitMethods;
+	}
+
+	/**
+	 * Specializes the generated class for the given command line arguments.
+	 * The constructor still reads every param from its arguments, so the
+	 * class must only be run with these.
+	 */
+	public void setParamValues(String[] paramValues) {
+		this.paramValues = paramValues;
+	}
+
+	public void setDataflowParallel(boolean dataflowParallel) {
+		this.dataflowParallel = dataflowParallel;
+	}
+
+	public void setProfiling(boolean profiling) {
+		this.profiling = profiling;
+	}
+
+	/**
+	 * Generates the class from profile, the profile of the program
+	 * recorded by a class generated with setProfiling.
+	 */
+	public void setProfile(PLPRuntimeProfile profile) {
+		this.profile = profile;
+	}
+
+	public void setOsrLoops(List<WhileStatement> osrLoops) {
+		this.osrLoops = osrLoops;
+	}
+
+	/**
+	 * Returns the name of the field holding the variable declared by dec,
+	 * or null if it is a local variable of run().
+	 */
+	public String getFieldName(Dec dec) {
+		return fieldNames.get(dec);
+	}
+
 	@Override
 	public Object visitProgram(Program program, Object arg) throws Exception {
-		cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
 		className = program.getName();
+		cw = new PLPClassWriter(ClassWriter.COMPUTE_FRAMES, className);
 		classDesc = "L" + className + ";";
+		if(paramValues != null){
+			findConstantParams(program);
+		}
+		if(profiling || profile != null){
+			sites = ProfileSites.number(program);
+			if(profile != null && profile.size() != sites.size()){
+				throw new IllegalArgumentException("the profile of " + className + " was recorded for another version of it");
+			}
+		}
 		String sourceFileName = (String) arg;
 		cw.visit(52, ACC_PUBLIC + ACC_SUPER, className, null, "java/lang/Object",
 				new String[] { "java/lang/Runnable" });
@@ -92,8 +269,7 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 
 		// generate constructor code
 		// get a MethodVisitor
-		mv = cw.visitMethod(ACC_PUBLIC, "<init>", "([Ljava/lang/String;)V", null,
-				null);
+		MethodNode constructor = startMethod(ACC_PUBLIC, "<init>", "([Ljava/lang/String;)V");
 		mv.visitCode();
 		// Create label at start of code
 		Label constructorStart = new Label();
@@ -128,14 +304,14 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 		mv.visitMaxs(1, 1);
 		// finish up code generation for this method.
 		mv.visitEnd();
+		endMethod(constructor);
 		// end of constructor
 
 		// create main method which does the following
 		// 1. instantiate an instance of the class being generated, passing the
 		// String[] with command line arguments
 		// 2. invoke the run method.
-		mv = cw.visitMethod(ACC_PUBLIC + ACC_STATIC, "main", "([Ljava/lang/String;)V", null,
-				null);
+		MethodNode main = startMethod(ACC_PUBLIC + ACC_STATIC, "main", "([Ljava/lang/String;)V");
 		mv.visitCode();
 		Label mainStart = new Label();
 		mv.visitLabel(mainStart);
@@ -154,26 +330,73 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 		mv.visitLocalVariable("instance", classDesc, null, mainStart, mainEnd, 1);
 		mv.visitMaxs(0, 0);
 		mv.visitEnd();
+		endMethod(main);
+
+		if(profiling){
+			cw.visitField(ACC_PRIVATE + ACC_STATIC + ACC_FINAL, "profile$", PLPRuntimeProfile.JVMDesc, null, null).visitEnd();
+			MethodNode clinit = startMethod(ACC_STATIC, "<clinit>", "()V");
+			mv.visitCode();
+			mv.visitLdcInsn(className);
+			mv.visitLdcInsn(sites.size());
+			mv.visitMethodInsn(INVOKESTATIC, PLPRuntimeProfile.JVMClassName, "forProgram", PLPRuntimeProfile.forProgramSig, false);
+			mv.visitFieldInsn(PUTSTATIC, className, "profile$", PLPRuntimeProfile.JVMDesc);
+			mv.visitInsn(RETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+			endMethod(clinit);
+		}
 
 		// create run method
-		mv = cw.visitMethod(ACC_PUBLIC, "run", "()V", null, null);
+		MethodNode run = startMethod(ACC_PUBLIC, "run", "()V");
 		mv.visitCode();
 		Label startRun = new Label();
 		mv.visitLabel(startRun);
 		CodeGenUtils.genPrint(DEVEL, mv, "\nentering run");
-		program.getB().visit(this, null);
-		mv.visitInsn(RETURN);
+		boolean viaIR = useIR && !DEVEL && !GRADE && osrLoops == null && sites == null && !hasParallel(program.getB());
+		if (viaIR) {
+			new IRCodeGen(IRBuilder.lower(program, constantParams), mv).emit();
+		} else {
+			ownership = ImageOwnershipAnalysis.analyze(program);
+			liveness = LivenessAnalysis.analyze(program);
+			splitting = splitMethods && osrLoops == null && MethodSplitter.isLarge(program.getB());
+			dataflow = dataflowParallel && osrLoops == null && !DEVEL && !GRADE ? DataflowAnalysis.analyze(program, liveness, splitting)
+					: new DataflowAnalysis();
+			tasks = dataflow.hasForks() || hasParallel(program.getB());
+			// a temporary set before a loop is not set when the interpreter
+			// enters it, so there is no reuse across an osr$i entry, and
+			// temporaries are not shared with tasks, and the log shows every
+			// op, so nothing is reused when it is generated
+			cse = osrLoops == null && !tasks && !DEVEL && !GRADE ? CommonSubexpressionAnalysis.analyze(program) : new CommonSubexpressionAnalysis();
+			varFields = splitting || osrLoops != null || tasks;
+			List<TypeName> tempTypes = cse.getTempTypes();
+			cseSlots = new int[tempTypes.size()];
+			for (int i = 0; i < cseSlots.length; i++) {
+				if (splitting) {
+					cw.visitField(ACC_PRIVATE, "cse$" + i, tempTypes.get(i).getJVMTypeDesc(), null, null).visitEnd();
+				} else {
+					cseSlots[i] = slotNumber++;
+				}
+				mv.visitInsn(isReference(tempTypes.get(i)) ? ACONST_NULL : ICONST_0);
+				genStoreTemp(i);
+			}
+			program.getB().visit(this, null);
+			mv.visitInsn(RETURN);
+			genColdBlocks();
+		}
 		Label endRun = new Label();
 		mv.visitLabel(endRun);
 		mv.visitLocalVariable("this", classDesc, null, startRun, endRun, 0);
-//TODO  visit the local variables
-		ArrayList<Dec> dec= program.getB().getDecs();
-		for( Dec dc: dec){
-			mv.visitLocalVariable(dc.getIdent().getText(), dc.getTypeName().getJVMTypeDesc(), null, startRun, endRun, dc.getSlotNumber());
-		}
+		// the local variables are visited by visitBlock; values in the IR
+		// have no fixed slot per variable
 		mv.visitMaxs(1, 1);
 		mv.visitEnd(); // end of run method
-		
+		endMethod(run);
+
+		if(osrLoops != null){
+			for(int i = 0; i < osrLoops.size(); i++){
+				genOsrEntry("osr$" + i, osrLoops.get(i));
+			}
+		}
 		
 		cw.visitEnd();//end of class
 		
@@ -183,19 +406,257 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 
 
 
+	/**
+	 * Fills constantParams with the values in paramValues of the integer and
+	 * boolean params that run() never assigns.
+	 */
+	void findConstantParams(Program program) throws Exception {
+		Set<Dec> written = LoopInvariantAnalysis.scan(program.getB()).written;
+		ArrayList<ParamDec> params = program.getParams();
+		for(int i = 0; i < params.size(); i++){
+			ParamDec dec = params.get(i);
+			if(written.contains(dec)){
+				continue;
+			}
+			if(dec.getTypeName() == TypeName.INTEGER){
+				constantParams.put(dec, Integer.parseInt(paramValues[i]));
+			}
+			else if(dec.getTypeName() == TypeName.BOOLEAN){
+				constantParams.put(dec, Boolean.parseBoolean(paramValues[i]) ? 1 : 0);
+			}
+		}
+	}
+
+	/**
+	 * Returns the value of e, with booleans as 0 or 1, if e only combines
+	 * literals and constant params with int and boolean operators, and
+	 * returns null otherwise. A division by zero is left to run time.
+	 */
+	Integer constantValue(Expression e){
+		if(e instanceof IntLitExpression){
+			return ((IntLitExpression) e).value;
+		}
+		if(e instanceof BooleanLitExpression){
+			return ((BooleanLitExpression) e).getValue() ? 1 : 0;
+		}
+		if(e instanceof IdentExpression){
+			return constantParams.get(((IdentExpression) e).getDec());
+		}
+		if(!(e instanceof BinaryExpression) || isReference(e.getTypeName())){
+			return null;
+		}
+		BinaryExpression be = (BinaryExpression) e;
+		if(isReference(be.getE0().getTypeName())){
+			return null;
+		}
+		Integer v0 = constantValue(be.getE0());
+		Integer v1 = constantValue(be.getE1());
+		if(v0 == null || v1 == null){
+			return null;
+		}
+		switch(be.getOp().kind){
+			case PLUS: return v0 + v1;
+			case MINUS: return v0 - v1;
+			case TIMES: return v0 * v1;
+			case DIV: return v1 == 0 ? null : v0 / v1;
+			case MOD: return v1 == 0 ? null : v0 % v1;
+			case AND: return v0 & v1;
+			case OR: return v0 | v1;
+			case LT: return v0 < v1 ? 1 : 0;
+			case LE: return v0 <= v1 ? 1 : 0;
+			case GT: return v0 > v1 ? 1 : 0;
+			case GE: return v0 >= v1 ? 1 : 0;
+			case EQUAL: return v0.intValue() == v1.intValue() ? 1 : 0;
+			case NOTEQUAL: return v0.intValue() != v1.intValue() ? 1 : 0;
+			default: return null;
+		}
+	}
+
+	/**
+	 * Generates a call of the image or filter op name, which PLPRuntimeLinker
+	 * links to the implementation of the backend chosen at run time, or of
+	 * the one the profile chose for node. When profiling, the image the
+	 * call returns is recorded for node, unless node is null.
+	 */
+	void genRuntimeOp(ASTNode node, String name, String desc){
+		Integer site = sites == null || node == null ? null : sites.get(node);
+		String backend = profile == null || site == null ? null : backendFor(site);
+		if(backend == null){
+			mv.visitInvokeDynamicInsn(name, desc, linkerBootstrap);
+		}
+		else{
+			mv.visitInvokeDynamicInsn(name, desc, linkerBootstrapBackend, backend);
+		}
+		if(profiling && site != null){
+			mv.visitFieldInsn(GETSTATIC, className, "profile$", PLPRuntimeProfile.JVMDesc);
+			mv.visitInsn(SWAP);
+			mv.visitLdcInsn(site);
+			mv.visitMethodInsn(INVOKEVIRTUAL, PLPRuntimeProfile.JVMClassName, "image", PLPRuntimeProfile.imageSig, false);
+		}
+	}
+
+	/**
+	 * Returns the backend the profile chooses for the op at site: "parallel"
+	 * if the images it returned were large enough on average to be split
+	 * among threads and all of types that can be, "scalar" if not, and
+	 * null if it never ran.
+	 */
+	String backendFor(int site){
+		if(profile.getImageCount(site) == 0){
+			return null;
+		}
+		int types = profile.getTypes(site);
+		for(int type = 0; types >>> type != 0; type++){
+			if((types >>> type & 1) != 0 && !PLPRuntimeParallelOps.isSplittableType(type)){
+				return "scalar";
+			}
+		}
+		return profile.getMeanPixels(site) >= PLPRuntimeParallelOps.MIN_PIXELS ? "parallel" : "scalar";
+	}
+
+	/**
+	 * Generates the increment of counter in the profile of the class.
+	 */
+	void genCount(int counter){
+		mv.visitFieldInsn(GETSTATIC, className, "profile$", PLPRuntimeProfile.JVMDesc);
+		mv.visitLdcInsn(counter);
+		mv.visitMethodInsn(INVOKEVIRTUAL, PLPRuntimeProfile.JVMClassName, "count", PLPRuntimeProfile.countSig, false);
+	}
+
+	boolean isCold(IfStatement ifStatement){
+		if(profile == null){
+			return false;
+		}
+		int site = sites.get(ifStatement);
+		long runs = profile.getCount(site);
+		return runs >= COLD_MIN_RUNS && profile.getCount(site + 1) * COLD_RATIO <= runs;
+	}
+
+	/**
+	 * Generates the cold if bodies of the method under construction after
+	 * its last instruction, each followed by a jump back to the statement
+	 * after its if. A body may add cold bodies of its own.
+	 */
+	void genColdBlocks() throws Exception {
+		int methodSlot = slotNumber;
+		Map<ASTNode, Integer> methodPrecomputed = new IdentityHashMap<ASTNode, Integer>(precomputed);
+		for(int i = 0; i < coldBlocks.size(); i++){
+			ColdBlock cold = coldBlocks.get(i);
+			slotNumber = cold.slotNumber;
+			precomputed.clear();
+			precomputed.putAll(cold.precomputed);
+			mv.visitLabel(cold.body);
+			genIfBody(cold.ifStatement);
+			mv.visitJumpInsn(GOTO, cold.join);
+		}
+		coldBlocks.clear();
+		precomputed.clear();
+		precomputed.putAll(methodPrecomputed);
+		slotNumber = methodSlot;
+	}
+
+	/**
+	 * Generates a public method that runs whileStatement, starting with its
+	 * test, on the variables in their fields.
+	 */
+	void genOsrEntry(String name, WhileStatement whileStatement) throws Exception {
+		MethodNode osr = startMethod(ACC_PUBLIC, name, "()V");
+		slotNumber = 1;
+		mv.visitCode();
+		Label start = new Label();
+		mv.visitLabel(start);
+		whileStatement.visit(this, null);
+		mv.visitInsn(RETURN);
+		genColdBlocks();
+		Label end = new Label();
+		mv.visitLabel(end);
+		mv.visitLocalVariable("this", classDesc, null, start, end, 0);
+		mv.visitMaxs(1, 1);
+		mv.visitEnd();
+		endMethod(osr);
+	}
+
+	/**
+	 * Starts a method whose code is collected in a MethodNode rather than
+	 * written straight to the class, so that endMethod can run the
+	 * PeepholeOptimizer over it first.
+	 */
+	MethodNode startMethod(int access, String name, String desc) {
+		MethodNode mn = new MethodNode(access, name, desc, null, null);
+		mv = mn;
+		return mn;
+	}
+
+	/**
+	 * Optimizes a method started with startMethod and adds it to the class.
+	 * Precondition: mn.visitEnd() has been called.
+	 */
+	void endMethod(MethodNode mn) {
+		PeepholeOptimizer.optimize(mn);
+		mn.accept(cw);
+	}
+
 	@Override
 	public Object visitAssignmentStatement(AssignmentStatement assignStatement, Object arg) throws Exception {
 		assignStatement.getE().visit(this, arg);
 		CodeGenUtils.genPrint(DEVEL, mv, "\nassignment: " + assignStatement.var.getText() + "=");
 		CodeGenUtils.genPrintTOS(GRADE, mv, assignStatement.getE().getTypeName());
-		assignStatement.getVar().visit(this, arg);
+		assignStatement.getVar().visit(this, isOwned(assignStatement) ? OWNED : arg);
 		return null;
 	}
 
+	/** The arg of visitIdentLValue when the image it stores needs no copy. */
+	static final Object OWNED = new Object();
+
+	/**
+	 * Returns true if the image assigned by assignStatement can be stored
+	 * without a copy: either it is a new image that nothing else refers to,
+	 * or sharing it cannot be observed. The log shows every copy, so none is
+	 * left out when it is generated.
+	 */
+	boolean isOwned(AssignmentStatement assignStatement){
+		Expression e = assignStatement.getE();
+		if(e.getTypeName() != IMAGE || DEVEL || GRADE){
+			return false;
+		}
+		boolean fresh = e instanceof BinaryExpression && !precomputed.containsKey(e)
+				&& cse.getSaved(e) == null && cse.getReused(e) == null && cse.getGuarded(e) == null;
+		return fresh || ownership.maySkipCopy(assignStatement);
+	}
+
 	@Override
 	public Object visitBinaryChain(BinaryChain binaryChain, Object arg) throws Exception {
-		binaryChain.getE0().visit(this, "left");
-		TypeName typeName = binaryChain.getE0().getTypeName();
+		if(genReused(binaryChain, arg)){
+			return null;
+		}
+		if(loadPrecomputed(binaryChain)){
+			genSaved(binaryChain);
+			return null;
+		}
+		if(!loadPrecomputed(binaryChain.getE0())){
+			binaryChain.getE0().visit(this, "left");
+			genReadImage(binaryChain.getE0().getTypeName());
+		}
+		if(binaryChain.getE1().getClass() == FilterOpChain.class){
+			Token operator = binaryChain.getArrow();
+			if(operator.kind == ARROW){
+				mv.visitInsn(ACONST_NULL);
+			}
+			else if(operator.kind == Kind.BARARROW){
+				mv.visitInsn(DUP);
+			}
+		}
+		binaryChain.getE1().visit(this, "right");
+		capture(binaryChain);
+		genSaved(binaryChain);
+		return null;
+	}
+
+	/**
+	 * Generates the conversion of the left end of a chain of type typeName
+	 * to the value passed along the chain.
+	 */
+	void genReadImage(TypeName typeName){
 		switch(typeName){
 			case URL:{
 				mv.visitMethodInsn(INVOKESTATIC, PLPRuntimeImageIO.className,"readFromURL", PLPRuntimeImageIO.readFromURLSig,false);
@@ -209,95 +670,45 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 				mv.visitInsn(POP);
 			}
 		}
-		if(binaryChain.getE1().getClass() == FilterOpChain.class){
-			Token operator = binaryChain.getArrow();
-			if(operator.kind == ARROW){
-				mv.visitInsn(ACONST_NULL);
-			}
-			else if(operator.kind == Kind.BARARROW){
-				mv.visitInsn(DUP);
-			}
-		}
-		binaryChain.getE1().visit(this, "right");
-		return null;
 	}
 
 	@Override
 	public Object visitBinaryExpression(BinaryExpression binaryExpression, Object arg) throws Exception {
 		Expression expr1 = binaryExpression.getE0();
 		Expression expr2 = binaryExpression.getE1();
-		expr1.visit(this, arg);
-		expr2.visit(this, arg);
 		Kind operatorKind = binaryExpression.getOp().kind;
-		switch(operatorKind){
-		case LT:{
-			Label l3 = new Label();
-			mv.visitJumpInsn(IF_ICMPGE, l3);
-			mv.visitInsn(ICONST_1);
-			Label l4 = new Label();
-			mv.visitJumpInsn(GOTO, l4);
-			mv.visitLabel(l3);
-			mv.visitInsn(ICONST_0);
-			mv.visitLabel(l4);
-			break;}
-		case LE:{
-			Label l3 = new Label();
-			mv.visitJumpInsn(IF_ICMPGT, l3);
-			mv.visitInsn(ICONST_1);
-			Label l4 = new Label();
-			mv.visitJumpInsn(GOTO, l4);
-			mv.visitLabel(l3);
-			mv.visitInsn(ICONST_0);
-			mv.visitLabel(l4);
-			break;
+		if(genReused(binaryExpression, arg)){
+			return null;
 		}
-		case GT:{
-			Label l3 = new Label();
-			mv.visitJumpInsn(IF_ICMPLE, l3);
-			mv.visitInsn(ICONST_1);
-			Label l4 = new Label();
-			mv.visitJumpInsn(GOTO, l4);
-			mv.visitLabel(l3);
-			mv.visitInsn(ICONST_0);
-			mv.visitLabel(l4);
-			break;
+		if(loadPrecomputed(binaryExpression)){
+			genSaved(binaryExpression);
+			return null;
 		}
-		case GE:{
-			Label l3 = new Label();
-			mv.visitJumpInsn(IF_ICMPLT, l3);
-			mv.visitInsn(ICONST_1);
-			Label l4 = new Label();
-			mv.visitJumpInsn(GOTO, l4);
-			mv.visitLabel(l3);
-			mv.visitInsn(ICONST_0);
-			mv.visitLabel(l4);
-			break;
+		Integer folded = constantValue(binaryExpression);
+		if(folded != null){
+			mv.visitLdcInsn(folded);
+			capture(binaryExpression);
+			return null;
 		}
-		case EQUAL:{
+		if(isRelational(operatorKind)){
+			// materialize the 0/1 value of a comparison for use outside a branch
 			Label l3 = new Label();
-			mv.visitJumpInsn(IF_ICMPNE, l3);
-			mv.visitInsn(ICONST_1);
 			Label l4 = new Label();
-			mv.visitJumpInsn(GOTO, l4);
-			mv.visitLabel(l3);
-			mv.visitInsn(ICONST_0);
-			mv.visitLabel(l4);
-			break;
-		}
-		case NOTEQUAL:{
-			Label l3 = new Label();
-			mv.visitJumpInsn(IF_ICMPEQ, l3);
+			genCompare(binaryExpression, false, l3);
 			mv.visitInsn(ICONST_1);
-			Label l4 = new Label();
 			mv.visitJumpInsn(GOTO, l4);
 			mv.visitLabel(l3);
 			mv.visitInsn(ICONST_0);
 			mv.visitLabel(l4);
-			break;
+			capture(binaryExpression);
+			return null;
 		}
+		expr1.visit(this, arg);
+		expr2.visit(this, arg);
+		switch(operatorKind){
 		case PLUS:
 			if(expr1.getTypeName() == IMAGE && expr2.getTypeName() == IMAGE){
-				mv.visitMethodInsn(INVOKESTATIC, PLPRuntimeImageOps.JVMName, "add", PLPRuntimeImageOps.addSig , false);
+				genRuntimeOp(binaryExpression, "add", PLPRuntimeImageOps.addSig);
 			}
 		    else if(expr1.getTypeName() == TypeName.INTEGER && expr2.getTypeName() == TypeName.INTEGER){
 		    	mv.visitInsn(IADD);
@@ -305,7 +716,7 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 			break;
 		case MINUS:
 			if(expr1.getTypeName() == IMAGE && expr2.getTypeName() == IMAGE){
-				mv.visitMethodInsn(INVOKESTATIC, PLPRuntimeImageOps.JVMName, "sub", PLPRuntimeImageOps.subSig , false);
+				genRuntimeOp(binaryExpression, "sub", PLPRuntimeImageOps.subSig);
 			}
 		    else if(expr1.getTypeName() == TypeName.INTEGER && expr2.getTypeName() == TypeName.INTEGER){
 		    	mv.visitInsn(ISUB);
@@ -320,15 +731,15 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 			}
 			else if(expr1.getTypeName() == TypeName.INTEGER && expr2.getTypeName() == IMAGE){
 				mv.visitInsn(SWAP);
-				mv.visitMethodInsn(INVOKESTATIC, PLPRuntimeImageOps.JVMName,"mul", PLPRuntimeImageOps.mulSig, false);
+				genRuntimeOp(binaryExpression, "mul", PLPRuntimeImageOps.mulSig);
 			}
 			else if(expr1.getTypeName() == IMAGE && expr2.getTypeName() == TypeName.INTEGER){
-				mv.visitMethodInsn(INVOKESTATIC, PLPRuntimeImageOps.JVMName,"mul", PLPRuntimeImageOps.mulSig, false);
+				genRuntimeOp(binaryExpression, "mul", PLPRuntimeImageOps.mulSig);
 			}
 			break;
 		case DIV:
 			if(expr1.getTypeName() == IMAGE && expr2.getTypeName() == TypeName.INTEGER){
-				mv.visitMethodInsn(INVOKESTATIC, PLPRuntimeImageOps.JVMName,"div", PLPRuntimeImageOps.divSig, false);
+				genRuntimeOp(binaryExpression, "div", PLPRuntimeImageOps.divSig);
 			}
 			else if(expr1.getTypeName() == TypeName.INTEGER && expr2.getTypeName() == TypeName.INTEGER){
 				mv.visitInsn(IDIV);
@@ -339,32 +750,305 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 			break;
 		case MOD:
 			if(expr1.getTypeName() == IMAGE && expr2.getTypeName() == TypeName.INTEGER){
-				mv.visitMethodInsn(INVOKESTATIC, PLPRuntimeImageOps.JVMName,"mod", PLPRuntimeImageOps.modSig, false);
+				genRuntimeOp(binaryExpression, "mod", PLPRuntimeImageOps.modSig);
 			}
 			else if(expr1.getTypeName() == TypeName.INTEGER && expr2.getTypeName() == TypeName.INTEGER){
 				mv.visitInsn(IREM);
 			}
 			break;	
 		}
+		capture(binaryExpression);
+		genSaved(binaryExpression);
 		return null;
 	}
 
+	static boolean isRelational(Kind kind){
+		return kind == LT || kind == LE || kind == GT || kind == GE || kind == EQUAL || kind == NOTEQUAL;
+	}
+
+	/**
+	 * Returns the IF_xCMPxx opcode that jumps when e0 kind e1 holds,
+	 * or when it does not hold if negate is set.
+	 * Operands of reference type can only be compared with == and !=.
+	 */
+	public static int compareOpcode(Kind kind, boolean negate, boolean reference){
+		if(negate){
+			switch(kind){
+				case LT: kind = GE; break;
+				case LE: kind = GT; break;
+				case GT: kind = LE; break;
+				case GE: kind = LT; break;
+				case EQUAL: kind = NOTEQUAL; break;
+				case NOTEQUAL: kind = EQUAL; break;
+				default: throw new IllegalArgumentException("not a relational operator " + kind);
+			}
+		}
+		switch(kind){
+			case LT: return IF_ICMPLT;
+			case LE: return IF_ICMPLE;
+			case GT: return IF_ICMPGT;
+			case GE: return IF_ICMPGE;
+			case EQUAL: return reference ? IF_ACMPEQ : IF_ICMPEQ;
+			case NOTEQUAL: return reference ? IF_ACMPNE : IF_ICMPNE;
+			default: throw new IllegalArgumentException("not a relational operator " + kind);
+		}
+	}
+
+	/**
+	 * Returns true if evaluating e cannot throw, call into the runtime or log anything,
+	 * so that skipping its evaluation is unobservable.
+	 */
+	static boolean isPure(Expression e){
+		if(e instanceof BinaryExpression){
+			BinaryExpression be = (BinaryExpression) e;
+			Kind kind = be.getOp().kind;
+			if(kind == DIV || kind == MOD || be.getTypeName() == IMAGE || be.getE0().getTypeName() == IMAGE){
+				return false;
+			}
+			return isPure(be.getE0()) && isPure(be.getE1());
+		}
+		return e instanceof IdentExpression || e instanceof IntLitExpression || e instanceof BooleanLitExpression;
+	}
+
+	/**
+	 * Returns true if e is constant and false, in which case the body guarded by it is never generated.
+	 */
+	boolean isFalse(Expression e){
+		Integer value = constantValue(e);
+		return value != null && value == 0;
+	}
+
+	/**
+	 * Generates code for the boolean expression e in branch context: control
+	 * transfers to target if e evaluates to jumpIf and falls through otherwise.
+	 * Comparisons compile to a single IF_xCMPxx with the condition inverted as
+	 * needed, and & and | thread their operands' jumps directly to the targets
+	 * instead of combining materialized 0/1 values. The right operand of & and |
+	 * is only skipped when it is pure; otherwise both operands are evaluated
+	 * as before to keep the runtime log and exceptions unchanged. A loop
+	 * invariant is loaded once the first test of the loop has captured it,
+	 * and computed by visit, which captures it, before.
+	 */
+	void genCondJump(Expression e, boolean jumpIf, Label target) throws Exception {
+		if(precomputed.containsKey(e) && !capturing.contains(e)){
+			e.visit(this, null);
+			mv.visitJumpInsn(jumpIf ? IFNE : IFEQ, target);
+			return;
+		}
+		Integer folded = constantValue(e);
+		if(folded != null){
+			if((folded != 0) == jumpIf){
+				mv.visitJumpInsn(GOTO, target);
+			}
+			return;
+		}
+		if(e instanceof BinaryExpression && !capturing.contains(e)){
+			BinaryExpression be = (BinaryExpression) e;
+			Kind kind = be.getOp().kind;
+			if(isRelational(kind)){
+				genCompare(be, jumpIf, target);
+				return;
+			}
+			if((kind == AND || kind == OR) && be.getTypeName() == TypeName.BOOLEAN && isPure(be.getE1())){
+				// e0 decides the result on its own when it is false for & or true for |
+				boolean decides = (kind == OR);
+				if(decides == jumpIf){
+					genCondJump(be.getE0(), jumpIf, target);
+					genCondJump(be.getE1(), jumpIf, target);
+				}
+				else{
+					Label skip = new Label();
+					genCondJump(be.getE0(), decides, skip);
+					genCondJump(be.getE1(), jumpIf, target);
+					mv.visitLabel(skip);
+				}
+				return;
+			}
+		}
+		e.visit(this, null);
+		mv.visitJumpInsn(jumpIf ? IFNE : IFEQ, target);
+	}
+
+	/**
+	 * Generates the comparison be as a single IF_xCMPxx that jumps to target
+	 * if be evaluates to jumpIf.
+	 */
+	void genCompare(BinaryExpression be, boolean jumpIf, Label target) throws Exception {
+		TypeName operandType = be.getE0().getTypeName();
+		boolean reference = operandType != TypeName.INTEGER && operandType != TypeName.BOOLEAN;
+		be.getE0().visit(this, null);
+		be.getE1().visit(this, null);
+		mv.visitJumpInsn(compareOpcode(be.getOp().kind, !jumpIf, reference), target);
+	}
+
+	/**
+	 * The slots of the variables declared in block are released when it is
+	 * left, so that sibling blocks reuse them. Image and frame variables are
+	 * set to null where LivenessAnalysis finds them dead, which is at the
+	 * latest when their block is left, so that the garbage collector does
+	 * not have to wait for run() to return.
+	 */
 	@Override
 	public Object visitBlock(Block block, Object arg) throws Exception {
 		ArrayList<Dec> arrlist1 = block.getDecs();
 		ArrayList<Statement> arrlist2 = block.getStatements();
+		int firstSlot = slotNumber;
 		for(Dec dec : arrlist1){
 			dec.visit(this, null);
 		}
-		for(Statement st: arrlist2){
-			st.visit(this, null);
-			if(st.getClass() == BinaryChain.class){
-				mv.visitInsn(POP);
+		Label blockStart = new Label();
+		mv.visitLabel(blockStart);
+		genReleased(liveness.getReleasedOnEntry(block));
+		if(splitting && MethodSplitter.isLarge(block) && !(arg instanceof ParallelStatement)){
+			for(List<Statement> chunk : MethodSplitter.partition(arrlist2)){
+				if(chunk.size() == 1 && MethodSplitter.estimate(chunk.get(0)) > MethodSplitter.CHUNK_BUDGET){
+					// too large for a method of its own; its blocks are split instead
+					genStatement(chunk.get(0));
+				}
+				else{
+					genChunk(chunk);
+				}
 			}
 		}
+		else if(arg instanceof ParallelStatement){
+			for(Statement st: arrlist2){
+				genTask(st, "forkParallel");
+			}
+			genJoins(arrlist2);
+		}
+		else{
+			for(Statement st: arrlist2){
+				genJoins(dataflow.getJoins(st));
+				if(dataflow.isForked(st)){
+					genFork(st);
+				}
+				else{
+					genStatement(st);
+				}
+			}
+			genJoins(dataflow.getJoinsAtEnd(block));
+		}
+		Label blockEnd = new Label();
+		mv.visitLabel(blockEnd);
+		for(Dec dec : arrlist1){
+			if(!fieldNames.containsKey(dec)){
+				mv.visitLocalVariable(dec.getIdent().getText(), dec.getTypeName().getJVMTypeDesc(), null, blockStart, blockEnd, dec.getSlotNumber());
+			}
+		}
+		slotNumber = firstSlot;
 		return null;
 	}
 
+	void genStatement(Statement st) throws Exception {
+		st.visit(this, null);
+		if(st.getClass() == BinaryChain.class){
+			mv.visitInsn(POP);
+		}
+		genReleased(liveness.getReleasedAfter(st));
+	}
+
+	/**
+	 * Generates statements as a private method of their own, and a call to
+	 * it. Loop invariants are not kept in locals across such a call, since
+	 * visitWhileStatement does not hoist out of bodies that get split.
+	 */
+	void genChunk(List<Statement> statements) throws Exception {
+		String name = "run$" + chunkCount++;
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitMethodInsn(INVOKESPECIAL, className, name, "()V", false);
+		genMethod(name, statements);
+	}
+
+	/**
+	 * Generates a statement that DataflowAnalysis forks as a task. A
+	 * statement whose images are all loop invariants computed before the
+	 * loop is not worth a thread, and is generated as usual.
+	 */
+	void genFork(Statement st) throws Exception {
+		if(!dataflow.isHeavy(st, precomputed.keySet())){
+			genStatement(st);
+			return;
+		}
+		genTask(st, "fork");
+	}
+
+	/**
+	 * Generates st as a private method, and the code that starts it with
+	 * the PLPRuntimeTasks method fork and keeps its Future.
+	 */
+	void genTask(Statement st, String fork) throws Exception {
+		String name = "task$" + taskCount++;
+		// no descriptor may name the class, which may be hidden
+		mv.visitLdcInsn(new Handle(H_INVOKESPECIAL, className, name, "()V", false));
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitMethodInsn(INVOKESTATIC, PLPRuntimeTasks.JVMClassName, fork, PLPRuntimeTasks.forkSig, false);
+		int slot = slotNumber++;
+		mv.visitVarInsn(ASTORE, slot);
+		futures.put(st, slot);
+		genMethod(name, Collections.singletonList(st));
+	}
+
+	/**
+	 * Waits for the tasks of statements to finish.
+	 */
+	void genJoins(List<Statement> statements){
+		for(Statement st : statements){
+			Integer slot = futures.remove(st);
+			if(slot == null){
+				// it was not forked after all
+				continue;
+			}
+			mv.visitVarInsn(ALOAD, slot);
+			mv.visitMethodInsn(INVOKESTATIC, PLPRuntimeTasks.JVMClassName, "join", PLPRuntimeTasks.joinSig, false);
+		}
+	}
+
+	/**
+	 * Generates statements as the private method name. Loop invariants are
+	 * computed again unless they are in fields.
+	 */
+	void genMethod(String name, List<Statement> statements) throws Exception {
+		MethodVisitor caller = mv;
+		int callerSlot = slotNumber;
+		List<ColdBlock> callerColdBlocks = coldBlocks;
+		coldBlocks = new ArrayList<ColdBlock>();
+		Map<ASTNode, Integer> callerPrecomputed = new IdentityHashMap<ASTNode, Integer>(precomputed);
+		if(!tasks){
+			precomputed.clear();
+		}
+		MethodNode chunk = startMethod(ACC_PRIVATE, name, "()V");
+		slotNumber = 1;
+		mv.visitCode();
+		Label start = new Label();
+		mv.visitLabel(start);
+		for(Statement st : statements){
+			genStatement(st);
+		}
+		mv.visitInsn(RETURN);
+		genColdBlocks();
+		Label end = new Label();
+		mv.visitLabel(end);
+		mv.visitLocalVariable("this", classDesc, null, start, end, 0);
+		mv.visitMaxs(1, 1);
+		mv.visitEnd();
+		endMethod(chunk);
+		mv = caller;
+		slotNumber = callerSlot;
+		coldBlocks = callerColdBlocks;
+		precomputed.clear();
+		precomputed.putAll(callerPrecomputed);
+	}
+
+	/**
+	 * Clears the image and frame variables in decs, which are dead.
+	 */
+	void genReleased(List<Dec> decs){
+		for(Dec dec : decs){
+			mv.visitInsn(ACONST_NULL);
+			genStoreVar(dec);
+		}
+	}
+
 	@Override
 	public Object visitBooleanLitExpression(BooleanLitExpression booleanLitExpression, Object arg) throws Exception {
 		if(booleanLitExpression.getValue() == false)
@@ -376,6 +1060,9 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 
 	@Override
 	public Object visitConstantExpression(ConstantExpression constantExpression, Object arg) {
+		if(loadPrecomputed(constantExpression)){
+			return null;
+		}
 		Token token = constantExpression.getFirstToken();
 		Kind kind = token.kind;
 		switch(kind){
@@ -388,30 +1075,72 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 				break;
 			}
 		}
+		capture(constantExpression);
 		return null;
 	}
 
 	@Override
 	public Object visitDec(Dec declaration, Object arg) throws Exception {
-		declaration.setSlotNumber(slotNumber++);
 		TypeName typeName = declaration.getTypeName();
+		if(varFields){
+			// a variable may be used by several of the methods run() is split
+			// into, or by run() and osr$i; a dec in a loop is visited for both
+			if(!fieldNames.containsKey(declaration)){
+				String name = declaration.getIdent().getText() + "$" + fieldNames.size();
+				fieldNames.put(declaration, name);
+				cw.visitField(ACC_PRIVATE, name, typeName.getJVMTypeDesc(), null, null).visitEnd();
+			}
+		}
+		else{
+			declaration.setSlotNumber(slotNumber++);
+		}
 		switch(typeName){
 			case INTEGER:
 			case BOOLEAN:{
 				mv.visitInsn(ICONST_0);
-				mv.visitVarInsn(ISTORE, declaration.getSlotNumber());
+				genStoreVar(declaration);
 				break;
 			}
 			case IMAGE:
 			case FRAME:{
 				mv.visitInsn(ACONST_NULL);
-				mv.visitVarInsn(ASTORE, declaration.getSlotNumber());
+				genStoreVar(declaration);
 				break;
 			}
 		}
 		return null;
 	}
 
+	/**
+	 * Pushes the value of the variable declared by dec in run(), which is
+	 * a field if run() is split.
+	 */
+	void genLoadVar(Dec dec){
+		String field = fieldNames.get(dec);
+		if(field != null){
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitFieldInsn(GETFIELD, className, field, dec.getTypeName().getJVMTypeDesc());
+		}
+		else{
+			mv.visitVarInsn(isReference(dec.getTypeName()) ? ALOAD : ILOAD, dec.getSlotNumber());
+		}
+	}
+
+	/**
+	 * Pops a value into the variable declared by dec in run().
+	 */
+	void genStoreVar(Dec dec){
+		String field = fieldNames.get(dec);
+		if(field != null){
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitInsn(SWAP);
+			mv.visitFieldInsn(PUTFIELD, className, field, dec.getTypeName().getJVMTypeDesc());
+		}
+		else{
+			mv.visitVarInsn(isReference(dec.getTypeName()) ? ASTORE : ISTORE, dec.getSlotNumber());
+		}
+	}
+
 	@Override
 	public Object visitFilterOpChain(FilterOpChain filterOpChain, Object arg) throws Exception {
 		filterOpChain.getArg().visit(this, arg);
@@ -419,15 +1148,15 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 		Kind kind = operator.kind;
 		switch(kind){
 			case OP_BLUR:{
-				mv.visitMethodInsn(INVOKESTATIC, PLPRuntimeFilterOps.JVMName, "blurOp", PLPRuntimeFilterOps.opSig, false);
+				genRuntimeOp(filterOpChain, "blurOp", PLPRuntimeFilterOps.opSig);
 				break;
 			}
 			case OP_GRAY:{
-				mv.visitMethodInsn(INVOKESTATIC, PLPRuntimeFilterOps.JVMName, "grayOp", PLPRuntimeFilterOps.opSig, false);
+				genRuntimeOp(filterOpChain, "grayOp", PLPRuntimeFilterOps.opSig);
 				break;
 			}
 			case OP_CONVOLVE:{
-				mv.visitMethodInsn(INVOKESTATIC, PLPRuntimeFilterOps.JVMName, "convolveOp", PLPRuntimeFilterOps.opSig, false);
+				genRuntimeOp(filterOpChain, "convolveOp", PLPRuntimeFilterOps.opSig);
 				break;			
 			}
 		}
@@ -472,12 +1201,7 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 				mv.visitFieldInsn(GETFIELD, className, identChain.getDec().getIdent().getText(), identChain.getDec().getTypeName().getJVMTypeDesc());
 			}
 			else{
-				if(identChain.getDec().getTypeName() == TypeName.INTEGER || identChain.getDec().getTypeName() == TypeName.BOOLEAN ){
-					mv.visitVarInsn(ILOAD, identChain.getDec().getSlotNumber());
-				}
-				else{
-					mv.visitVarInsn(ALOAD, identChain.getDec().getSlotNumber());
-				}
+				genLoadVar(identChain.getDec());
 			}
 		}
 		else if(arg == "right"){
@@ -500,19 +1224,11 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 			}
 			else{
 				if(identChain.getDec().getTypeName() == TypeName.FRAME){
-					mv.visitVarInsn(ALOAD, identChain.getDec().getSlotNumber());
+					genLoadVar(identChain.getDec());
 					mv.visitMethodInsn(INVOKESTATIC, PLPRuntimeFrame.JVMClassName,"createOrSetFrame", PLPRuntimeFrame.createOrSetFrameSig,false);
-					mv.visitVarInsn(ASTORE, identChain.getDec().getSlotNumber());
-					mv.visitVarInsn(ALOAD, identChain.getDec().getSlotNumber());
-				}
-				else if(identChain.getDec().getTypeName() == TypeName.INTEGER || identChain.getDec().getTypeName() == TypeName.BOOLEAN){
-					mv.visitVarInsn(ISTORE, identChain.getDec().getSlotNumber());
-					mv.visitVarInsn(ILOAD, identChain.getDec().getSlotNumber());
-				}
-				else if(identChain.getDec().getTypeName() == TypeName.IMAGE){
-					mv.visitVarInsn(ASTORE, identChain.getDec().getSlotNumber());
-					mv.visitVarInsn(ALOAD, identChain.getDec().getSlotNumber());	
 				}
+				genStoreVar(identChain.getDec());
+				genLoadVar(identChain.getDec());
 			}
 		}
 		return null;
@@ -520,17 +1236,16 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 
 	@Override
 	public Object visitIdentExpression(IdentExpression identExpression, Object arg) throws Exception {
-		if(identExpression.getDec().getClass() == ParamDec.class){
+		Integer constant = constantParams.get(identExpression.getDec());
+		if(constant != null){
+			mv.visitLdcInsn(constant);
+		}
+		else if(identExpression.getDec().getClass() == ParamDec.class){
 			mv.visitVarInsn(ALOAD, 0);
 			mv.visitFieldInsn(GETFIELD, className, identExpression.getDec().getIdent().getText(), identExpression.getDec().getTypeName().getJVMTypeDesc());
 		}
 		else{
-			if(identExpression.getDec().getTypeName() == TypeName.INTEGER || identExpression.getDec().getTypeName() == TypeName.BOOLEAN){
-				mv.visitVarInsn(ILOAD, identExpression.getDec().getSlotNumber());
-			}
-			else{
-				mv.visitVarInsn(ALOAD, identExpression.getDec().getSlotNumber());
-			}
+			genLoadVar(identExpression.getDec());
 		}
 		return null;
 	}
@@ -543,16 +1258,10 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 			mv.visitFieldInsn(PUTFIELD, className, identX.getDec().getIdent().getText(), identX.getDec().getTypeName().getJVMTypeDesc());
 		}
 		else{
-			if(identX.getDec().getTypeName() == TypeName.INTEGER || identX.getDec().getTypeName() == TypeName.BOOLEAN){
-				mv.visitVarInsn(ISTORE, identX.getDec().getSlotNumber());
-			}
-			else if(identX.getDec().getTypeName() == TypeName.FRAME){
-				mv.visitVarInsn(ASTORE, identX.getDec().getSlotNumber());
-			}
-			else if(identX.getDec().getTypeName() == TypeName.IMAGE){
-				mv.visitMethodInsn(INVOKESTATIC, PLPRuntimeImageOps.JVMName,"copyImage", PLPRuntimeImageOps.copyImageSig,false);
-				mv.visitVarInsn(ASTORE, identX.getDec().getSlotNumber());
+			if(identX.getDec().getTypeName() == TypeName.IMAGE && arg != OWNED){
+				genRuntimeOp(null, "copyImage", PLPRuntimeImageOps.copyImageSig);
 			}
+			genStoreVar(identX.getDec());
 		}
 		return null;
 
@@ -560,14 +1269,38 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 
 	@Override
 	public Object visitIfStatement(IfStatement ifStatement, Object arg) throws Exception {
+		// temporaries that only the body may set must not hold a value from an earlier pass
+		for(int temp : cse.getResets(ifStatement)){
+			mv.visitInsn(ACONST_NULL);
+			genStoreTemp(temp);
+		}
+		if(isFalse(ifStatement.getE())){
+			return null;
+		}
+		if(profiling){
+			genCount(sites.get(ifStatement));
+		}
 		Label l1 = new Label();
-		ifStatement.getE().visit(this, arg);
-		mv.visitJumpInsn(IFEQ, l1);
-		ifStatement.getB().visit(this, arg);
+		if(isCold(ifStatement)){
+			Label body = new Label();
+			genCondJump(ifStatement.getE(), true, body);
+			coldBlocks.add(new ColdBlock(ifStatement, body, l1, slotNumber, precomputed));
+			mv.visitLabel(l1);
+			return null;
+		}
+		genCondJump(ifStatement.getE(), false, l1);
+		genIfBody(ifStatement);
 		mv.visitLabel(l1);
 		return null;
 	}
 
+	void genIfBody(IfStatement ifStatement) throws Exception {
+		if(profiling){
+			genCount(sites.get(ifStatement) + 1);
+		}
+		ifStatement.getB().visit(this, null);
+	}
+
 	@Override
 	public Object visitImageOpChain(ImageOpChain imageOpChain, Object arg) throws Exception {
 		imageOpChain.getArg().visit(this, arg);
@@ -575,15 +1308,15 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 		Kind kind = operator.kind;
 		switch(kind){
 			case OP_WIDTH:{
-				mv.visitMethodInsn(INVOKEVIRTUAL, "java/awt/image/BufferedImage" , "getWidth", PLPRuntimeImageOps.getWidthSig, false);
+				mv.visitMethodInsn(INVOKEVIRTUAL, PLPRuntimeImage.JVMClassName, "getWidth", PLPRuntimeImageOps.getWidthSig, false);
 				break;
 			}
 			case OP_HEIGHT:{
-				mv.visitMethodInsn(INVOKEVIRTUAL,"java/awt/image/BufferedImage" , "getHeight", PLPRuntimeImageOps.getHeightSig, false);
+				mv.visitMethodInsn(INVOKEVIRTUAL,PLPRuntimeImage.JVMClassName, "getHeight", PLPRuntimeImageOps.getHeightSig, false);
 				break;
 			}
 			case KW_SCALE:{
-				mv.visitMethodInsn(INVOKESTATIC, PLPRuntimeImageOps.JVMName, "scale", PLPRuntimeImageOps.scaleSig, false);
+				genRuntimeOp(imageOpChain, "scale", PLPRuntimeImageOps.scaleSig);
 				break;			
 			}
 		}
@@ -597,6 +1330,26 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 	}
 
 
+	/**
+	 * Runs each statement of the block as a task in the common ForkJoinPool,
+	 * and waits for all of them at its end.
+	 */
+	@Override
+	public Object visitParallelStatement(ParallelStatement parallelStatement, Object arg) throws Exception {
+		return parallelStatement.getB().visit(this, parallelStatement);
+	}
+
+	static boolean hasParallel(Block block){
+		for(Statement st : block.getStatements()){
+			if(st instanceof ParallelStatement
+					|| st instanceof IfStatement && hasParallel(((IfStatement) st).getB())
+					|| st instanceof WhileStatement && hasParallel(((WhileStatement) st).getB())){
+				return true;
+			}
+		}
+		return false;
+	}
+
 	@Override
 	public Object visitParamDec(ParamDec paramDec, Object arg) throws Exception {
 		fv = cw.visitField(0, paramDec.getIdent().getText(), paramDec.getTypeName().getJVMTypeDesc(), null, null);
@@ -661,15 +1414,212 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 
 	@Override
 	public Object visitWhileStatement(WhileStatement whileStatement, Object arg) throws Exception {
+		if(isFalse(whileStatement.getE())){
+			return null;
+		}
+		if(profiling){
+			genCount(sites.get(whileStatement));
+		}
 		Label l1 = new Label();
 		Label l2 = new Label();
-		mv.visitJumpInsn(GOTO, l1);
+		int firstTemp = slotNumber;
+		// the log would show a hoisted op once, and out of order with the
+		// assignments, so nothing is hoisted when the log is generated
+		boolean logged = DEVEL || GRADE;
+		LoopInvariantAnalysis invariants = logged ? null : LoopInvariantAnalysis.analyze(whileStatement, precomputed.keySet());
+		if(logged || invariants.isEmpty() || splitting && MethodSplitter.isLarge(whileStatement.getB())){
+			mv.visitJumpInsn(GOTO, l1);
+			mv.visitLabel(l2);
+			genLoopBodyCount(whileStatement);
+			whileStatement.getB().visit(this, arg);
+			mv.visitLabel(l1);
+			genCondJump(whileStatement.getE(), true, l2);
+			return null;
+		}
+		// the loop is rotated so that invariants are computed only once the
+		// first test has passed: cond; preheader; l2: body; cond; ifne l2
+		for(ASTNode node : invariants.getCondInvariants()){
+			precomputed.put(node, newInvariantTemp(node));
+			capturing.add(node);
+		}
+		genCondJump(whileStatement.getE(), false, l1);
+		for(ASTNode node : invariants.getBodyInvariants()){
+			int temp = newInvariantTemp(node);
+			genHoisted(node);
+			genStoreInvariant(node, temp);
+			precomputed.put(node, temp);
+		}
 		mv.visitLabel(l2);
+		genLoopBodyCount(whileStatement);
 		whileStatement.getB().visit(this, arg);
+		genCondJump(whileStatement.getE(), true, l2);
 		mv.visitLabel(l1);
-		whileStatement.getE().visit(this, arg);
-		mv.visitJumpInsn(IFNE, l2);
+		for(ASTNode node : invariants.getCondInvariants()){
+			releaseTemp(node);
+		}
+		for(ASTNode node : invariants.getBodyInvariants()){
+			releaseTemp(node);
+		}
+		slotNumber = firstTemp;
 		return null;
 	}
 
+	void genLoopBodyCount(WhileStatement whileStatement){
+		if(profiling){
+			genCount(sites.get(whileStatement) + 1);
+		}
+	}
+
+	/**
+	 * Called when the loop that precomputed node is left. An image held in
+	 * the temporary of node is released.
+	 */
+	void releaseTemp(ASTNode node){
+		int temp = precomputed.remove(node);
+		if(isReference(LoopInvariantAnalysis.valueType(node))){
+			mv.visitInsn(ACONST_NULL);
+			genStoreInvariant(node, temp);
+		}
+	}
+
+	/**
+	 * Allocates the temporary of a loop invariant, which is a local, or
+	 * the field inv$i when there are tasks, so that they load it too.
+	 */
+	int newInvariantTemp(ASTNode node){
+		if(!tasks){
+			return slotNumber++;
+		}
+		int field = invariantCount++;
+		cw.visitField(ACC_PRIVATE, "inv$" + field, LoopInvariantAnalysis.valueType(node).getJVMTypeDesc(), null, null).visitEnd();
+		return field;
+	}
+
+	void genLoadInvariant(ASTNode node, int temp){
+		TypeName type = LoopInvariantAnalysis.valueType(node);
+		if(tasks){
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitFieldInsn(GETFIELD, className, "inv$" + temp, type.getJVMTypeDesc());
+		}
+		else{
+			mv.visitVarInsn(isReference(type) ? ALOAD : ILOAD, temp);
+		}
+	}
+
+	void genStoreInvariant(ASTNode node, int temp){
+		TypeName type = LoopInvariantAnalysis.valueType(node);
+		if(tasks){
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitInsn(SWAP);
+			mv.visitFieldInsn(PUTFIELD, className, "inv$" + temp, type.getJVMTypeDesc());
+		}
+		else{
+			mv.visitVarInsn(isReference(type) ? ASTORE : ISTORE, temp);
+		}
+	}
+
+	/**
+	 * Generates the value of a loop invariant found by LoopInvariantAnalysis.
+	 * A file or url IdentChain stands for the image read from it.
+	 */
+	void genHoisted(ASTNode node) throws Exception {
+		node.visit(this, "left");
+		if(node instanceof IdentChain){
+			genReadImage(((IdentChain) node).getTypeName());
+		}
+	}
+
+	/**
+	 * Loads the value of node if it was computed before the enclosing loop.
+	 * Returns false if the code for node must be generated as usual.
+	 */
+	boolean loadPrecomputed(ASTNode node){
+		Integer temp = precomputed.get(node);
+		if(temp == null || capturing.contains(node)){
+			return false;
+		}
+		genLoadInvariant(node, temp);
+		return true;
+	}
+
+	/**
+	 * Called after generating the value of node. If node is an invariant of a
+	 * loop condition, saves the value computed by the first test of the loop.
+	 */
+	void capture(ASTNode node){
+		if(capturing.remove(node)){
+			mv.visitInsn(DUP);
+			genStoreInvariant(node, precomputed.get(node));
+		}
+	}
+
+	/**
+	 * Generates a reuse of the value of node found by CommonSubexpressionAnalysis.
+	 * A guarded value is loaded if its temporary is set and computed otherwise.
+	 * Returns false if the code for node must be generated as usual.
+	 */
+	boolean genReused(ASTNode node, Object arg) throws Exception{
+		Integer temp = cse.getReused(node);
+		if(temp != null){
+			genLoadTemp(temp);
+			return true;
+		}
+		temp = cse.getGuarded(node);
+		if(temp == null || !recomputing.add(node)){
+			return false;
+		}
+		Label done = new Label();
+		genLoadTemp(temp);
+		mv.visitInsn(DUP);
+		mv.visitJumpInsn(IFNONNULL, done);
+		mv.visitInsn(POP);
+		node.visit(this, arg);
+		mv.visitLabel(done);
+		recomputing.remove(node);
+		return true;
+	}
+
+	/**
+	 * Called after generating the value of node. Saves it if
+	 * CommonSubexpressionAnalysis found that it is reused later.
+	 */
+	void genSaved(ASTNode node){
+		Integer temp = cse.getSaved(node);
+		if(temp != null){
+			mv.visitInsn(DUP);
+			genStoreTemp(temp);
+		}
+	}
+
+	/**
+	 * Pushes the value of a temporary of CommonSubexpressionAnalysis, which
+	 * is a field if run() is split.
+	 */
+	void genLoadTemp(int temp){
+		TypeName type = cse.getTempTypes().get(temp);
+		if(splitting){
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitFieldInsn(GETFIELD, className, "cse$" + temp, type.getJVMTypeDesc());
+		}
+		else{
+			mv.visitVarInsn(isReference(type) ? ALOAD : ILOAD, cseSlots[temp]);
+		}
+	}
+
+	void genStoreTemp(int temp){
+		TypeName type = cse.getTempTypes().get(temp);
+		if(splitting){
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitInsn(SWAP);
+			mv.visitFieldInsn(PUTFIELD, className, "cse$" + temp, type.getJVMTypeDesc());
+		}
+		else{
+			mv.visitVarInsn(isReference(type) ? ASTORE : ISTORE, cseSlots[temp]);
+		}
+	}
+
+	static boolean isReference(TypeName typeName){
+		return typeName != TypeName.INTEGER && typeName != TypeName.BOOLEAN;
+	}
+
 }
@@ -0,0 +1,406 @@
+package compiler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import compiler.AST.ASTNode;
+import compiler.AST.AssignmentStatement;
+import compiler.AST.BinaryChain;
+import compiler.AST.BinaryExpression;
+import compiler.AST.Block;
+import compiler.AST.BooleanLitExpression;
+import compiler.AST.Chain;
+import compiler.AST.ChainElem;
+import compiler.AST.ConstantExpression;
+import compiler.AST.Dec;
+import compiler.AST.Expression;
+import compiler.AST.FilterOpChain;
+import compiler.AST.FrameOpChain;
+import compiler.AST.IdentChain;
+import compiler.AST.IdentExpression;
+import compiler.AST.IfStatement;
+import compiler.AST.ImageOpChain;
+import compiler.AST.IntLitExpression;
+import compiler.AST.ParallelStatement;
+import compiler.AST.Program;
+import compiler.AST.SleepStatement;
+import compiler.AST.Statement;
+import compiler.AST.Tuple;
+import compiler.AST.WhileStatement;
+import compiler.AST.Type.TypeName;
+
+import static compiler.AST.Type.TypeName.IMAGE;
+import static compiler.AST.Type.TypeName.INTEGER;
+import static compiler.Scanner.Kind.*;
+
+/**
+ * Global value numbering of image computations. Each image-valued
+ * BinaryExpression, and each chain applying a filter with -> or an image op,
+ * is keyed on its operator, the definitions of its operands and its tuple
+ * args. A variable stands for its current definition, which changes with
+ * every IdentLValue, every IdentChain on the right of an arrow and every
+ * declaration. A computation whose key is already available is replaced by
+ * a load of the temporary the earlier result was saved in.
+ *
+ * Availability follows the structure of the program. Values computed
+ * before an if or while stay available inside it. Values computed in the
+ * body of an if are available afterwards only on the path through the
+ * body; such an image value is reused through a temporary that is cleared
+ * before the if and recomputed when it is still null. Values computed in a
+ * loop body are not used after the loop.
+ *
+ * Reusing a result makes two variables refer to the same image, so the
+ * analysis does nothing for a program that mutates images with |-> or
+ * compares images.
+ */
+public class CommonSubexpressionAnalysis {
+
+	/** A value computed by one or more nodes and kept in a temporary. */
+	static class Value {
+		final TypeName type;
+		int temp = -1;
+		boolean reused = false;
+
+		Value(TypeName type) {
+			this.type = type;
+		}
+	}
+
+	/** A value in a scope, and whether it has been computed on every path to the scope. */
+	static class Available {
+		final Value value;
+		final boolean full;
+
+		Available(Value value, boolean full) {
+			this.value = value;
+			this.full = full;
+		}
+	}
+
+	final Map<Dec, Integer> ids = new IdentityHashMap<Dec, Integer>();
+	final Map<Dec, Integer> versions = new IdentityHashMap<Dec, Integer>();
+	int nextVersion = 0;
+
+	final Deque<Map<String, Available>> scopes = new ArrayDeque<Map<String, Available>>();
+
+	final Map<ASTNode, Value> saved = new IdentityHashMap<ASTNode, Value>();
+	final Map<ASTNode, Value> reused = new IdentityHashMap<ASTNode, Value>();
+	final Map<ASTNode, Value> guarded = new IdentityHashMap<ASTNode, Value>();
+	final Map<IfStatement, List<Value>> resets = new IdentityHashMap<IfStatement, List<Value>>();
+	final List<Value> values = new ArrayList<Value>();
+	final List<TypeName> tempTypes = new ArrayList<TypeName>();
+
+	public static CommonSubexpressionAnalysis analyze(Program program) throws Exception {
+		CommonSubexpressionAnalysis analysis = new CommonSubexpressionAnalysis();
+		LoopInvariantAnalysis writes = LoopInvariantAnalysis.scan(program.getB());
+		if (writes.mutatesImages || writes.comparesImages) {
+			return analysis;
+		}
+		analysis.scopes.push(new HashMap<String, Available>());
+		analysis.block(program.getB());
+		for (Value value : analysis.values) {
+			if (value.reused) {
+				value.temp = analysis.tempTypes.size();
+				analysis.tempTypes.add(value.type);
+			}
+		}
+		return analysis;
+	}
+
+	/** Types of the temporaries, indexed by temp number. */
+	public List<TypeName> getTempTypes() {
+		return tempTypes;
+	}
+
+	/** Returns the temp whose value replaces node, or null. */
+	public Integer getReused(ASTNode node) {
+		return tempOf(reused.get(node));
+	}
+
+	/** Returns the temp node may be loaded from if it is not null, or null. */
+	public Integer getGuarded(ASTNode node) {
+		return tempOf(guarded.get(node));
+	}
+
+	/** Returns the temp the value of node must be saved in, or null. */
+	public Integer getSaved(ASTNode node) {
+		return tempOf(saved.get(node));
+	}
+
+	/** Returns the temps to clear before ifStatement. */
+	public List<Integer> getResets(IfStatement ifStatement) {
+		List<Value> values = resets.get(ifStatement);
+		if (values == null) {
+			return Collections.emptyList();
+		}
+		List<Integer> temps = new ArrayList<Integer>();
+		for (Value value : values) {
+			if (value.temp >= 0) {
+				temps.add(value.temp);
+			}
+		}
+		return temps;
+	}
+
+	static Integer tempOf(Value value) {
+		return (value == null || value.temp < 0) ? null : value.temp;
+	}
+
+	void write(Dec dec) {
+		versions.put(dec, ++nextVersion);
+	}
+
+	String read(Dec dec) {
+		Integer id = ids.get(dec);
+		if (id == null) {
+			id = ids.size();
+			ids.put(dec, id);
+		}
+		Integer version = versions.get(dec);
+		return "v" + id + "." + (version == null ? 0 : version);
+	}
+
+	Available lookup(String key) {
+		for (Map<String, Available> scope : scopes) {
+			Available available = scope.get(key);
+			if (available != null) {
+				return available;
+			}
+		}
+		return null;
+	}
+
+	void block(Block block) throws Exception {
+		for (Dec dec : block.getDecs()) {
+			write(dec);
+		}
+		for (Statement statement : block.getStatements()) {
+			statement(statement);
+		}
+	}
+
+	void statement(Statement statement) throws Exception {
+		if (statement instanceof AssignmentStatement) {
+			AssignmentStatement assignment = (AssignmentStatement) statement;
+			expression(assignment.getE());
+			write(assignment.getVar().getDec());
+		} else if (statement instanceof BinaryChain) {
+			chain((Chain) statement);
+		} else if (statement instanceof SleepStatement) {
+			expression(((SleepStatement) statement).getE());
+		} else if (statement instanceof IfStatement) {
+			IfStatement ifStatement = (IfStatement) statement;
+			expression(ifStatement.getE());
+			scopes.push(new HashMap<String, Available>());
+			block(ifStatement.getB());
+			Map<String, Available> inner = scopes.pop();
+			for (Map.Entry<String, Available> entry : inner.entrySet()) {
+				Value value = entry.getValue().value;
+				if (value.type == IMAGE && lookup(entry.getKey()) == null) {
+					scopes.peek().put(entry.getKey(), new Available(value, false));
+					if (!resets.containsKey(ifStatement)) {
+						resets.put(ifStatement, new ArrayList<Value>());
+					}
+					resets.get(ifStatement).add(value);
+				}
+			}
+			for (Dec dec : LoopInvariantAnalysis.scan(ifStatement.getB()).written) {
+				write(dec);
+			}
+		} else if (statement instanceof WhileStatement) {
+			WhileStatement whileStatement = (WhileStatement) statement;
+			// values carried around the loop differ from those on entry
+			List<Dec> written = new ArrayList<Dec>(LoopInvariantAnalysis.scan(whileStatement).written);
+			for (Dec dec : written) {
+				write(dec);
+			}
+			expression(whileStatement.getE());
+			scopes.push(new HashMap<String, Available>());
+			block(whileStatement.getB());
+			scopes.pop();
+			for (Dec dec : written) {
+				write(dec);
+			}
+		} else if (statement instanceof ParallelStatement) {
+			ParallelStatement parallelStatement = (ParallelStatement) statement;
+			// its statements run in no particular order, so none of them
+			// reuses a value that another one computes
+			for (Dec dec : parallelStatement.getB().getDecs()) {
+				write(dec);
+			}
+			for (Statement child : parallelStatement.getB().getStatements()) {
+				scopes.push(new HashMap<String, Available>());
+				statement(child);
+				scopes.pop();
+			}
+			for (Dec dec : LoopInvariantAnalysis.scan(parallelStatement.getB()).written) {
+				write(dec);
+			}
+		}
+	}
+
+	void expression(Expression e) throws Exception {
+		if (e instanceof BinaryExpression) {
+			BinaryExpression be = (BinaryExpression) e;
+			if (be.getTypeName() == IMAGE) {
+				candidate(be);
+			} else {
+				expression(be.getE0());
+				expression(be.getE1());
+			}
+		}
+	}
+
+	void chain(Chain chain) throws Exception {
+		if (!(chain instanceof BinaryChain)) {
+			return;
+		}
+		BinaryChain binaryChain = (BinaryChain) chain;
+		if (isCandidate(binaryChain)) {
+			candidate(binaryChain);
+			return;
+		}
+		chain(binaryChain.getE0());
+		ChainElem e1 = binaryChain.getE1();
+		if (e1 instanceof IdentChain) {
+			write(((IdentChain) e1).getDec());
+		} else {
+			tuple(argOf(e1));
+		}
+	}
+
+	void tuple(Tuple tuple) throws Exception {
+		if (tuple != null) {
+			for (Expression e : tuple.getExprList()) {
+				expression(e);
+			}
+		}
+	}
+
+	static boolean isCandidate(BinaryChain binaryChain) {
+		ChainElem e1 = binaryChain.getE1();
+		return e1 instanceof ImageOpChain || (e1 instanceof FilterOpChain && binaryChain.getArrow().kind == ARROW);
+	}
+
+	static Tuple argOf(ChainElem e1) {
+		if (e1 instanceof FilterOpChain) {
+			return ((FilterOpChain) e1).getArg();
+		}
+		if (e1 instanceof ImageOpChain) {
+			return ((ImageOpChain) e1).getArg();
+		}
+		if (e1 instanceof FrameOpChain) {
+			return ((FrameOpChain) e1).getArg();
+		}
+		return null;
+	}
+
+	/** Visits the operands of a candidate in the order they are evaluated. */
+	void operands(ASTNode node) throws Exception {
+		if (node instanceof BinaryExpression) {
+			expression(((BinaryExpression) node).getE0());
+			expression(((BinaryExpression) node).getE1());
+		} else {
+			BinaryChain binaryChain = (BinaryChain) node;
+			chain(binaryChain.getE0());
+			tuple(argOf(binaryChain.getE1()));
+		}
+	}
+
+	/**
+	 * Decides whether node is computed, reused, or reused if it has been
+	 * computed on the path taken.
+	 */
+	void candidate(ASTNode node) throws Exception {
+		String key = key(node);
+		Available available = (key == null) ? null : lookup(key);
+		if (available != null && available.full) {
+			reused.put(node, available.value);
+			available.value.reused = true;
+			return;
+		}
+		if (available != null) {
+			Value value = available.value;
+			guarded.put(node, value);
+			saved.put(node, value);
+			value.reused = true;
+			// the operands are only evaluated if the value is missing
+			scopes.push(new HashMap<String, Available>());
+			operands(node);
+			scopes.pop();
+			scopes.peek().put(key, new Available(value, true));
+			return;
+		}
+		operands(node);
+		if (key != null) {
+			Value value = new Value(typeOf(node));
+			values.add(value);
+			saved.put(node, value);
+			scopes.peek().put(key, new Available(value, true));
+		}
+	}
+
+	static TypeName typeOf(ASTNode node) {
+		return (node instanceof Expression) ? ((Expression) node).getTypeName() : ((Chain) node).getTypeName();
+	}
+
+	/**
+	 * Returns the value number of node, or null if node writes a variable or
+	 * reads a file or url, which has no value number.
+	 */
+	String key(ASTNode node) {
+		if (node instanceof IntLitExpression) {
+			return "#" + ((IntLitExpression) node).value;
+		}
+		if (node instanceof BooleanLitExpression) {
+			return "#" + ((BooleanLitExpression) node).getValue();
+		}
+		if (node instanceof ConstantExpression) {
+			return node.getFirstToken().kind.name();
+		}
+		if (node instanceof IdentExpression) {
+			return read(((IdentExpression) node).getDec());
+		}
+		if (node instanceof IdentChain) {
+			Dec dec = ((IdentChain) node).getDec();
+			TypeName type = dec.getTypeName();
+			return (type == TypeName.FILE || type == TypeName.URL) ? null : read(dec);
+		}
+		if (node instanceof BinaryExpression) {
+			BinaryExpression be = (BinaryExpression) node;
+			Expression e0 = be.getE0();
+			Expression e1 = be.getE1();
+			if (be.getOp().kind == TIMES && e0.getTypeName() == INTEGER && e1.getTypeName() == IMAGE) {
+				// int * image calls the same runtime op as image * int
+				e0 = be.getE1();
+				e1 = be.getE0();
+			}
+			String k0 = key(e0);
+			String k1 = key(e1);
+			return (k0 == null || k1 == null) ? null : "(" + be.getOp().kind + " " + k0 + " " + k1 + ")";
+		}
+		BinaryChain binaryChain = (BinaryChain) node;
+		if (!isCandidate(binaryChain)) {
+			return null;
+		}
+		String k0 = key(binaryChain.getE0());
+		if (k0 == null) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder("(").append(binaryChain.getE1().getFirstToken().kind).append(' ').append(k0);
+		for (Expression e : argOf(binaryChain.getE1()).getExprList()) {
+			String k = key(e);
+			if (k == null) {
+				return null;
+			}
+			sb.append(' ').append(k);
+		}
+		return sb.append(')').toString();
+	}
+}
@@ -0,0 +1,108 @@
+package compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Client of a CompileDaemon. Sends the sources of programs and writes the
+ * class files it gets back.
+ */
+public class CompileClient implements Closeable {
+
+	/**
+	 * The outcome of compiling one program: either its name and class file,
+	 * or the error that stopped the compiler.
+	 */
+	public static class Result {
+		public final String name;
+		public final byte[] bytecode;
+		public final String error;
+
+		Result(String name, byte[] bytecode, String error) {
+			this.name = name;
+			this.bytecode = bytecode;
+			this.error = error;
+		}
+	}
+
+	final Socket socket;
+	final DataInputStream in;
+	final DataOutputStream out;
+
+	public CompileClient(int port) throws IOException {
+		socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	/**
+	 * Usage: CompileClient [-port n] [-d dir] file...
+	 * Writes dir/name.class for each program, by default into bin like
+	 * Compiler.main, and exits with status 1 if any program has errors.
+	 */
+	public static void main(String[] args) throws Exception {
+		int port = CompileDaemon.DEFAULT_PORT;
+		Path dir = Paths.get("bin");
+		int i = 0;
+		for (; i < args.length - 1 && args[i].startsWith("-"); i += 2) {
+			if (args[i].equals("-port")) {
+				port = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("-d")) {
+				dir = Paths.get(args[i + 1]);
+			} else {
+				break;
+			}
+		}
+		if (i == args.length) {
+			System.err.println("No filename given");
+			System.exit(2);
+		}
+		boolean failed = false;
+		CompileClient client = new CompileClient(port);
+		try {
+			for (; i < args.length; i++) {
+				String source = new String(Files.readAllBytes(Paths.get(args[i])), StandardCharsets.UTF_8);
+				Result result = client.compile(source);
+				if (result.error != null) {
+					System.err.println(args[i] + ": " + result.error);
+					failed = true;
+				} else {
+					ClassFileCache.write(dir.resolve(result.name + ".class"), result.bytecode);
+				}
+			}
+		} finally {
+			client.close();
+		}
+		if (failed) {
+			System.exit(1);
+		}
+	}
+
+	public Result compile(String source) throws IOException {
+		byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+		out.flush();
+		if (in.readByte() == CompileDaemon.ERROR) {
+			return new Result(null, null, in.readUTF());
+		}
+		String name = in.readUTF();
+		byte[] bytecode = new byte[in.readInt()];
+		in.readFully(bytecode);
+		return new Result(name, bytecode, null);
+	}
+
+	public void close() throws IOException {
+		socket.close();
+	}
+}
@@ -0,0 +1,171 @@
+package compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import compiler.AST.Program;
+
+/**
+ * A compiler that stays resident, so that compiling a program costs
+ * neither JVM startup nor running the compiler before it is JIT compiled.
+ *
+ * The daemon listens on a port of the loopback interface. A client sends
+ * any number of requests over one connection and gets a response to each,
+ * in order; connections are served concurrently.
+ * <pre>
+ * request:  int length, length bytes of UTF-8 source
+ * response: byte OK, UTF name, int length, length bytes of class file
+ *       or  byte ERROR, UTF message
+ * </pre>
+ * A program that fails to compile, whatever it throws, gets an ERROR
+ * response and the connection goes on. So does a source longer than
+ * MAX_SOURCE_LENGTH, which is skipped unread. A negative length gets an
+ * ERROR response and ends the connection, since the requests after it
+ * cannot be found.
+ * CompileClient is the client side.
+ */
+public class CompileDaemon {
+
+	public static final int DEFAULT_PORT = 5556;
+	public static final byte OK = 0;
+	public static final byte ERROR = 1;
+	public static final int MAX_SOURCE_LENGTH = 16 << 20;
+	/** The longest message sent, in chars, so that it fits writeUTF. */
+	static final int MAX_MESSAGE_LENGTH = 8192;
+
+	final ServerSocket server;
+	final ExecutorService workers;
+
+	public CompileDaemon(int port, int threads) throws IOException {
+		server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		workers = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Usage: CompileDaemon [port]
+	 */
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		CompileDaemon daemon = new CompileDaemon(port, Runtime.getRuntime().availableProcessors());
+		System.err.println("compile daemon listening on port " + daemon.getPort());
+		daemon.serve();
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Accepts connections until the daemon is closed.
+	 */
+	public void serve() throws IOException {
+		try {
+			while (!server.isClosed()) {
+				final Socket socket;
+				try {
+					socket = server.accept();
+				} catch (IOException e) {
+					if (server.isClosed()) {
+						return;
+					}
+					throw e;
+				}
+				workers.execute(new Runnable() {
+					public void run() {
+						handle(socket);
+					}
+				});
+			}
+		} finally {
+			workers.shutdown();
+		}
+	}
+
+	public void close() throws IOException {
+		server.close();
+	}
+
+	void handle(Socket socket) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					return;
+				}
+				if (length < 0) {
+					error(out, "bad source length " + length);
+					out.flush();
+					return;
+				}
+				if (length > MAX_SOURCE_LENGTH) {
+					skipFully(in, length);
+					error(out, "source of " + length + " bytes exceeds the limit of " + MAX_SOURCE_LENGTH);
+					out.flush();
+					continue;
+				}
+				byte[] source = new byte[length];
+				in.readFully(source);
+				respond(new String(source, StandardCharsets.UTF_8), out);
+				out.flush();
+			}
+		} catch (IOException e) {
+			// the client went away
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing left to do
+			}
+		}
+	}
+
+	static void respond(String source, DataOutputStream out) throws IOException {
+		Program program;
+		byte[] bytecode;
+		try {
+			program = Compiler.parse(source);
+			bytecode = Compiler.generate(program);
+		} catch (Throwable e) {
+			// an Error such as a StackOverflowError only fails this program
+			error(out, e.getClass().getSimpleName() + ": " + e.getMessage());
+			return;
+		}
+		out.writeByte(OK);
+		out.writeUTF(program.getName());
+		out.writeInt(bytecode.length);
+		out.write(bytecode);
+	}
+
+	static void error(DataOutputStream out, String message) throws IOException {
+		if (message.length() > MAX_MESSAGE_LENGTH) {
+			message = message.substring(0, MAX_MESSAGE_LENGTH);
+		}
+		out.writeByte(ERROR);
+		out.writeUTF(message);
+	}
+
+	static void skipFully(DataInputStream in, int length) throws IOException {
+		while (length > 0) {
+			int skipped = in.skipBytes(length);
+			if (skipped == 0) {
+				in.readByte();
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+}
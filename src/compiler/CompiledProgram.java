@@ -0,0 +1,102 @@
+package compiler;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+
+/**
+ * A program compiled and loaded by Compiler.compile.
+ *
+ * The class is loaded once. Instances are created through a MethodHandle
+ * on its constructor, which is resolved when the program is loaded, so
+ * that running the program again costs neither compilation nor reflection.
+ * A CompiledProgram may be shared between threads; each call to
+ * newInstance returns a new instance of the program. A program compiled by
+ * Compiler.specialize can only be instantiated with the arguments it was
+ * specialized for.
+ */
+public class CompiledProgram {
+
+	static final MethodType factoryType = MethodType.methodType(Runnable.class, String[].class);
+
+	final String name;
+	final byte[] bytecode;
+	final Class<?> programClass;
+	final MethodHandle factory;
+	/** The arguments the program is specialized for, or null. */
+	final String[] specializedArgs;
+
+	/**
+	 * The constructor of programClass is found with lookup, which must have
+	 * access to it.
+	 */
+	CompiledProgram(String name, byte[] bytecode, Class<?> programClass, MethodHandles.Lookup lookup, String[] specializedArgs)
+			throws ReflectiveOperationException {
+		this.name = name;
+		this.specializedArgs = specializedArgs;
+		this.bytecode = bytecode;
+		this.programClass = programClass;
+		this.factory = lookup
+				.findConstructor(programClass, MethodType.methodType(void.class, String[].class))
+				.asType(factoryType);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns a copy of the class file of the program.
+	 */
+	public byte[] getBytecode() {
+		return bytecode.clone();
+	}
+
+	public Class<?> getProgramClass() {
+		return programClass;
+	}
+
+	/**
+	 * Returns a new instance of the program, initialized with the given
+	 * command line arguments.
+	 */
+	public Runnable newInstance(String[] args) {
+		if (specializedArgs != null && !Arrays.equals(specializedArgs, args)) {
+			throw new IllegalArgumentException(name + " is specialized for the arguments " + Arrays.toString(specializedArgs));
+		}
+		try {
+			return (Runnable) factory.invokeExact(args);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns a new instance of the program, initialized with the given
+	 * command line arguments, that runs in context. The constructor runs in
+	 * context too, so that the calls it makes to initialize url params are
+	 * logged there.
+	 */
+	public Runnable newInstance(String[] args, PLPRuntimeContext context) {
+		Runnable program;
+		PLPRuntimeContext outer = PLPRuntimeContext.enter(context);
+		try {
+			program = newInstance(args);
+		} finally {
+			PLPRuntimeContext.exit(outer);
+		}
+		return context.bind(program);
+	}
+
+	/**
+	 * Runs a new instance of the program with the given arguments.
+	 */
+	public void run(String[] args) {
+		newInstance(args).run();
+	}
+}
@@ -1,10 +1,14 @@
 package compiler;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
 
 import compiler.AST.ASTNode;
 import compiler.AST.Program;
@@ -13,32 +17,243 @@ public class Compiler {
 
 	static boolean devel = false;
 	static boolean grade = false;
+	/** Set to generate programs through the IR, see IRBuilder. */
+	static boolean useIR = false;
+	/** Set to split the blocks of large programs into methods of their own, see MethodSplitter. */
+	static boolean splitMethods = false;
+	/** Set to run independent statements concurrently, see DataflowAnalysis. */
+	static boolean dataflowParallel = false;
+	/** Indicates whether compile loads programs as hidden classes, see HiddenProgramLoader. */
+	static boolean hiddenClasses = false;
+	/** Set to generate classes that record a PLPRuntimeProfile. */
+	static boolean profiling = false;
+	/** The profiles classes are generated from, by program name, or null. */
+	static Map<String, PLPRuntimeProfile> profiles = null;
+	static String profilesHash = "";
 
+	/**
+	 * Part of the key of ClassFileCache entries. Change it with any change
+	 * to the generated code, so that old entries are not used.
+	 */
+	static final String VERSION = "sp17-49";
+
+	static final int DEFAULT_CACHE_CAPACITY = 256;
+	static final long DEFAULT_CLASS_FILE_CACHE_SIZE = 64L << 20;
+	static final ProgramCache programs = new ProgramCache(DEFAULT_CACHE_CAPACITY);
+
+	/**
+	 * Usage: Compiler [-cache dir] [-cacheSize bytes] [-ir] [-split] [-dataflow] [-instrument] [-useProfile profile] file
+	 * Writes bin/name.class. With -cache, the class file is taken from or
+	 * added to a ClassFileCache in dir. With -ir, the program is generated
+	 * through the IR where it can be. With -split, the large blocks of a
+	 * program that is too large for one method go in methods of their
+	 * own. With -dataflow, independent statements run concurrently. With
+	 * -instrument, the class records a profile of its runs in the file
+	 * named by the system property
+	 * plp.profile, and with -useProfile, it is generated from such a file.
+	 */
 	public static void main(String[] args) throws Exception {
 		String input;
-		if (args.length == 0) {
+		Path cacheDir = null;
+		long cacheSize = DEFAULT_CLASS_FILE_CACHE_SIZE;
+		int i = 0;
+		for (; i < args.length - 1 && args[i].startsWith("-"); i++) {
+			if (args[i].equals("-cache")) {
+				cacheDir = Paths.get(args[++i]);
+			} else if (args[i].equals("-cacheSize")) {
+				cacheSize = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-ir")) {
+				useIR = true;
+			} else if (args[i].equals("-split")) {
+				splitMethods = true;
+			} else if (args[i].equals("-dataflow")) {
+				dataflowParallel = true;
+			} else if (args[i].equals("-instrument")) {
+				profiling = true;
+			} else if (args[i].equals("-useProfile")) {
+				setProfiles(Paths.get(args[++i]));
+			} else {
+				break;
+			}
+		}
+		if (i == args.length) {
 			System.err.println("No filename given");
 			return;
 		}
 		try {
-			input = new String(Files.readAllBytes(Paths.get(args[0])));
+			input = new String(Files.readAllBytes(Paths.get(args[i])));
 		} catch (IOException e) {
-			System.err.println("Problem reading file " + args[0]);
+			System.err.println("Problem reading file " + args[i]);
 			return;
 		}
-		Scanner scanner = new Scanner(input);
+		ClassFileCache cache = null;
+		String key = null;
+		if (cacheDir != null) {
+			cache = new ClassFileCache(cacheDir, cacheSize);
+			key = ClassFileCache.key(input, options());
+			if (cache.copyTo(key, Paths.get("bin")) != null) {
+				return;
+			}
+		}
+		Program program = parse(input);
+		byte[] bytecode = generate(program);
+		String name = program.getName();
+		// the old class file may be a link to an entry of a cache, even
+		// without -cache, so replace it rather than writing into it
+		ClassFileCache.write(Paths.get("bin", name + ".class"), bytecode);
+		if (cache != null) {
+			cache.store(key, name, bytecode);
+		}
+	}
+
+	/**
+	 * Compiles source and loads the resulting class, or returns the program
+	 * already loaded for the same source and options.
+	 */
+	public static CompiledProgram compile(String source) throws Exception {
+		return compile(source, null);
+	}
+
+	/**
+	 * Compiles source specialized for the command line arguments args, so
+	 * that the integer and boolean params that the program never assigns
+	 * are constants in its code, or returns the program already loaded for
+	 * the same source, options and arguments. The program can only be run
+	 * with args.
+	 */
+	public static CompiledProgram specialize(String source, String[] args) throws Exception {
+		return compile(source, args.clone());
+	}
+
+	static CompiledProgram compile(String source, String[] args) throws Exception {
+		// the same bytes loaded as a hidden class or not are different programs
+		String key = hash(options() + ",hidden=" + hiddenClasses + "\n" + (args == null ? "" : argsKey(args)) + source);
+		CompiledProgram compiled = programs.get(key);
+		if (compiled != null) {
+			return compiled;
+		}
+		Program program = parse(source);
+		byte[] bytecode = generate(program, args);
+		if (hiddenClasses) {
+			MethodHandles.Lookup lookup = HiddenProgramLoader.define(bytecode);
+			compiled = new CompiledProgram(program.getName(), bytecode, lookup.lookupClass(), lookup, args);
+		} else {
+			CodeGenUtils.DynamicClassLoader loader = new CodeGenUtils.DynamicClassLoader(Thread.currentThread().getContextClassLoader());
+			compiled = new CompiledProgram(program.getName(), bytecode, loader.define(program.getName(), bytecode),
+					MethodHandles.publicLookup(), args);
+		}
+		return programs.put(key, compiled);
+	}
+
+	/**
+	 * Returns a string that differs for different argument arrays.
+	 */
+	static String argsKey(String[] args) {
+		StringBuilder key = new StringBuilder("args=" + args.length + "\n");
+		for (String arg : args) {
+			key.append(arg.length()).append(':').append(arg).append('\n');
+		}
+		return key.toString();
+	}
+
+	public static void setUseIR(boolean useIR) {
+		Compiler.useIR = useIR;
+	}
+
+	public static void setSplitMethods(boolean splitMethods) {
+		Compiler.splitMethods = splitMethods;
+	}
+
+	public static void setHiddenClasses(boolean hiddenClasses) {
+		Compiler.hiddenClasses = hiddenClasses;
+	}
+
+	public static void setDataflowParallel(boolean dataflowParallel) {
+		Compiler.dataflowParallel = dataflowParallel;
+	}
+
+	public static void setProfiling(boolean profiling) {
+		Compiler.profiling = profiling;
+	}
+
+	/**
+	 * Generates programs from the profiles in file, which PLPRuntimeProfile
+	 * wrote, or as usual if file is null. A program without a profile in
+	 * file is generated as usual.
+	 */
+	public static void setProfiles(Path file) throws IOException {
+		if (file == null) {
+			profiles = null;
+			profilesHash = "";
+		} else {
+			profiles = PLPRuntimeProfile.read(file);
+			profilesHash = hash(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Returns the cache of compiled programs, whose capacity can be changed
+	 * and whose metrics include the number of loaded classes and the size
+	 * of metaspace.
+	 */
+	public static ProgramCache getProgramCache() {
+		return programs;
+	}
+
+	/**
+	 * Scans, parses and type checks source.
+	 */
+	static Program parse(String source) throws Exception {
+		Scanner scanner = new Scanner(source);
 		scanner.scan();
 		Parser parser = new Parser(scanner);
 		ASTNode program = parser.parse();
 		TypeCheckVisitor v = new TypeCheckVisitor();
 		program.visit(v, null);
+		return (Program) program;
+	}
+
+	static byte[] generate(Program program) throws Exception {
+		return generate(program, null);
+	}
+
+	/**
+	 * Generates the class of program, specialized for paramValues unless
+	 * it is null.
+	 */
+	static byte[] generate(Program program, String[] paramValues) throws Exception {
 		CodeGenVisitor cv = new CodeGenVisitor(devel, grade, null);
-		byte[] bytecode = (byte[]) program.visit(cv, null);
-		String name = ((Program) program).getName();
-		String classFileName = "bin/" + name + ".class";
-		OutputStream output = new FileOutputStream(classFileName);
-		output.write(bytecode);
-		output.close();
+		cv.setUseIR(useIR);
+		cv.setSplitMethods(splitMethods);
+		cv.setDataflowParallel(dataflowParallel);
+		cv.setParamValues(paramValues);
+		cv.setProfiling(profiling);
+		if (profiles != null) {
+			cv.setProfile(profiles.get(program.getName()));
+		}
+		return (byte[]) program.visit(cv, null);
+	}
+
+	/**
+	 * Returns the options that change the generated code.
+	 */
+	static String options() {
+		return "devel=" + devel + ",grade=" + grade + ",ir=" + useIR + ",split=" + splitMethods + ",dataflow=" + dataflowParallel + ",profiling=" + profiling
+				+ ",profile=" + profilesHash;
+	}
+
+	static String hash(String s) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest(s.getBytes(StandardCharsets.UTF_8))) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
 	}
 
 }
@@ -0,0 +1,304 @@
+package compiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import compiler.AST.ASTNode;
+import compiler.AST.AssignmentStatement;
+import compiler.AST.BinaryChain;
+import compiler.AST.BinaryExpression;
+import compiler.AST.Block;
+import compiler.AST.Chain;
+import compiler.AST.ChainElem;
+import compiler.AST.Dec;
+import compiler.AST.Expression;
+import compiler.AST.FilterOpChain;
+import compiler.AST.FrameOpChain;
+import compiler.AST.IdentChain;
+import compiler.AST.IdentExpression;
+import compiler.AST.IfStatement;
+import compiler.AST.ImageOpChain;
+import compiler.AST.ParallelStatement;
+import compiler.AST.Program;
+import compiler.AST.SleepStatement;
+import compiler.AST.Statement;
+import compiler.AST.Tuple;
+import compiler.AST.WhileStatement;
+import compiler.AST.Type.TypeName;
+
+import static compiler.AST.Type.TypeName.FILE;
+import static compiler.AST.Type.TypeName.FRAME;
+import static compiler.AST.Type.TypeName.IMAGE;
+import static compiler.AST.Type.TypeName.URL;
+import static compiler.Scanner.Kind.BARARROW;
+import static compiler.Scanner.Kind.KW_SCALE;
+
+/**
+ * Finds the statements of each block that run() starts on another thread,
+ * so that they overlap with the statements after them, and where it waits
+ * for them.
+ *
+ * A statement depends on an earlier one if it reads a variable that the
+ * earlier one writes, or writes a variable that it reads or writes. The
+ * clearing of a dead variable, see LivenessAnalysis, is a write. Frame
+ * ops, frame variables, writing files, sleeping and filters applied in
+ * place are ordered effects: a statement with one depends on every earlier
+ * statement, so that these effects keep their program order and do not
+ * happen if an earlier statement throws. A filter applied in place is one
+ * because a chain stores the same image in each variable it passes, so
+ * that its pixels may be those of any image variable. Reading files and
+ * urls and computing images commute.
+ *
+ * A chain or assignment is forked if it reads or computes an image, has
+ * no ordered effect, and the statement after it does not depend on it,
+ * since a statement that cannot overlap with the next one is not worth a
+ * thread. It is joined before the first later statement of its block that
+ * depends on it, and at the end of the block at the latest. Blocks that
+ * run() is split at are left alone, as they would fork and join in
+ * different methods.
+ */
+public class DataflowAnalysis {
+
+	/** The variables a statement reads and writes, and its effects. */
+	static class Effects {
+		final Set<Dec> reads = newSet();
+		final Set<Dec> writes = newSet();
+		boolean ordered = false;
+		/** Set if the statement reads or computes an image. */
+		boolean heavy = false;
+
+		void add(Effects e) {
+			reads.addAll(e.reads);
+			writes.addAll(e.writes);
+			ordered |= e.ordered;
+			heavy |= e.heavy;
+		}
+	}
+
+	final LivenessAnalysis liveness;
+	final boolean splitting;
+	/** Nodes whose values are loaded rather than computed, see isHeavy. */
+	Set<ASTNode> loaded = Collections.emptySet();
+	final Set<Statement> forked = Collections.newSetFromMap(new IdentityHashMap<Statement, Boolean>());
+	final Map<Statement, List<Statement>> joins = new IdentityHashMap<Statement, List<Statement>>();
+	final Map<Block, List<Statement>> joinsAtEnd = new IdentityHashMap<Block, List<Statement>>();
+
+	/**
+	 * An analysis that forks nothing.
+	 */
+	public DataflowAnalysis() {
+		this(null, false);
+	}
+
+	DataflowAnalysis(LivenessAnalysis liveness, boolean splitting) {
+		this.liveness = liveness;
+		this.splitting = splitting;
+	}
+
+	/**
+	 * @param splitting
+	 *            set if run() is split, see MethodSplitter
+	 */
+	public static DataflowAnalysis analyze(Program program, LivenessAnalysis liveness, boolean splitting) {
+		DataflowAnalysis analysis = new DataflowAnalysis(liveness, splitting);
+		analysis.block(program.getB());
+		return analysis;
+	}
+
+	public boolean hasForks() {
+		return !forked.isEmpty();
+	}
+
+	public boolean isForked(Statement statement) {
+		return forked.contains(statement);
+	}
+
+	/**
+	 * Returns the forked statements to join before statement.
+	 */
+	public List<Statement> getJoins(Statement statement) {
+		return list(joins.get(statement));
+	}
+
+	/**
+	 * Returns the forked statements still running at the end of block.
+	 */
+	public List<Statement> getJoinsAtEnd(Block block) {
+		return list(joinsAtEnd.get(block));
+	}
+
+	/**
+	 * Returns true if the forked statement still reads or computes an image
+	 * when the values of the nodes in loaded are loaded, as loop invariants
+	 * are.
+	 */
+	public boolean isHeavy(Statement statement, Set<ASTNode> loaded) {
+		this.loaded = loaded;
+		try {
+			Effects e = new Effects();
+			if (statement instanceof AssignmentStatement) {
+				expression(((AssignmentStatement) statement).getE(), e);
+			} else {
+				chain((Chain) statement, e);
+			}
+			return e.heavy;
+		} finally {
+			this.loaded = Collections.emptySet();
+		}
+	}
+
+	static List<Statement> list(List<Statement> statements) {
+		return statements == null ? Collections.<Statement> emptyList() : statements;
+	}
+
+	static Set<Dec> newSet() {
+		return Collections.newSetFromMap(new IdentityHashMap<Dec, Boolean>());
+	}
+
+	/**
+	 * Plans block and returns the effects of all of it.
+	 */
+	Effects block(Block block) {
+		Effects all = new Effects();
+		all.writes.addAll(liveness.getReleasedOnEntry(block));
+		List<Statement> statements = block.getStatements();
+		List<Effects> effects = new ArrayList<Effects>();
+		for (Statement statement : statements) {
+			Effects e = statement(statement);
+			effects.add(e);
+			all.add(e);
+		}
+		if (!(splitting && MethodSplitter.isLarge(block))) {
+			plan(block, statements, effects);
+		}
+		return all;
+	}
+
+	void plan(Block block, List<Statement> statements, List<Effects> effects) {
+		List<Integer> running = new ArrayList<Integer>();
+		for (int i = 0; i < statements.size(); i++) {
+			Statement statement = statements.get(i);
+			Effects e = effects.get(i);
+			List<Statement> joined = new ArrayList<Statement>();
+			for (Iterator<Integer> j = running.iterator(); j.hasNext();) {
+				int earlier = j.next();
+				if (dependsOn(e, effects.get(earlier))) {
+					joined.add(statements.get(earlier));
+					j.remove();
+				}
+			}
+			if (!joined.isEmpty()) {
+				joins.put(statement, joined);
+			}
+			boolean simple = statement instanceof Chain || statement instanceof AssignmentStatement;
+			if (simple && e.heavy && !e.ordered && i + 1 < statements.size() && !dependsOn(effects.get(i + 1), e)) {
+				forked.add(statement);
+				running.add(i);
+			}
+		}
+		if (!running.isEmpty()) {
+			List<Statement> joined = new ArrayList<Statement>();
+			for (int i : running) {
+				joined.add(statements.get(i));
+			}
+			joinsAtEnd.put(block, joined);
+		}
+	}
+
+	static boolean dependsOn(Effects later, Effects earlier) {
+		return later.ordered || earlier.ordered || intersects(later.reads, earlier.writes) || intersects(later.writes, earlier.reads)
+				|| intersects(later.writes, earlier.writes);
+	}
+
+	static boolean intersects(Set<Dec> s0, Set<Dec> s1) {
+		for (Dec dec : s0) {
+			if (s1.contains(dec)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	Effects statement(Statement statement) {
+		Effects e = new Effects();
+		if (statement instanceof IfStatement) {
+			expression(((IfStatement) statement).getE(), e);
+			e.add(block(((IfStatement) statement).getB()));
+		} else if (statement instanceof WhileStatement) {
+			expression(((WhileStatement) statement).getE(), e);
+			e.add(block(((WhileStatement) statement).getB()));
+		} else if (statement instanceof ParallelStatement) {
+			// its statements are tasks already
+			for (Statement child : ((ParallelStatement) statement).getB().getStatements()) {
+				e.add(statement(child));
+			}
+		} else if (statement instanceof AssignmentStatement) {
+			expression(((AssignmentStatement) statement).getE(), e);
+			e.writes.add(((AssignmentStatement) statement).getVar().getDec());
+		} else if (statement instanceof SleepStatement) {
+			expression(((SleepStatement) statement).getE(), e);
+			e.ordered = true;
+		} else if (statement instanceof Chain) {
+			chain((Chain) statement, e);
+		}
+		e.writes.addAll(liveness.getReleasedAfter(statement));
+		return e;
+	}
+
+	void expression(Expression expression, Effects e) {
+		if (loaded.contains(expression)) {
+			return;
+		}
+		if (expression instanceof IdentExpression) {
+			e.reads.add(((IdentExpression) expression).getDec());
+		} else if (expression instanceof BinaryExpression) {
+			expression(((BinaryExpression) expression).getE0(), e);
+			expression(((BinaryExpression) expression).getE1(), e);
+			if (expression.getTypeName() == IMAGE) {
+				e.heavy = true;
+			}
+		}
+	}
+
+	void chain(Chain chain, Effects e) {
+		if (loaded.contains(chain)) {
+			return;
+		}
+		if (chain instanceof IdentChain) {
+			TypeName type = ((IdentChain) chain).getTypeName();
+			e.reads.add(((IdentChain) chain).getDec());
+			e.heavy |= type == FILE || type == URL;
+			e.ordered |= type == FRAME;
+			return;
+		}
+		BinaryChain binaryChain = (BinaryChain) chain;
+		chain(binaryChain.getE0(), e);
+		ChainElem e1 = binaryChain.getE1();
+		if (e1 instanceof IdentChain) {
+			Dec dec = ((IdentChain) e1).getDec();
+			e.ordered |= dec.getTypeName() == FRAME || dec.getTypeName() == FILE;
+			e.writes.add(dec);
+		} else if (e1 instanceof FilterOpChain) {
+			tuple(((FilterOpChain) e1).getArg(), e);
+			e.heavy = true;
+			e.ordered |= binaryChain.getArrow().kind == BARARROW;
+		} else if (e1 instanceof FrameOpChain) {
+			tuple(((FrameOpChain) e1).getArg(), e);
+			e.ordered = true;
+		} else if (e1 instanceof ImageOpChain) {
+			tuple(((ImageOpChain) e1).getArg(), e);
+			e.heavy |= e1.getFirstToken().kind == KW_SCALE;
+		}
+	}
+
+	void tuple(Tuple tuple, Effects e) {
+		for (Expression expression : tuple.getExprList()) {
+			expression(expression, e);
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package compiler;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Defines generated programs as hidden classes, which the JVM unloads as
+ * soon as the program is unreachable, instead of when a class loader of
+ * their own is collected.
+ *
+ * A hidden class is defined through a Lookup on a class of the same
+ * package. Generated programs are in the unnamed package, so a host class
+ * there, whose only method returns its own Lookup, is defined once. Hidden
+ * classes exist since Java 15; the API is called reflectively so that the
+ * compiler still runs on older JVMs without this mode.
+ */
+public class HiddenProgramLoader implements Opcodes {
+
+	static final String hostName = "PLPHiddenProgramHost";
+
+	static final Method defineHiddenClass;
+	static final Object noOptions;
+
+	static {
+		Method method = null;
+		Object options = null;
+		try {
+			Class<?> optionClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+			options = Array.newInstance(optionClass, 0);
+			method = Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, options.getClass());
+		} catch (ReflectiveOperationException e) {
+			// before Java 15
+		}
+		defineHiddenClass = method;
+		noOptions = options;
+	}
+
+	static Lookup host;
+
+	public static boolean isSupported() {
+		return defineHiddenClass != null;
+	}
+
+	/**
+	 * Defines and initializes bytecode as a hidden class, and returns a
+	 * Lookup with full access to it.
+	 */
+	public static Lookup define(byte[] bytecode) throws ReflectiveOperationException {
+		if (!isSupported()) {
+			throw new UnsupportedOperationException("hidden classes need Java 15 or later");
+		}
+		return (Lookup) defineHiddenClass.invoke(host(), bytecode, true, noOptions);
+	}
+
+	static synchronized Lookup host() throws ReflectiveOperationException {
+		if (host == null) {
+			CodeGenUtils.DynamicClassLoader loader = new CodeGenUtils.DynamicClassLoader(Thread.currentThread().getContextClassLoader());
+			Class<?> hostClass = loader.define(hostName, generateHost());
+			host = (Lookup) hostClass.getMethod("lookup").invoke(null);
+		}
+		return host;
+	}
+
+	/**
+	 * public class PLPHiddenProgramHost {
+	 *     public static Lookup lookup() { return MethodHandles.lookup(); }
+	 * }
+	 */
+	static byte[] generateHost() {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(52, ACC_PUBLIC + ACC_SUPER, hostName, null, "java/lang/Object", null);
+		String lookupDesc = "()" + org.objectweb.asm.Type.getDescriptor(Lookup.class);
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC + ACC_STATIC, "lookup", lookupDesc, null, null);
+		mv.visitCode();
+		mv.visitMethodInsn(INVOKESTATIC, org.objectweb.asm.Type.getInternalName(MethodHandles.class), "lookup", lookupDesc, false);
+		mv.visitInsn(ARETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+}
@@ -0,0 +1,80 @@
+package compiler.IR;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A basic block: PHI instructions, followed by straight line code,
+ * ending in exactly one terminator (JUMP, BRANCH or RETURN).
+ *
+ * Critical edges are never created, so a block with PHIs only has
+ * predecessors that end in a JUMP.
+ */
+public class BasicBlock {
+
+	final int id;
+	final List<Instruction> instructions = new ArrayList<Instruction>();
+	final List<BasicBlock> predecessors = new ArrayList<BasicBlock>();
+
+	BasicBlock(int id) {
+		this.id = id;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public List<Instruction> getInstructions() {
+		return instructions;
+	}
+
+	/**
+	 * Returns the predecessors of this block. The i-th operand of every PHI
+	 * in this block flows in from the i-th predecessor.
+	 */
+	public List<BasicBlock> getPredecessors() {
+		return predecessors;
+	}
+
+	public List<Instruction> getPhis() {
+		List<Instruction> phis = new ArrayList<Instruction>();
+		for (Instruction instruction : instructions) {
+			if (instruction.op == Op.PHI) {
+				phis.add(instruction);
+			}
+		}
+		return phis;
+	}
+
+	/**
+	 * Returns the terminator, or null while the block is still being built.
+	 */
+	public Instruction getTerminator() {
+		if (instructions.isEmpty()) {
+			return null;
+		}
+		Instruction last = instructions.get(instructions.size() - 1);
+		return last.op.isTerminator() ? last : null;
+	}
+
+	public String getName() {
+		return "b" + id;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(getName()).append(':');
+		if (!predecessors.isEmpty()) {
+			sb.append("  // preds");
+			for (BasicBlock pred : predecessors) {
+				sb.append(' ').append(pred.getName());
+			}
+		}
+		sb.append('\n');
+		for (Instruction instruction : instructions) {
+			sb.append("  ").append(instruction).append('\n');
+		}
+		return sb.toString();
+	}
+}
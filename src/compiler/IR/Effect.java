@@ -0,0 +1,52 @@
+package compiler.IR;
+
+/**
+ * Side effect of an IR instruction, used by optimizations to decide
+ * whether an instruction may be removed, moved or merged with another.
+ */
+public enum Effect {
+	/** No effect; may be removed if unused, moved or merged freely. */
+	NONE(false),
+	/** Otherwise pure, but may throw (integer division, width of a null image). */
+	THROWS(false),
+	/** Returns a freshly allocated image; pure apart from allocation and possible exceptions. */
+	ALLOC(false),
+	/** Queries the screen size, which does not change while a program runs. */
+	SCREEN(false),
+	/** Reads a program parameter, which is stored in a field. */
+	READ_PARAM(false),
+	/** Writes a program parameter. */
+	WRITE_PARAM(true),
+	/** Writes into an existing image (filter ops with a destination, from |->). */
+	MUTATE_IMAGE(true),
+	/** Reads an image from a file or url. */
+	IO_READ(true),
+	/** Writes an image to a file. */
+	IO_WRITE(true),
+	/** Creates, updates or queries a frame on the screen. */
+	FRAME(true),
+	/** Suspends the running thread. */
+	SLEEP(true);
+
+	Effect(boolean ordered) {
+		this.ordered = ordered;
+	}
+
+	final boolean ordered;
+
+	/**
+	 * Returns true if instructions with this effect must keep their
+	 * position relative to every other ordered instruction.
+	 */
+	public boolean isOrdered() {
+		return ordered;
+	}
+
+	/**
+	 * Returns true if an unused instruction with this effect can be deleted
+	 * without changing what the program does or logs.
+	 */
+	public boolean isRemovable() {
+		return this == NONE || this == READ_PARAM;
+	}
+}
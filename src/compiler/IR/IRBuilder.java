@@ -0,0 +1,521 @@
+package compiler.IR;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import compiler.AST.ASTVisitor;
+import compiler.AST.AssignmentStatement;
+import compiler.AST.BinaryChain;
+import compiler.AST.BinaryExpression;
+import compiler.AST.Block;
+import compiler.AST.BooleanLitExpression;
+import compiler.AST.ConstantExpression;
+import compiler.AST.Dec;
+import compiler.AST.Expression;
+import compiler.AST.FilterOpChain;
+import compiler.AST.FrameOpChain;
+import compiler.AST.IdentChain;
+import compiler.AST.IdentExpression;
+import compiler.AST.IdentLValue;
+import compiler.AST.IfStatement;
+import compiler.AST.ImageOpChain;
+import compiler.AST.IntLitExpression;
+import compiler.AST.ParallelStatement;
+import compiler.AST.ParamDec;
+import compiler.AST.Program;
+import compiler.AST.SleepStatement;
+import compiler.AST.Statement;
+import compiler.AST.Tuple;
+import compiler.AST.WhileStatement;
+import compiler.AST.Type.TypeName;
+import compiler.Scanner.Kind;
+
+import static compiler.AST.Type.TypeName.BOOLEAN;
+import static compiler.AST.Type.TypeName.FILE;
+import static compiler.AST.Type.TypeName.FRAME;
+import static compiler.AST.Type.TypeName.IMAGE;
+import static compiler.AST.Type.TypeName.INTEGER;
+import static compiler.AST.Type.TypeName.NONE;
+import static compiler.AST.Type.TypeName.URL;
+
+/**
+ * Lowers a type checked Program to an IRFunction in SSA form.
+ *
+ * SSA is constructed on the fly while walking the AST, following Braun et al.,
+ * "Simple and Efficient Construction of Static Single Assignment Form":
+ * each block records the current definition of every local it assigns,
+ * reads in a block without a definition look through the predecessors, and
+ * loop headers stay unsealed, with incomplete PHIs, until their back edge is
+ * known. PHIs that turn out to merge a single value are removed.
+ *
+ * Expressions and chains return the Instruction defining their value.
+ * When a ChainElem is the right hand side of a BinaryChain, arg is the
+ * value flowing into it; an IdentChain visited with a null arg is a read.
+ */
+public class IRBuilder implements ASTVisitor {
+
+	public static IRFunction lower(Program program) throws Exception {
+		return lower(program, Collections.<Dec, Integer> emptyMap());
+	}
+
+	/**
+	 * Lowers program with the params in constantParams replaced by their
+	 * values, with booleans as 0 or 1.
+	 */
+	public static IRFunction lower(Program program, Map<Dec, Integer> constantParams) throws Exception {
+		IRBuilder builder = new IRBuilder(constantParams);
+		program.visit(builder, null);
+		return builder.function;
+	}
+
+	IRBuilder(Map<Dec, Integer> constantParams) {
+		this.constantParams = constantParams;
+	}
+
+	final Map<Dec, Integer> constantParams;
+
+	IRFunction function;
+	BasicBlock current;
+	int nextId = 0;
+	int nextBlockId = 0;
+	/** arrow of the BinaryChain whose right hand side is being lowered */
+	Kind arrow;
+
+	final Map<BasicBlock, Map<Dec, Instruction>> currentDef = new HashMap<BasicBlock, Map<Dec, Instruction>>();
+	final Map<BasicBlock, Map<Dec, Instruction>> incompletePhis = new HashMap<BasicBlock, Map<Dec, Instruction>>();
+	final Set<BasicBlock> sealed = new HashSet<BasicBlock>();
+
+	BasicBlock newBlock(BasicBlock... predecessors) {
+		BasicBlock block = new BasicBlock(nextBlockId++);
+		for (BasicBlock pred : predecessors) {
+			block.predecessors.add(pred);
+		}
+		function.blocks.add(block);
+		return block;
+	}
+
+	Instruction emit(Op op, TypeName type, Instruction... operands) {
+		Instruction instruction = new Instruction(nextId++, op, type, operands);
+		instruction.block = current;
+		current.instructions.add(instruction);
+		return instruction;
+	}
+
+	Instruction constant(TypeName type, int value) {
+		Instruction instruction = emit(Op.CONST, type);
+		instruction.constant = value;
+		return instruction;
+	}
+
+	void jump(BasicBlock target) {
+		Instruction jump = emit(Op.JUMP, NONE);
+		jump.targets = new BasicBlock[] { target };
+	}
+
+	void branch(Instruction condition, BasicBlock ifTrue, BasicBlock ifFalse) {
+		Instruction branch = emit(Op.BRANCH, NONE, condition);
+		branch.targets = new BasicBlock[] { ifTrue, ifFalse };
+	}
+
+	/* SSA construction */
+
+	void writeVariable(Dec variable, BasicBlock block, Instruction value) {
+		Map<Dec, Instruction> defs = currentDef.get(block);
+		if (defs == null) {
+			defs = new HashMap<Dec, Instruction>();
+			currentDef.put(block, defs);
+		}
+		defs.put(variable, value);
+	}
+
+	Instruction readVariable(Dec variable, BasicBlock block) {
+		Map<Dec, Instruction> defs = currentDef.get(block);
+		if (defs != null && defs.containsKey(variable)) {
+			return defs.get(variable);
+		}
+		return readVariableRecursive(variable, block);
+	}
+
+	Instruction readVariableRecursive(Dec variable, BasicBlock block) {
+		Instruction value;
+		if (!sealed.contains(block)) {
+			value = newPhi(variable, block);
+			Map<Dec, Instruction> incomplete = incompletePhis.get(block);
+			if (incomplete == null) {
+				incomplete = new HashMap<Dec, Instruction>();
+				incompletePhis.put(block, incomplete);
+			}
+			incomplete.put(variable, value);
+		} else if (block.predecessors.size() == 1) {
+			value = readVariable(variable, block.predecessors.get(0));
+		} else if (block.predecessors.isEmpty()) {
+			throw new IllegalStateException(variable.getIdent().getText() + " read before it was declared");
+		} else {
+			Instruction phi = newPhi(variable, block);
+			writeVariable(variable, block, phi);
+			value = addPhiOperands(phi);
+		}
+		writeVariable(variable, block, value);
+		return value;
+	}
+
+	Instruction newPhi(Dec variable, BasicBlock block) {
+		Instruction phi = new Instruction(nextId++, Op.PHI, variable.getTypeName());
+		phi.variable = variable;
+		phi.block = block;
+		block.instructions.add(0, phi);
+		return phi;
+	}
+
+	Instruction addPhiOperands(Instruction phi) {
+		for (BasicBlock pred : phi.block.predecessors) {
+			phi.operands.add(readVariable(phi.variable, pred));
+		}
+		return tryRemoveTrivialPhi(phi);
+	}
+
+	/**
+	 * Replaces phi by the only value other than itself that it merges, if there is one.
+	 */
+	Instruction tryRemoveTrivialPhi(Instruction phi) {
+		Instruction same = null;
+		for (Instruction operand : phi.operands) {
+			if (operand == same || operand == phi) {
+				continue;
+			}
+			if (same != null) {
+				return phi;
+			}
+			same = operand;
+		}
+		if (same == null) {
+			throw new IllegalStateException(phi.variable.getIdent().getText() + " read before it was assigned");
+		}
+		List<Instruction> phiUsers = new ArrayList<Instruction>();
+		for (BasicBlock block : function.blocks) {
+			for (Instruction instruction : block.instructions) {
+				if (instruction != phi && instruction.operands.contains(phi)) {
+					phiUsers.add(instruction);
+					for (int i = 0; i < instruction.operands.size(); i++) {
+						if (instruction.operands.get(i) == phi) {
+							instruction.operands.set(i, same);
+						}
+					}
+				}
+			}
+		}
+		for (Map<Dec, Instruction> defs : currentDef.values()) {
+			for (Map.Entry<Dec, Instruction> def : defs.entrySet()) {
+				if (def.getValue() == phi) {
+					def.setValue(same);
+				}
+			}
+		}
+		phi.block.instructions.remove(phi);
+		for (Instruction user : phiUsers) {
+			if (user.op == Op.PHI && user.block.instructions.contains(user)) {
+				tryRemoveTrivialPhi(user);
+			}
+		}
+		return same;
+	}
+
+	void sealBlock(BasicBlock block) {
+		Map<Dec, Instruction> incomplete = incompletePhis.remove(block);
+		if (incomplete != null) {
+			for (Instruction phi : incomplete.values()) {
+				addPhiOperands(phi);
+			}
+		}
+		sealed.add(block);
+	}
+
+	/* lowering */
+
+	@Override
+	public Object visitProgram(Program program, Object arg) throws Exception {
+		function = new IRFunction(program.getName(), program.getParams());
+		current = newBlock();
+		sealBlock(current);
+		program.getB().visit(this, null);
+		emit(Op.RETURN, NONE);
+		return function;
+	}
+
+	/**
+	 * Lowers the statements in order, which is one of the orders they may
+	 * run in. CodeGenVisitor does not use the IR for programs with
+	 * parallel statements.
+	 */
+	@Override
+	public Object visitParallelStatement(ParallelStatement parallelStatement, Object arg) throws Exception {
+		parallelStatement.getB().visit(this, null);
+		return null;
+	}
+
+	@Override
+	public Object visitParamDec(ParamDec paramDec, Object arg) throws Exception {
+		return null;
+	}
+
+	@Override
+	public Object visitBlock(Block block, Object arg) throws Exception {
+		for (Dec dec : block.getDecs()) {
+			dec.visit(this, null);
+		}
+		for (Statement statement : block.getStatements()) {
+			statement.visit(this, null);
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitDec(Dec declaration, Object arg) throws Exception {
+		TypeName type = declaration.getTypeName();
+		Instruction initial = (type == IMAGE || type == FRAME) ? emit(Op.NULL, type) : constant(type, 0);
+		writeVariable(declaration, current, initial);
+		return null;
+	}
+
+	@Override
+	public Object visitAssignmentStatement(AssignmentStatement assignStatement, Object arg) throws Exception {
+		Instruction value = (Instruction) assignStatement.getE().visit(this, null);
+		assignStatement.getVar().visit(this, value);
+		return null;
+	}
+
+	@Override
+	public Object visitIdentLValue(IdentLValue identX, Object arg) throws Exception {
+		Instruction value = (Instruction) arg;
+		Dec dec = identX.getDec();
+		if (dec instanceof ParamDec) {
+			emit(Op.PUT_PARAM, NONE, value).param = (ParamDec) dec;
+		} else if (dec.getTypeName() == IMAGE) {
+			writeVariable(dec, current, emit(Op.COPY_IMAGE, IMAGE, value));
+		} else {
+			writeVariable(dec, current, value);
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitSleepStatement(SleepStatement sleepStatement, Object arg) throws Exception {
+		Instruction millis = (Instruction) sleepStatement.getE().visit(this, null);
+		emit(Op.SLEEP, NONE, millis);
+		return null;
+	}
+
+	@Override
+	public Object visitIfStatement(IfStatement ifStatement, Object arg) throws Exception {
+		Instruction condition = (Instruction) ifStatement.getE().visit(this, null);
+		BasicBlock before = current;
+		BasicBlock then = newBlock(before);
+		BasicBlock skip = newBlock(before);
+		branch(condition, then, skip);
+		sealBlock(then);
+		sealBlock(skip);
+		current = then;
+		ifStatement.getB().visit(this, null);
+		BasicBlock thenEnd = current;
+		jump(null);
+		current = skip;
+		jump(null);
+		BasicBlock join = newBlock(thenEnd, skip);
+		thenEnd.getTerminator().targets[0] = join;
+		skip.getTerminator().targets[0] = join;
+		sealBlock(join);
+		current = join;
+		return null;
+	}
+
+	@Override
+	public Object visitWhileStatement(WhileStatement whileStatement, Object arg) throws Exception {
+		BasicBlock before = current;
+		jump(null);
+		BasicBlock header = newBlock(before);
+		before.getTerminator().targets[0] = header;
+		current = header;
+		Instruction condition = (Instruction) whileStatement.getE().visit(this, null);
+		BasicBlock body = newBlock(header);
+		branch(condition, body, null);
+		sealBlock(body);
+		current = body;
+		whileStatement.getB().visit(this, null);
+		jump(header);
+		header.predecessors.add(current);
+		sealBlock(header);
+		BasicBlock exit = newBlock(header);
+		header.getTerminator().targets[1] = exit;
+		sealBlock(exit);
+		current = exit;
+		return null;
+	}
+
+	@Override
+	public Object visitBinaryChain(BinaryChain binaryChain, Object arg) throws Exception {
+		Instruction value = (Instruction) binaryChain.getE0().visit(this, null);
+		TypeName type = binaryChain.getE0().getTypeName();
+		if (type == URL) {
+			value = emit(Op.READ_URL, IMAGE, value);
+		} else if (type == FILE) {
+			value = emit(Op.READ_FILE, IMAGE, value);
+		}
+		arrow = binaryChain.getArrow().kind;
+		return binaryChain.getE1().visit(this, value);
+	}
+
+	@Override
+	public Object visitIdentChain(IdentChain identChain, Object arg) throws Exception {
+		Dec dec = identChain.getDec();
+		if (arg == null) {
+			return read(dec);
+		}
+		Instruction value = (Instruction) arg;
+		TypeName type = dec.getTypeName();
+		if (dec instanceof ParamDec) {
+			if (type == FILE) {
+				Instruction file = read(dec);
+				emit(Op.WRITE_FILE, IMAGE, value, file);
+				return file;
+			}
+			emit(Op.PUT_PARAM, NONE, value).param = (ParamDec) dec;
+			return value;
+		}
+		if (type == FRAME) {
+			value = emit(Op.CREATE_OR_SET_FRAME, FRAME, value, read(dec));
+		}
+		writeVariable(dec, current, value);
+		return value;
+	}
+
+	@Override
+	public Object visitFilterOpChain(FilterOpChain filterOpChain, Object arg) throws Exception {
+		Instruction source = (Instruction) arg;
+		Instruction dest = (arrow == Kind.BARARROW) ? source : emit(Op.NULL, IMAGE);
+		Op op;
+		switch (filterOpChain.getFirstToken().kind) {
+		case OP_BLUR: op = Op.BLUR; break;
+		case OP_GRAY: op = Op.GRAY; break;
+		case OP_CONVOLVE: op = Op.CONVOLVE; break;
+		default: throw new IllegalStateException("unexpected filter op " + filterOpChain.getFirstToken().kind);
+		}
+		return emit(op, IMAGE, source, dest);
+	}
+
+	@Override
+	public Object visitFrameOpChain(FrameOpChain frameOpChain, Object arg) throws Exception {
+		Instruction frame = (Instruction) arg;
+		List<Instruction> args = lowerTuple(frameOpChain.getArg());
+		switch (frameOpChain.getFirstToken().kind) {
+		case KW_SHOW: return emit(Op.SHOW, FRAME, frame);
+		case KW_HIDE: return emit(Op.HIDE, FRAME, frame);
+		case KW_MOVE: return emit(Op.MOVE, FRAME, frame, args.get(0), args.get(1));
+		case KW_XLOC: return emit(Op.XLOC, INTEGER, frame);
+		case KW_YLOC: return emit(Op.YLOC, INTEGER, frame);
+		default: throw new IllegalStateException("unexpected frame op " + frameOpChain.getFirstToken().kind);
+		}
+	}
+
+	@Override
+	public Object visitImageOpChain(ImageOpChain imageOpChain, Object arg) throws Exception {
+		Instruction image = (Instruction) arg;
+		List<Instruction> args = lowerTuple(imageOpChain.getArg());
+		switch (imageOpChain.getFirstToken().kind) {
+		case OP_WIDTH: return emit(Op.WIDTH, INTEGER, image);
+		case OP_HEIGHT: return emit(Op.HEIGHT, INTEGER, image);
+		case KW_SCALE: return emit(Op.SCALE, IMAGE, image, args.get(0));
+		default: throw new IllegalStateException("unexpected image op " + imageOpChain.getFirstToken().kind);
+		}
+	}
+
+	@Override
+	public Object visitTuple(Tuple tuple, Object arg) throws Exception {
+		return lowerTuple(tuple);
+	}
+
+	List<Instruction> lowerTuple(Tuple tuple) throws Exception {
+		List<Instruction> values = new ArrayList<Instruction>();
+		for (Expression e : tuple.getExprList()) {
+			values.add((Instruction) e.visit(this, null));
+		}
+		return values;
+	}
+
+	@Override
+	public Object visitBinaryExpression(BinaryExpression binaryExpression, Object arg) throws Exception {
+		Expression e0 = binaryExpression.getE0();
+		Expression e1 = binaryExpression.getE1();
+		Instruction v0 = (Instruction) e0.visit(this, null);
+		Instruction v1 = (Instruction) e1.visit(this, null);
+		Kind kind = binaryExpression.getOp().kind;
+		TypeName t0 = e0.getTypeName();
+		TypeName t1 = e1.getTypeName();
+		TypeName type = binaryExpression.getTypeName();
+		switch (kind) {
+		case LT: case LE: case GT: case GE: case EQUAL: case NOTEQUAL: {
+			boolean reference = t0 != INTEGER && t0 != BOOLEAN;
+			Instruction compare = emit(reference ? Op.ACMP : Op.CMP, BOOLEAN, v0, v1);
+			compare.kind = kind;
+			return compare;
+		}
+		case PLUS:
+			return (type == IMAGE) ? emit(Op.IMAGE_ADD, IMAGE, v0, v1) : emit(Op.ADD, type, v0, v1);
+		case MINUS:
+			return (type == IMAGE) ? emit(Op.IMAGE_SUB, IMAGE, v0, v1) : emit(Op.SUB, type, v0, v1);
+		case TIMES:
+			if (t0 == INTEGER && t1 == IMAGE) {
+				return emit(Op.IMAGE_MUL, IMAGE, v1, v0);
+			}
+			return (type == IMAGE) ? emit(Op.IMAGE_MUL, IMAGE, v0, v1) : emit(Op.MUL, type, v0, v1);
+		case DIV:
+			return (type == IMAGE) ? emit(Op.IMAGE_DIV, IMAGE, v0, v1) : emit(Op.DIV, type, v0, v1);
+		case MOD:
+			return (type == IMAGE) ? emit(Op.IMAGE_MOD, IMAGE, v0, v1) : emit(Op.MOD, type, v0, v1);
+		case AND:
+			return emit(Op.AND, type, v0, v1);
+		case OR:
+			return emit(Op.OR, type, v0, v1);
+		default:
+			throw new IllegalStateException("unexpected operator " + kind);
+		}
+	}
+
+	@Override
+	public Object visitIdentExpression(IdentExpression identExpression, Object arg) throws Exception {
+		return read(identExpression.getDec());
+	}
+
+	Instruction read(Dec dec) {
+		Integer constant = constantParams.get(dec);
+		if (constant != null) {
+			return constant(dec.getTypeName(), constant);
+		}
+		if (dec instanceof ParamDec) {
+			Instruction get = emit(Op.GET_PARAM, dec.getTypeName());
+			get.param = (ParamDec) dec;
+			return get;
+		}
+		return readVariable(dec, current);
+	}
+
+	@Override
+	public Object visitIntLitExpression(IntLitExpression intLitExpression, Object arg) throws Exception {
+		return constant(INTEGER, intLitExpression.value);
+	}
+
+	@Override
+	public Object visitBooleanLitExpression(BooleanLitExpression booleanLitExpression, Object arg) throws Exception {
+		return constant(BOOLEAN, booleanLitExpression.getValue() ? 1 : 0);
+	}
+
+	@Override
+	public Object visitConstantExpression(ConstantExpression constantExpression, Object arg) {
+		Op op = (constantExpression.getFirstToken().kind == Kind.KW_SCREENWIDTH) ? Op.SCREEN_WIDTH : Op.SCREEN_HEIGHT;
+		return emit(op, INTEGER);
+	}
+}
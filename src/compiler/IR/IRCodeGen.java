@@ -0,0 +1,244 @@
+package compiler.IR;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import compiler.AST.Type.TypeName;
+import compiler.CodeGenVisitor;
+
+/**
+ * Generates the JVM code of an IRFunction.
+ *
+ * Pure instructions with a single use in their own block are not given a
+ * local: they are evaluated on the operand stack where they are used.
+ * Every other value lives in a local of its own, and a PHI is resolved by
+ * its predecessors, which push all incoming values before storing any of
+ * them, so the copies behave as the parallel assignment a PHI stands for.
+ */
+public class IRCodeGen implements Opcodes {
+
+	final IRFunction function;
+	final MethodVisitor mv;
+	final Map<Instruction, Integer> slots = new HashMap<Instruction, Integer>();
+	final Map<BasicBlock, Label> labels = new HashMap<BasicBlock, Label>();
+	final Map<Instruction, Boolean> inlined = new HashMap<Instruction, Boolean>();
+	Map<Instruction, List<Instruction>> users;
+	int nextSlot = 1;
+
+	public IRCodeGen(IRFunction function, MethodVisitor mv) {
+		this.function = function;
+		this.mv = mv;
+	}
+
+	/**
+	 * Emits the body of the method, including its final RETURN.
+	 */
+	public void emit() {
+		users = function.computeUsers();
+		for (BasicBlock block : function.blocks) {
+			labels.put(block, new Label());
+			for (Instruction instruction : block.instructions) {
+				if (instruction.hasValue() && !isInlined(instruction)) {
+					slots.put(instruction, nextSlot++);
+				}
+			}
+		}
+		for (BasicBlock block : function.blocks) {
+			mv.visitLabel(labels.get(block));
+			for (Instruction instruction : block.instructions) {
+				if (instruction.op == Op.PHI || isInlined(instruction)) {
+					continue;
+				}
+				if (instruction.op.isTerminator()) {
+					emitTerminator(instruction);
+				} else {
+					emitInstruction(instruction);
+					if (slots.containsKey(instruction)) {
+						if (usersOf(instruction).isEmpty()) {
+							mv.visitInsn(POP);
+							continue;
+						}
+						mv.visitVarInsn(isReference(instruction.type) ? ASTORE : ISTORE, slots.get(instruction));
+					}
+				}
+			}
+		}
+	}
+
+	List<Instruction> usersOf(Instruction instruction) {
+		List<Instruction> list = users.get(instruction);
+		return list == null ? Collections.<Instruction> emptyList() : list;
+	}
+
+	/**
+	 * Returns true if instruction is evaluated at its only use rather than
+	 * stored in a local. An instruction with an effect is only moved if its
+	 * use follows it directly, so that the order of effects is unchanged.
+	 */
+	boolean isInlined(Instruction instruction) {
+		Boolean result = inlined.get(instruction);
+		if (result == null) {
+			result = canInline(instruction);
+			inlined.put(instruction, result);
+		}
+		return result;
+	}
+
+	boolean canInline(Instruction instruction) {
+		if (instruction.op == Op.CONST || instruction.op == Op.NULL) {
+			return true;
+		}
+		if (instruction.op == Op.PHI || !instruction.hasValue()) {
+			return false;
+		}
+		List<Instruction> list = usersOf(instruction);
+		if (list.size() != 1 || list.get(0).block != instruction.block) {
+			return false;
+		}
+		Instruction user = list.get(0);
+		if (instruction.getEffect() == Effect.NONE) {
+			return true;
+		}
+		List<Instruction> instructions = instruction.block.instructions;
+		for (int i = instructions.indexOf(instruction) + 1; instructions.get(i) != user; i++) {
+			Op op = instructions.get(i).op;
+			if (op != Op.CONST && op != Op.NULL) {
+				return false;
+			}
+		}
+		return !isInlined(user) || user.getEffect() != Effect.NONE;
+	}
+
+	static boolean isReference(TypeName type) {
+		return type != TypeName.INTEGER && type != TypeName.BOOLEAN;
+	}
+
+	/**
+	 * Pushes the value of instruction.
+	 */
+	void load(Instruction value) {
+		if (isInlined(value)) {
+			emitInstruction(value);
+		} else {
+			mv.visitVarInsn(isReference(value.type) ? ALOAD : ILOAD, slots.get(value));
+		}
+	}
+
+	void emitInstruction(Instruction instruction) {
+		Op op = instruction.op;
+		switch (op) {
+		case CONST:
+			mv.visitLdcInsn(instruction.constant);
+			return;
+		case NULL:
+			mv.visitInsn(ACONST_NULL);
+			return;
+		case GET_PARAM:
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitFieldInsn(GETFIELD, function.className, instruction.param.getIdent().getText(),
+					instruction.param.getTypeName().getJVMTypeDesc());
+			return;
+		case PUT_PARAM:
+			mv.visitVarInsn(ALOAD, 0);
+			load(instruction.operands.get(0));
+			mv.visitFieldInsn(PUTFIELD, function.className, instruction.param.getIdent().getText(),
+					instruction.param.getTypeName().getJVMTypeDesc());
+			return;
+		case CMP:
+		case ACMP: {
+			Label isFalse = new Label();
+			Label end = new Label();
+			emitCompareJump(instruction, false, isFalse);
+			mv.visitInsn(ICONST_1);
+			mv.visitJumpInsn(GOTO, end);
+			mv.visitLabel(isFalse);
+			mv.visitInsn(ICONST_0);
+			mv.visitLabel(end);
+			return;
+		}
+		default:
+			break;
+		}
+		for (Instruction operand : instruction.operands) {
+			load(operand);
+		}
+		switch (op) {
+		case ADD: mv.visitInsn(IADD); return;
+		case SUB: mv.visitInsn(ISUB); return;
+		case MUL: mv.visitInsn(IMUL); return;
+		case DIV: mv.visitInsn(IDIV); return;
+		case MOD: mv.visitInsn(IREM); return;
+		case AND: mv.visitInsn(IAND); return;
+		case OR: mv.visitInsn(IOR); return;
+		case SLEEP:
+			mv.visitInsn(I2L);
+			break;
+		default:
+			break;
+		}
+		if (!op.isCall()) {
+			throw new IllegalStateException("cannot generate " + instruction);
+		}
+		if (op.invokeOpcode == INVOKEDYNAMIC) {
+			mv.visitInvokeDynamicInsn(op.name, op.desc, CodeGenVisitor.linkerBootstrap);
+		} else {
+			mv.visitMethodInsn(op.invokeOpcode, op.owner, op.name, op.desc, false);
+		}
+	}
+
+	/**
+	 * Generates a jump to target taken when the comparison is jumpIf.
+	 */
+	void emitCompareJump(Instruction compare, boolean jumpIf, Label target) {
+		load(compare.operands.get(0));
+		load(compare.operands.get(1));
+		mv.visitJumpInsn(CodeGenVisitor.compareOpcode(compare.kind, !jumpIf, compare.op == Op.ACMP), target);
+	}
+
+	void emitTerminator(Instruction terminator) {
+		switch (terminator.op) {
+		case RETURN:
+			mv.visitInsn(RETURN);
+			return;
+		case JUMP: {
+			BasicBlock target = terminator.targets[0];
+			List<Instruction> phis = target.getPhis();
+			int index = target.predecessors.indexOf(terminator.block);
+			for (Instruction phi : phis) {
+				load(phi.operands.get(index));
+			}
+			for (int i = phis.size() - 1; i >= 0; i--) {
+				Instruction phi = phis.get(i);
+				mv.visitVarInsn(isReference(phi.type) ? ASTORE : ISTORE, slots.get(phi));
+			}
+			mv.visitJumpInsn(GOTO, labels.get(target));
+			return;
+		}
+		case BRANCH: {
+			Instruction condition = terminator.operands.get(0);
+			Label ifTrue = labels.get(terminator.targets[0]);
+			Label ifFalse = labels.get(terminator.targets[1]);
+			if (condition.op == Op.CONST) {
+				mv.visitJumpInsn(GOTO, condition.constant != 0 ? ifTrue : ifFalse);
+				return;
+			}
+			if ((condition.op == Op.CMP || condition.op == Op.ACMP) && isInlined(condition)) {
+				emitCompareJump(condition, false, ifFalse);
+			} else {
+				load(condition);
+				mv.visitJumpInsn(IFEQ, ifFalse);
+			}
+			mv.visitJumpInsn(GOTO, ifTrue);
+			return;
+		}
+		default:
+			throw new IllegalStateException("not a terminator " + terminator);
+		}
+	}
+}
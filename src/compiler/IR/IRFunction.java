@@ -0,0 +1,74 @@
+package compiler.IR;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import compiler.AST.ParamDec;
+
+/**
+ * The body of a program's run method in SSA form.
+ * Program parameters live in fields of the generated class and are accessed
+ * with GET_PARAM and PUT_PARAM; all other variables are SSA values.
+ */
+public class IRFunction {
+
+	final String className;
+	final List<ParamDec> params;
+	final List<BasicBlock> blocks = new ArrayList<BasicBlock>();
+
+	IRFunction(String className, List<ParamDec> params) {
+		this.className = className;
+		this.params = params;
+	}
+
+	public String getClassName() {
+		return className;
+	}
+
+	public List<ParamDec> getParams() {
+		return params;
+	}
+
+	/**
+	 * Returns the blocks in layout order; the first one is the entry block.
+	 */
+	public List<BasicBlock> getBlocks() {
+		return blocks;
+	}
+
+	public BasicBlock getEntry() {
+		return blocks.get(0);
+	}
+
+	/**
+	 * Returns, for every instruction, the instructions that use its value.
+	 */
+	public Map<Instruction, List<Instruction>> computeUsers() {
+		Map<Instruction, List<Instruction>> users = new HashMap<Instruction, List<Instruction>>();
+		for (BasicBlock block : blocks) {
+			for (Instruction instruction : block.instructions) {
+				for (Instruction operand : instruction.operands) {
+					List<Instruction> list = users.get(operand);
+					if (list == null) {
+						list = new ArrayList<Instruction>();
+						users.put(operand, list);
+					}
+					list.add(instruction);
+				}
+			}
+		}
+		return users;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(className).append(".run\n");
+		for (BasicBlock block : blocks) {
+			sb.append(block);
+		}
+		return sb.toString();
+	}
+}
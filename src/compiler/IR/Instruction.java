@@ -0,0 +1,149 @@
+package compiler.IR;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import compiler.AST.Dec;
+import compiler.AST.ParamDec;
+import compiler.AST.Type.TypeName;
+import compiler.Scanner.Kind;
+
+/**
+ * An IR instruction, which is also the SSA value it defines.
+ * Every instruction is assigned exactly once, and each operand is the
+ * instruction that defined the value used.
+ */
+public class Instruction {
+
+	final int id;
+	Op op;
+	final TypeName type;
+	final List<Instruction> operands = new ArrayList<Instruction>();
+	BasicBlock block;
+
+	/** value of CONST, 0/1 for booleans */
+	int constant;
+	/** relational operator of CMP and ACMP */
+	Kind kind;
+	/** parameter read or written by GET_PARAM and PUT_PARAM */
+	ParamDec param;
+	/** variable merged by PHI */
+	Dec variable;
+	/** successors of JUMP and BRANCH; a BRANCH goes to targets[0] if its operand is true */
+	BasicBlock[] targets = new BasicBlock[0];
+
+	Instruction(int id, Op op, TypeName type, Instruction... operands) {
+		this.id = id;
+		this.op = op;
+		this.type = type;
+		for (Instruction operand : operands) {
+			this.operands.add(operand);
+		}
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public Op getOp() {
+		return op;
+	}
+
+	/**
+	 * Returns the type of the value defined, or NONE if the instruction defines no value.
+	 */
+	public TypeName getType() {
+		return type;
+	}
+
+	public List<Instruction> getOperands() {
+		return operands;
+	}
+
+	public BasicBlock getBlock() {
+		return block;
+	}
+
+	public int getConstant() {
+		return constant;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public ParamDec getParam() {
+		return param;
+	}
+
+	public Dec getVariable() {
+		return variable;
+	}
+
+	public BasicBlock[] getTargets() {
+		return targets;
+	}
+
+	public boolean hasValue() {
+		return type != TypeName.NONE;
+	}
+
+	/**
+	 * Returns the effect of this instruction. A filter op applied with |->
+	 * writes into its destination; otherwise it allocates a new image.
+	 */
+	public Effect getEffect() {
+		if (op.isFilter() && operands.get(1).op != Op.NULL) {
+			return Effect.MUTATE_IMAGE;
+		}
+		return op.getEffect();
+	}
+
+	public String getName() {
+		return "v" + id;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		if (hasValue()) {
+			sb.append(getName()).append(" = ");
+		}
+		sb.append(op);
+		switch (op) {
+		case CONST:
+			sb.append(' ').append(type == TypeName.BOOLEAN ? String.valueOf(constant != 0) : String.valueOf(constant));
+			break;
+		case CMP:
+		case ACMP:
+			sb.append(' ').append(kind);
+			break;
+		case GET_PARAM:
+		case PUT_PARAM:
+			sb.append(' ').append(param.getIdent().getText());
+			break;
+		case PHI:
+			sb.append(' ').append(variable.getIdent().getText());
+			break;
+		default:
+			break;
+		}
+		for (int i = 0; i < operands.size(); i++) {
+			sb.append(i == 0 ? " " : ", ").append(operands.get(i).getName());
+			if (op == Op.PHI) {
+				sb.append(" from ").append(block.getPredecessors().get(i).getName());
+			}
+		}
+		for (BasicBlock target : targets) {
+			sb.append(' ').append(target.getName());
+		}
+		if (hasValue()) {
+			sb.append(" : ").append(type);
+		}
+		Effect effect = getEffect();
+		if (effect != Effect.NONE) {
+			sb.append("  [").append(effect).append(']');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,99 @@
+package compiler.IR;
+
+import static org.objectweb.asm.Opcodes.INVOKEDYNAMIC;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+
+import compiler.PLPRuntimeFilterOps;
+import compiler.PLPRuntimeFrame;
+import compiler.PLPRuntimeImage;
+import compiler.PLPRuntimeImageIO;
+import compiler.PLPRuntimeImageOps;
+
+/**
+ * Operations of the IR. Operations that are implemented by a runtime
+ * call record the method to invoke so that the backend and the
+ * optimizations agree on what each call is and what effect it has.
+ * The image and filter ops are invoked through PLPRuntimeLinker; their
+ * owner is the class implementing them in the scalar backend.
+ */
+public enum Op {
+	/** int or boolean constant */
+	CONST(Effect.NONE),
+	/** null image or frame, the initial value of image and frame variables */
+	NULL(Effect.NONE),
+	/** value of a program parameter */
+	GET_PARAM(Effect.READ_PARAM),
+	/** assigns operand 0 to a program parameter */
+	PUT_PARAM(Effect.WRITE_PARAM),
+	ADD(Effect.NONE), SUB(Effect.NONE), MUL(Effect.NONE), DIV(Effect.THROWS), MOD(Effect.THROWS),
+	AND(Effect.NONE), OR(Effect.NONE),
+	/** compares two int or boolean operands with a relational Kind */
+	CMP(Effect.NONE),
+	/** compares two references for identity with EQUAL or NOTEQUAL */
+	ACMP(Effect.NONE),
+	IMAGE_ADD(Effect.ALLOC, INVOKEDYNAMIC, PLPRuntimeImageOps.JVMName, "add", PLPRuntimeImageOps.addSig),
+	IMAGE_SUB(Effect.ALLOC, INVOKEDYNAMIC, PLPRuntimeImageOps.JVMName, "sub", PLPRuntimeImageOps.subSig),
+	IMAGE_MUL(Effect.ALLOC, INVOKEDYNAMIC, PLPRuntimeImageOps.JVMName, "mul", PLPRuntimeImageOps.mulSig),
+	IMAGE_DIV(Effect.ALLOC, INVOKEDYNAMIC, PLPRuntimeImageOps.JVMName, "div", PLPRuntimeImageOps.divSig),
+	IMAGE_MOD(Effect.ALLOC, INVOKEDYNAMIC, PLPRuntimeImageOps.JVMName, "mod", PLPRuntimeImageOps.modSig),
+	COPY_IMAGE(Effect.ALLOC, INVOKEDYNAMIC, PLPRuntimeImageOps.JVMName, "copyImage", PLPRuntimeImageOps.copyImageSig),
+	SCALE(Effect.ALLOC, INVOKEDYNAMIC, PLPRuntimeImageOps.JVMName, "scale", PLPRuntimeImageOps.scaleSig),
+	/** filter ops take a source and a destination, which is NULL unless the op was applied with |-> */
+	BLUR(Effect.ALLOC, INVOKEDYNAMIC, PLPRuntimeFilterOps.JVMName, "blurOp", PLPRuntimeFilterOps.opSig),
+	GRAY(Effect.ALLOC, INVOKEDYNAMIC, PLPRuntimeFilterOps.JVMName, "grayOp", PLPRuntimeFilterOps.opSig),
+	CONVOLVE(Effect.ALLOC, INVOKEDYNAMIC, PLPRuntimeFilterOps.JVMName, "convolveOp", PLPRuntimeFilterOps.opSig),
+	WIDTH(Effect.THROWS, INVOKEVIRTUAL, PLPRuntimeImage.JVMClassName, "getWidth", PLPRuntimeImageOps.getWidthSig),
+	HEIGHT(Effect.THROWS, INVOKEVIRTUAL, PLPRuntimeImage.JVMClassName, "getHeight", PLPRuntimeImageOps.getHeightSig),
+	READ_FILE(Effect.IO_READ, INVOKESTATIC, PLPRuntimeImageIO.className, "readFromFile", PLPRuntimeImageIO.readFromFileDesc),
+	READ_URL(Effect.IO_READ, INVOKESTATIC, PLPRuntimeImageIO.className, "readFromURL", PLPRuntimeImageIO.readFromURLSig),
+	WRITE_FILE(Effect.IO_WRITE, INVOKESTATIC, PLPRuntimeImageIO.className, "write", PLPRuntimeImageIO.writeImageDesc),
+	CREATE_OR_SET_FRAME(Effect.FRAME, INVOKESTATIC, PLPRuntimeFrame.JVMClassName, "createOrSetFrame", PLPRuntimeFrame.createOrSetFrameSig),
+	SHOW(Effect.FRAME, INVOKEVIRTUAL, PLPRuntimeFrame.JVMClassName, "showImage", PLPRuntimeFrame.showImageDesc),
+	HIDE(Effect.FRAME, INVOKEVIRTUAL, PLPRuntimeFrame.JVMClassName, "hideImage", PLPRuntimeFrame.hideImageDesc),
+	MOVE(Effect.FRAME, INVOKEVIRTUAL, PLPRuntimeFrame.JVMClassName, "moveFrame", PLPRuntimeFrame.moveFrameDesc),
+	XLOC(Effect.FRAME, INVOKEVIRTUAL, PLPRuntimeFrame.JVMClassName, "getXVal", PLPRuntimeFrame.getXValDesc),
+	YLOC(Effect.FRAME, INVOKEVIRTUAL, PLPRuntimeFrame.JVMClassName, "getYVal", PLPRuntimeFrame.getYValDesc),
+	SCREEN_WIDTH(Effect.SCREEN, INVOKESTATIC, PLPRuntimeFrame.JVMClassName, "getScreenWidth", PLPRuntimeFrame.getScreenWidthSig),
+	SCREEN_HEIGHT(Effect.SCREEN, INVOKESTATIC, PLPRuntimeFrame.JVMClassName, "getScreenHeight", PLPRuntimeFrame.getScreenHeightSig),
+	SLEEP(Effect.SLEEP, INVOKESTATIC, "java/lang/Thread", "sleep", "(J)V"),
+	/** merges the values of a variable flowing in from each predecessor of its block */
+	PHI(Effect.NONE),
+	/** terminators */
+	JUMP(Effect.NONE), BRANCH(Effect.NONE), RETURN(Effect.NONE);
+
+	Op(Effect effect) {
+		this(effect, 0, null, null, null);
+	}
+
+	Op(Effect effect, int invokeOpcode, String owner, String name, String desc) {
+		this.effect = effect;
+		this.invokeOpcode = invokeOpcode;
+		this.owner = owner;
+		this.name = name;
+		this.desc = desc;
+	}
+
+	final Effect effect;
+	final int invokeOpcode;
+	final String owner;
+	final String name;
+	final String desc;
+
+	public Effect getEffect() {
+		return effect;
+	}
+
+	/** Returns true if this op is implemented by a call into the runtime. */
+	public boolean isCall() {
+		return owner != null;
+	}
+
+	public boolean isTerminator() {
+		return this == JUMP || this == BRANCH || this == RETURN;
+	}
+
+	public boolean isFilter() {
+		return this == BLUR || this == GRAY || this == CONVOLVE;
+	}
+}
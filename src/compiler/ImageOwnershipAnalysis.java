@@ -0,0 +1,154 @@
+package compiler;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import compiler.AST.AssignmentStatement;
+import compiler.AST.BinaryChain;
+import compiler.AST.Block;
+import compiler.AST.Chain;
+import compiler.AST.ChainElem;
+import compiler.AST.Dec;
+import compiler.AST.Expression;
+import compiler.AST.FilterOpChain;
+import compiler.AST.IdentChain;
+import compiler.AST.IdentExpression;
+import compiler.AST.IfStatement;
+import compiler.AST.ParallelStatement;
+import compiler.AST.Program;
+import compiler.AST.Statement;
+import compiler.AST.WhileStatement;
+
+import static compiler.AST.Type.TypeName.IMAGE;
+import static compiler.Scanner.Kind.BARARROW;
+
+/**
+ * Decides which image assignments need the copy made by
+ * PLPRuntimeImageOps.copyImage.
+ *
+ * The runtime ops never modify their arguments, so two variables referring
+ * to the same image can only be told apart if the image is mutated in place
+ * with |-> or if images are compared with == or !=. The analysis collects
+ * the variables whose image may be mutated, and extends that set with every
+ * variable that may share an image with one of them, through an assignment
+ * from another variable or a chain that stores an image without copying it.
+ * An assignment whose target and source are outside that set does not need
+ * the copy, unless the program compares images.
+ *
+ * Whether the value of an expression is a fresh image that nothing else
+ * refers to is decided by CodeGenVisitor, since that depends on which
+ * values are kept in temporaries.
+ */
+public class ImageOwnershipAnalysis {
+
+	final Map<Dec, Set<Dec>> aliases = new IdentityHashMap<Dec, Set<Dec>>();
+	final Set<Dec> mutated = newDecSet();
+	final Set<Dec> shared = newDecSet();
+	boolean comparesImages;
+
+	public static ImageOwnershipAnalysis analyze(Program program) throws Exception {
+		ImageOwnershipAnalysis analysis = new ImageOwnershipAnalysis();
+		analysis.comparesImages = LoopInvariantAnalysis.scan(program.getB()).comparesImages;
+		analysis.block(program.getB());
+		Deque<Dec> work = new ArrayDeque<Dec>(analysis.mutated);
+		analysis.shared.addAll(analysis.mutated);
+		while (!work.isEmpty()) {
+			for (Dec alias : analysis.aliasesOf(work.pop())) {
+				if (analysis.shared.add(alias)) {
+					work.push(alias);
+				}
+			}
+		}
+		return analysis;
+	}
+
+	/**
+	 * Returns true if the image assigned by assignment may be stored without
+	 * a copy even if something else refers to it.
+	 */
+	public boolean maySkipCopy(AssignmentStatement assignment) {
+		if (comparesImages || shared.contains(assignment.getVar().getDec())) {
+			return false;
+		}
+		Expression e = assignment.getE();
+		return !(e instanceof IdentExpression) || !shared.contains(((IdentExpression) e).getDec());
+	}
+
+	Set<Dec> aliasesOf(Dec dec) {
+		Set<Dec> set = aliases.get(dec);
+		return set == null ? Collections.<Dec> emptySet() : set;
+	}
+
+	static Set<Dec> newDecSet() {
+		return Collections.newSetFromMap(new IdentityHashMap<Dec, Boolean>());
+	}
+
+	void alias(Dec d0, Dec d1) {
+		if (!aliases.containsKey(d0)) {
+			aliases.put(d0, newDecSet());
+		}
+		if (!aliases.containsKey(d1)) {
+			aliases.put(d1, newDecSet());
+		}
+		aliases.get(d0).add(d1);
+		aliases.get(d1).add(d0);
+	}
+
+	void block(Block block) {
+		for (Statement statement : block.getStatements()) {
+			if (statement instanceof AssignmentStatement) {
+				AssignmentStatement assignment = (AssignmentStatement) statement;
+				if (assignment.getE() instanceof IdentExpression && assignment.getE().getTypeName() == IMAGE) {
+					alias(assignment.getVar().getDec(), ((IdentExpression) assignment.getE()).getDec());
+				}
+			} else if (statement instanceof BinaryChain) {
+				roots((Chain) statement);
+			} else if (statement instanceof IfStatement) {
+				block(((IfStatement) statement).getB());
+			} else if (statement instanceof WhileStatement) {
+				block(((WhileStatement) statement).getB());
+			} else if (statement instanceof ParallelStatement) {
+				block(((ParallelStatement) statement).getB());
+			}
+		}
+	}
+
+	/**
+	 * Returns the variables that refer to the image chain evaluates to,
+	 * recording the aliases and mutations made along the chain. A filter
+	 * applied with -> and an image op yield a new image; a file or url
+	 * yields a newly read one.
+	 */
+	Set<Dec> roots(Chain chain) {
+		if (chain instanceof IdentChain) {
+			Dec dec = ((IdentChain) chain).getDec();
+			Set<Dec> set = newDecSet();
+			if (dec.getTypeName() == IMAGE) {
+				set.add(dec);
+			}
+			return set;
+		}
+		BinaryChain binaryChain = (BinaryChain) chain;
+		Set<Dec> roots = roots(binaryChain.getE0());
+		ChainElem e1 = binaryChain.getE1();
+		if (e1 instanceof IdentChain) {
+			Dec dec = ((IdentChain) e1).getDec();
+			if (dec.getTypeName() == IMAGE) {
+				for (Dec root : roots) {
+					alias(dec, root);
+				}
+				roots.add(dec);
+			}
+			return roots;
+		}
+		if (e1 instanceof FilterOpChain && binaryChain.getArrow().kind == BARARROW) {
+			mutated.addAll(roots);
+			return roots;
+		}
+		return newDecSet();
+	}
+}
@@ -0,0 +1,611 @@
+package compiler;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import compiler.AST.ASTVisitor;
+import compiler.AST.AssignmentStatement;
+import compiler.AST.BinaryChain;
+import compiler.AST.BinaryExpression;
+import compiler.AST.Block;
+import compiler.AST.BooleanLitExpression;
+import compiler.AST.ConstantExpression;
+import compiler.AST.Dec;
+import compiler.AST.Expression;
+import compiler.AST.FilterOpChain;
+import compiler.AST.FrameOpChain;
+import compiler.AST.IdentChain;
+import compiler.AST.IdentExpression;
+import compiler.AST.IdentLValue;
+import compiler.AST.IfStatement;
+import compiler.AST.ImageOpChain;
+import compiler.AST.IntLitExpression;
+import compiler.AST.ParallelStatement;
+import compiler.AST.ParamDec;
+import compiler.AST.Program;
+import compiler.AST.SleepStatement;
+import compiler.AST.Statement;
+import compiler.AST.Tuple;
+import compiler.AST.WhileStatement;
+import compiler.AST.Type.TypeName;
+import compiler.Scanner.Kind;
+
+import static compiler.AST.Type.TypeName.IMAGE;
+import static compiler.AST.Type.TypeName.INTEGER;
+import static compiler.Scanner.Kind.*;
+
+/**
+ * Runs a type checked Program by walking its AST, with the same runtime
+ * calls as the code generated by CodeGenVisitor, so that a program that
+ * runs only briefly costs neither code generation nor class loading.
+ *
+ * Executed statements and loop back-edges are counted. Once either count
+ * reaches its threshold, the program is compiled on a background thread
+ * with an osr$i method for each while statement. At the next back-edge
+ * after the class is ready, the values of the variables are copied into
+ * an instance of it, the rest of the loop runs as osr$i, and the values
+ * are copied back before the interpreter goes on after the loop. An outer
+ * loop is transferred at its own next back-edge.
+ *
+ * Values are Integer, Boolean, File, URL, PLPRuntimeImage and
+ * PLPRuntimeFrame. The interpreter does not log assignments, so the class
+ * is compiled with DEVEL and GRADE unset.
+ */
+public class Interpreter implements ASTVisitor {
+
+	/** Back-edges after which the program is compiled. */
+	static int backEdgeThreshold = 1000;
+	/** Statements executed after which the program is compiled. */
+	static int statementThreshold = 10000;
+
+	static final ExecutorService tierCompiler = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "PLP tier compiler");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/** The compiled program, and the fields of its variables. */
+	static class Tier {
+		final Object instance;
+		final Map<Dec, Field> fields = new IdentityHashMap<Dec, Field>();
+		final Map<WhileStatement, Method> entries = new IdentityHashMap<WhileStatement, Method>();
+
+		Tier(Object instance) {
+			this.instance = instance;
+		}
+	}
+
+	/** Passed to the right end of a chain; inPlace is set for |->. */
+	static class Incoming {
+		final Object value;
+		final boolean inPlace;
+
+		Incoming(Object value, boolean inPlace) {
+			this.value = value;
+			this.inPlace = inPlace;
+		}
+	}
+
+	final Program program;
+	final String[] args;
+	final Map<Dec, Object> values = new IdentityHashMap<Dec, Object>();
+	final ImageOwnershipAnalysis ownership;
+	final LivenessAnalysis liveness;
+
+	long statements, backEdges;
+	int transfers;
+	Future<Tier> tier;
+	/** Set if the program could not be compiled or loaded. */
+	boolean tierFailed;
+
+	public Interpreter(Program program, String[] args) throws Exception {
+		this.program = program;
+		this.args = args;
+		this.ownership = ImageOwnershipAnalysis.analyze(program);
+		this.liveness = LivenessAnalysis.analyze(program);
+	}
+
+	/**
+	 * Usage: Interpreter file args...
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println("No filename given");
+			return;
+		}
+		String source = new String(Files.readAllBytes(Paths.get(args[0])));
+		Program program = Compiler.parse(source);
+		new Interpreter(program, Arrays.copyOfRange(args, 1, args.length)).run();
+	}
+
+	public void run() throws Exception {
+		program.visit(this, null);
+	}
+
+	/**
+	 * Returns the number of statements executed by the interpreter, not
+	 * counting those run by the compiled tier.
+	 */
+	public long getStatementCount() {
+		return statements;
+	}
+
+	/**
+	 * Returns the number of loops whose execution was finished by the
+	 * compiled tier.
+	 */
+	public int getTransferCount() {
+		return transfers;
+	}
+
+	@Override
+	public Object visitProgram(Program program, Object arg) throws Exception {
+		int index = 0;
+		for (ParamDec dec : program.getParams()) {
+			dec.visit(this, index++);
+		}
+		program.getB().visit(this, null);
+		return null;
+	}
+
+	/**
+	 * Runs the statements in order, which is one of the orders they may
+	 * run in.
+	 */
+	@Override
+	public Object visitParallelStatement(ParallelStatement parallelStatement, Object arg) throws Exception {
+		parallelStatement.getB().visit(this, null);
+		return null;
+	}
+
+	@Override
+	public Object visitParamDec(ParamDec paramDec, Object arg) throws Exception {
+		int index = (Integer) arg;
+		switch (paramDec.getTypeName()) {
+			case INTEGER:
+				values.put(paramDec, Integer.parseInt(args[index]));
+				break;
+			case BOOLEAN:
+				values.put(paramDec, Boolean.parseBoolean(args[index]));
+				break;
+			case FILE:
+				values.put(paramDec, new File(args[index]));
+				break;
+			case URL:
+				values.put(paramDec, PLPRuntimeImageIO.getURL(args, index));
+				break;
+			default:
+				break;
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitBlock(Block block, Object arg) throws Exception {
+		for (Dec dec : block.getDecs()) {
+			dec.visit(this, null);
+		}
+		try {
+			release(liveness.getReleasedOnEntry(block));
+			for (Statement statement : block.getStatements()) {
+				statements++;
+				statement.visit(this, null);
+				release(liveness.getReleasedAfter(statement));
+			}
+		} finally {
+			for (Dec dec : block.getDecs()) {
+				values.remove(dec);
+			}
+		}
+		return null;
+	}
+
+	void release(List<Dec> decs) {
+		for (Dec dec : decs) {
+			values.put(dec, null);
+		}
+	}
+
+	@Override
+	public Object visitDec(Dec declaration, Object arg) throws Exception {
+		switch (declaration.getTypeName()) {
+			case INTEGER:
+				values.put(declaration, 0);
+				break;
+			case BOOLEAN:
+				values.put(declaration, false);
+				break;
+			default:
+				values.put(declaration, null);
+				break;
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitAssignmentStatement(AssignmentStatement assignStatement, Object arg) throws Exception {
+		Expression e = assignStatement.getE();
+		Object value = e.visit(this, null);
+		// copied unless CodeGenVisitor.isOwned would skip the copy
+		if (e.getTypeName() == IMAGE && !(assignStatement.getVar().getDec() instanceof ParamDec)
+				&& !(e instanceof BinaryExpression) && !ownership.maySkipCopy(assignStatement)) {
+			value = PLPRuntimeImageOps.copyImage((PLPRuntimeImage) value);
+		}
+		return assignStatement.getVar().visit(this, value);
+	}
+
+	@Override
+	public Object visitIdentLValue(IdentLValue identX, Object arg) throws Exception {
+		values.put(identX.getDec(), arg);
+		return null;
+	}
+
+	@Override
+	public Object visitIfStatement(IfStatement ifStatement, Object arg) throws Exception {
+		if ((Boolean) ifStatement.getE().visit(this, null)) {
+			ifStatement.getB().visit(this, null);
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitWhileStatement(WhileStatement whileStatement, Object arg) throws Exception {
+		while ((Boolean) whileStatement.getE().visit(this, null)) {
+			whileStatement.getB().visit(this, null);
+			backEdges++;
+			if (!tierFailed && tierUp(whileStatement)) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Called at a back-edge of whileStatement. Starts compiling the program
+	 * if it is hot, and runs the rest of the loop compiled if the class is
+	 * ready. Returns true if it did.
+	 */
+	boolean tierUp(WhileStatement whileStatement) throws Exception {
+		if (tier == null) {
+			if (backEdges >= backEdgeThreshold || statements >= statementThreshold) {
+				tier = tierCompiler.submit(new Callable<Tier>() {
+					public Tier call() throws Exception {
+						return compile();
+					}
+				});
+			}
+			return false;
+		}
+		if (!tier.isDone()) {
+			return false;
+		}
+		Tier compiled;
+		try {
+			compiled = tier.get();
+		} catch (ExecutionException e) {
+			// keep interpreting
+			tierFailed = true;
+			return false;
+		}
+		transfer(compiled, whileStatement);
+		transfers++;
+		return true;
+	}
+
+	/**
+	 * Generates and loads the program with an osr$i method for each loop,
+	 * and creates the instance that runs them.
+	 */
+	Tier compile() throws Exception {
+		List<WhileStatement> loops = new ArrayList<WhileStatement>();
+		collectLoops(program.getB(), loops);
+		CodeGenVisitor cv = new CodeGenVisitor(false, false, null);
+		cv.setOsrLoops(loops);
+		byte[] bytecode = (byte[]) program.visit(cv, null);
+		CodeGenUtils.DynamicClassLoader loader = new CodeGenUtils.DynamicClassLoader(Interpreter.class.getClassLoader());
+		Class<?> programClass = loader.define(program.getName(), bytecode);
+		Tier compiled = new Tier(programClass.getConstructor(String[].class).newInstance((Object) args));
+		for (ParamDec dec : program.getParams()) {
+			compiled.fields.put(dec, accessible(programClass.getDeclaredField(dec.getIdent().getText())));
+		}
+		for (int i = 0; i < loops.size(); i++) {
+			compiled.entries.put(loops.get(i), programClass.getMethod("osr$" + i));
+			collectFields(loops.get(i).getB(), cv, programClass, compiled);
+		}
+		collectFields(program.getB(), cv, programClass, compiled);
+		return compiled;
+	}
+
+	static Field accessible(Field field) {
+		field.setAccessible(true);
+		return field;
+	}
+
+	static void collectLoops(Block block, List<WhileStatement> loops) {
+		for (Statement statement : block.getStatements()) {
+			if (statement instanceof WhileStatement) {
+				loops.add((WhileStatement) statement);
+				collectLoops(((WhileStatement) statement).getB(), loops);
+			} else if (statement instanceof IfStatement) {
+				collectLoops(((IfStatement) statement).getB(), loops);
+			} else if (statement instanceof ParallelStatement) {
+				collectLoops(((ParallelStatement) statement).getB(), loops);
+			}
+		}
+	}
+
+	static void collectFields(Block block, CodeGenVisitor cv, Class<?> programClass, Tier compiled) throws NoSuchFieldException {
+		for (Dec dec : block.getDecs()) {
+			compiled.fields.put(dec, accessible(programClass.getDeclaredField(cv.getFieldName(dec))));
+		}
+		for (Statement statement : block.getStatements()) {
+			if (statement instanceof WhileStatement) {
+				collectFields(((WhileStatement) statement).getB(), cv, programClass, compiled);
+			} else if (statement instanceof IfStatement) {
+				collectFields(((IfStatement) statement).getB(), cv, programClass, compiled);
+			} else if (statement instanceof ParallelStatement) {
+				collectFields(((ParallelStatement) statement).getB(), cv, programClass, compiled);
+			}
+		}
+	}
+
+	/**
+	 * Runs the rest of whileStatement, from its test on, in the compiled
+	 * tier. The variables in scope are exactly those in values.
+	 */
+	void transfer(Tier compiled, WhileStatement whileStatement) throws Exception {
+		for (Map.Entry<Dec, Object> entry : values.entrySet()) {
+			compiled.fields.get(entry.getKey()).set(compiled.instance, entry.getValue());
+		}
+		try {
+			compiled.entries.get(whileStatement).invoke(compiled.instance);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw (Error) cause;
+		}
+		for (Map.Entry<Dec, Object> entry : values.entrySet()) {
+			entry.setValue(compiled.fields.get(entry.getKey()).get(compiled.instance));
+		}
+	}
+
+	@Override
+	public Object visitSleepStatement(SleepStatement sleepStatement, Object arg) throws Exception {
+		Thread.sleep((Integer) sleepStatement.getE().visit(this, null));
+		return null;
+	}
+
+	@Override
+	public Object visitBinaryChain(BinaryChain binaryChain, Object arg) throws Exception {
+		Object value = binaryChain.getE0().visit(this, null);
+		switch (binaryChain.getE0().getTypeName()) {
+			case URL:
+				value = PLPRuntimeImageIO.readFromURL((URL) value);
+				break;
+			case FILE:
+				value = PLPRuntimeImageIO.readFromFile((File) value);
+				break;
+			default:
+				break;
+		}
+		return binaryChain.getE1().visit(this, new Incoming(value, binaryChain.getArrow().kind == BARARROW));
+	}
+
+	/**
+	 * Returns the value of a variable at the left end of a chain, or stores
+	 * into it the value arriving at the right end.
+	 */
+	@Override
+	public Object visitIdentChain(IdentChain identChain, Object arg) throws Exception {
+		Dec dec = identChain.getDec();
+		if (!(arg instanceof Incoming)) {
+			return values.get(dec);
+		}
+		Object value = ((Incoming) arg).value;
+		if (dec instanceof ParamDec) {
+			if (dec.getTypeName() == INTEGER) {
+				values.put(dec, value);
+			} else if (dec.getTypeName() == TypeName.FILE) {
+				PLPRuntimeImageIO.write((PLPRuntimeImage) value, (File) values.get(dec));
+			}
+			return values.get(dec);
+		}
+		if (dec.getTypeName() == TypeName.FRAME) {
+			value = PLPRuntimeFrame.createOrSetFrame((PLPRuntimeImage) value, (PLPRuntimeFrame) values.get(dec));
+		}
+		values.put(dec, value);
+		return value;
+	}
+
+	@Override
+	public Object visitFilterOpChain(FilterOpChain filterOpChain, Object arg) throws Exception {
+		Incoming incoming = (Incoming) arg;
+		PLPRuntimeImage image = (PLPRuntimeImage) incoming.value;
+		PLPRuntimeImage dest = incoming.inPlace ? image : null;
+		switch (filterOpChain.getFirstToken().kind) {
+			case OP_BLUR:
+				return PLPRuntimeFilterOps.blurOp(image, dest);
+			case OP_GRAY:
+				return PLPRuntimeFilterOps.grayOp(image, dest);
+			case OP_CONVOLVE:
+				return PLPRuntimeFilterOps.convolveOp(image, dest);
+			default:
+				throw new IllegalStateException("not a filter " + filterOpChain.getFirstToken().kind);
+		}
+	}
+
+	@Override
+	public Object visitFrameOpChain(FrameOpChain frameOpChain, Object arg) throws Exception {
+		PLPRuntimeFrame frame = (PLPRuntimeFrame) ((Incoming) arg).value;
+		List<Object> tuple = evaluate(frameOpChain.getArg());
+		switch (frameOpChain.getFirstToken().kind) {
+			case KW_SHOW:
+				return frame.showImage();
+			case KW_HIDE:
+				return frame.hideImage();
+			case KW_MOVE:
+				return frame.moveFrame((Integer) tuple.get(0), (Integer) tuple.get(1));
+			case KW_XLOC:
+				return frame.getXVal();
+			case KW_YLOC:
+				return frame.getYVal();
+			default:
+				throw new IllegalStateException("not a frame op " + frameOpChain.getFirstToken().kind);
+		}
+	}
+
+	@Override
+	public Object visitImageOpChain(ImageOpChain imageOpChain, Object arg) throws Exception {
+		PLPRuntimeImage image = (PLPRuntimeImage) ((Incoming) arg).value;
+		List<Object> tuple = evaluate(imageOpChain.getArg());
+		switch (imageOpChain.getFirstToken().kind) {
+			case OP_WIDTH:
+				return image.getWidth();
+			case OP_HEIGHT:
+				return image.getHeight();
+			case KW_SCALE:
+				return PLPRuntimeImageOps.scale(image, (Integer) tuple.get(0));
+			default:
+				throw new IllegalStateException("not an image op " + imageOpChain.getFirstToken().kind);
+		}
+	}
+
+	@Override
+	public Object visitTuple(Tuple tuple, Object arg) throws Exception {
+		return evaluate(tuple);
+	}
+
+	List<Object> evaluate(Tuple tuple) throws Exception {
+		List<Object> result = new ArrayList<Object>();
+		for (Expression e : tuple.getExprList()) {
+			result.add(e.visit(this, null));
+		}
+		return result;
+	}
+
+	/**
+	 * Both operands are always evaluated, as in CodeGenVisitor whenever
+	 * skipping one could be observed.
+	 */
+	@Override
+	public Object visitBinaryExpression(BinaryExpression binaryExpression, Object arg) throws Exception {
+		Object v0 = binaryExpression.getE0().visit(this, null);
+		Object v1 = binaryExpression.getE1().visit(this, null);
+		Kind kind = binaryExpression.getOp().kind;
+		TypeName t0 = binaryExpression.getE0().getTypeName();
+		TypeName t1 = binaryExpression.getE1().getTypeName();
+		if (CodeGenVisitor.isRelational(kind)) {
+			return compare(kind, t0, v0, v1);
+		}
+		if (t0 == IMAGE && t1 == IMAGE) {
+			PLPRuntimeImage i0 = (PLPRuntimeImage) v0;
+			PLPRuntimeImage i1 = (PLPRuntimeImage) v1;
+			return kind == PLUS ? PLPRuntimeImageOps.add(i0, i1) : PLPRuntimeImageOps.sub(i0, i1);
+		}
+		if (t0 == IMAGE || t1 == IMAGE) {
+			PLPRuntimeImage image = (PLPRuntimeImage) (t0 == IMAGE ? v0 : v1);
+			int n = (Integer) (t0 == IMAGE ? v1 : v0);
+			switch (kind) {
+				case TIMES:
+					return PLPRuntimeImageOps.mul(image, n);
+				case DIV:
+					return PLPRuntimeImageOps.div(image, n);
+				case MOD:
+					return PLPRuntimeImageOps.mod(image, n);
+				default:
+					throw new IllegalStateException("not an image operator " + kind);
+			}
+		}
+		if (v0 instanceof Boolean) {
+			boolean b0 = (Boolean) v0, b1 = (Boolean) v1;
+			return kind == AND ? b0 & b1 : b0 | b1;
+		}
+		int i0 = (Integer) v0, i1 = (Integer) v1;
+		switch (kind) {
+			case PLUS:
+				return i0 + i1;
+			case MINUS:
+				return i0 - i1;
+			case TIMES:
+				return i0 * i1;
+			case DIV:
+				return i0 / i1;
+			case MOD:
+				return i0 % i1;
+			case AND:
+				return i0 & i1;
+			case OR:
+				return i0 | i1;
+			default:
+				throw new IllegalStateException("not an integer operator " + kind);
+		}
+	}
+
+	/**
+	 * Operands of reference type are compared by identity, as by IF_ACMPxx.
+	 */
+	static boolean compare(Kind kind, TypeName type, Object v0, Object v1) {
+		if (type != INTEGER && type != TypeName.BOOLEAN) {
+			return kind == EQUAL ? v0 == v1 : v0 != v1;
+		}
+		if (type == TypeName.BOOLEAN) {
+			return kind == EQUAL ? v0.equals(v1) : !v0.equals(v1);
+		}
+		int i0 = (Integer) v0, i1 = (Integer) v1;
+		switch (kind) {
+			case LT:
+				return i0 < i1;
+			case LE:
+				return i0 <= i1;
+			case GT:
+				return i0 > i1;
+			case GE:
+				return i0 >= i1;
+			case EQUAL:
+				return i0 == i1;
+			default:
+				return i0 != i1;
+		}
+	}
+
+	@Override
+	public Object visitIdentExpression(IdentExpression identExpression, Object arg) throws Exception {
+		return values.get(identExpression.getDec());
+	}
+
+	@Override
+	public Object visitIntLitExpression(IntLitExpression intLitExpression, Object arg) throws Exception {
+		return intLitExpression.value;
+	}
+
+	@Override
+	public Object visitBooleanLitExpression(BooleanLitExpression booleanLitExpression, Object arg) throws Exception {
+		return booleanLitExpression.getValue();
+	}
+
+	@Override
+	public Object visitConstantExpression(ConstantExpression constantExpression, Object arg) {
+		return constantExpression.getFirstToken().kind == KW_SCREENWIDTH
+				? PLPRuntimeFrame.getScreenWidth() : PLPRuntimeFrame.getScreenHeight();
+	}
+}
@@ -0,0 +1,246 @@
+package compiler;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import compiler.AST.ASTNode;
+import compiler.AST.AssignmentStatement;
+import compiler.AST.BinaryChain;
+import compiler.AST.BinaryExpression;
+import compiler.AST.Block;
+import compiler.AST.Chain;
+import compiler.AST.ChainElem;
+import compiler.AST.Dec;
+import compiler.AST.Expression;
+import compiler.AST.FilterOpChain;
+import compiler.AST.FrameOpChain;
+import compiler.AST.IdentChain;
+import compiler.AST.IdentExpression;
+import compiler.AST.IfStatement;
+import compiler.AST.ImageOpChain;
+import compiler.AST.ParallelStatement;
+import compiler.AST.Program;
+import compiler.AST.SleepStatement;
+import compiler.AST.Statement;
+import compiler.AST.Tuple;
+import compiler.AST.WhileStatement;
+
+import static compiler.AST.Type.TypeName.FRAME;
+import static compiler.AST.Type.TypeName.IMAGE;
+
+/**
+ * Finds where the image and frame variables of run() stop being live, so
+ * that CodeGenVisitor can clear them and the images they refer to can be
+ * reclaimed before run() returns.
+ *
+ * A variable is live at a point if it may be read before it is written on
+ * some path from there. The live sets are computed backwards over the
+ * statements of each block, and the set at the head of a while loop is
+ * grown until the loop body no longer adds to it. A variable is released
+ * after a statement that may use it, or that it is live before, if it is
+ * not live after the statement. On entry to the body of an if or while,
+ * the variables that the body writes before reading them are released as
+ * well, since they would otherwise stay reachable until that write.
+ * The statements of a parallel block run concurrently, so a variable that
+ * one of them is live before stays live until all of them are done.
+ * Parameters are fields of the program and are left alone.
+ */
+public class LivenessAnalysis {
+
+	final List<Dec> variables = new ArrayList<Dec>();
+	final Map<Dec, Integer> indices = new IdentityHashMap<Dec, Integer>();
+	final Map<ASTNode, BitSet> released = new IdentityHashMap<ASTNode, BitSet>();
+
+	public static LivenessAnalysis analyze(Program program) {
+		LivenessAnalysis analysis = new LivenessAnalysis();
+		analysis.declare(program.getB());
+		analysis.block(program.getB(), new BitSet());
+		// nothing runs after the last statement of run() but its return
+		List<Statement> statements = program.getB().getStatements();
+		if (!statements.isEmpty()) {
+			analysis.released.remove(statements.get(statements.size() - 1));
+		}
+		return analysis;
+	}
+
+	/**
+	 * Returns the variables to clear after statement.
+	 */
+	public List<Dec> getReleasedAfter(Statement statement) {
+		return decs(released.get(statement));
+	}
+
+	/**
+	 * Returns the variables to clear on entry to the body of an if or while.
+	 */
+	public List<Dec> getReleasedOnEntry(Block block) {
+		return decs(released.get(block));
+	}
+
+	List<Dec> decs(BitSet set) {
+		if (set == null || set.isEmpty()) {
+			return Collections.<Dec> emptyList();
+		}
+		List<Dec> list = new ArrayList<Dec>();
+		for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+			list.add(variables.get(i));
+		}
+		return list;
+	}
+
+	void declare(Block block) {
+		for (Dec dec : block.getDecs()) {
+			if (dec.getTypeName() == IMAGE || dec.getTypeName() == FRAME) {
+				indices.put(dec, variables.size());
+				variables.add(dec);
+			}
+		}
+		for (Statement statement : block.getStatements()) {
+			if (statement instanceof IfStatement) {
+				declare(((IfStatement) statement).getB());
+			} else if (statement instanceof WhileStatement) {
+				declare(((WhileStatement) statement).getB());
+			} else if (statement instanceof ParallelStatement) {
+				declare(((ParallelStatement) statement).getB());
+			}
+		}
+	}
+
+	/**
+	 * Returns the variables live on entry to block, given those live after
+	 * it, and records what each of its statements releases.
+	 */
+	BitSet block(Block block, BitSet liveOut) {
+		BitSet live = liveOut;
+		List<Statement> statements = block.getStatements();
+		for (int i = statements.size() - 1; i >= 0; i--) {
+			Statement statement = statements.get(i);
+			BitSet reads = new BitSet();
+			BitSet writes = new BitSet();
+			BitSet liveIn = statement(statement, live, reads, writes);
+			BitSet set = (BitSet) liveIn.clone();
+			set.or(writes);
+			set.andNot(live);
+			released.put(statement, set);
+			live = liveIn;
+		}
+		return live;
+	}
+
+	/**
+	 * Returns the variables live before statement, given those live after
+	 * it. The variables a simple statement reads and writes are added to
+	 * reads and writes.
+	 */
+	BitSet statement(Statement statement, BitSet liveOut, BitSet reads, BitSet writes) {
+		if (statement instanceof IfStatement) {
+			IfStatement ifStatement = (IfStatement) statement;
+			BitSet body = block(ifStatement.getB(), liveOut);
+			BitSet live = (BitSet) liveOut.clone();
+			live.or(body);
+			expression(ifStatement.getE(), live);
+			releaseOnEntry(ifStatement.getB(), live, body);
+			return live;
+		}
+		if (statement instanceof WhileStatement) {
+			WhileStatement whileStatement = (WhileStatement) statement;
+			BitSet head = (BitSet) liveOut.clone();
+			expression(whileStatement.getE(), head);
+			BitSet body;
+			while (true) {
+				body = block(whileStatement.getB(), head);
+				BitSet next = (BitSet) head.clone();
+				next.or(body);
+				if (next.equals(head)) {
+					break;
+				}
+				head = next;
+			}
+			releaseOnEntry(whileStatement.getB(), head, body);
+			return head;
+		}
+		if (statement instanceof ParallelStatement) {
+			Block body = ((ParallelStatement) statement).getB();
+			BitSet live = (BitSet) liveOut.clone();
+			for (Statement child : body.getStatements()) {
+				live.or(statement(child, liveOut, new BitSet(), new BitSet()));
+			}
+			// records the releases again, now with the variables the
+			// statements share live throughout
+			return block(body, live);
+		}
+		if (statement instanceof AssignmentStatement) {
+			AssignmentStatement assignment = (AssignmentStatement) statement;
+			expression(assignment.getE(), reads);
+			add(assignment.getVar().getDec(), writes);
+		} else if (statement instanceof SleepStatement) {
+			expression(((SleepStatement) statement).getE(), reads);
+		} else if (statement instanceof Chain) {
+			chain((Chain) statement, reads, writes);
+		}
+		BitSet live = (BitSet) liveOut.clone();
+		live.andNot(writes);
+		live.or(reads);
+		return live;
+	}
+
+	void releaseOnEntry(Block body, BitSet before, BitSet bodyLiveIn) {
+		BitSet set = (BitSet) before.clone();
+		set.andNot(bodyLiveIn);
+		released.put(body, set);
+	}
+
+	void add(Dec dec, BitSet set) {
+		Integer index = indices.get(dec);
+		if (index != null) {
+			set.set(index);
+		}
+	}
+
+	void expression(Expression e, BitSet reads) {
+		if (e instanceof IdentExpression) {
+			add(((IdentExpression) e).getDec(), reads);
+		} else if (e instanceof BinaryExpression) {
+			expression(((BinaryExpression) e).getE0(), reads);
+			expression(((BinaryExpression) e).getE1(), reads);
+		}
+	}
+
+	/**
+	 * The variable at the left end of a chain is read. Further along, an
+	 * image variable is written with the value passed along the chain, and
+	 * a frame variable is read to set its image and then written.
+	 */
+	void chain(Chain chain, BitSet reads, BitSet writes) {
+		if (chain instanceof IdentChain) {
+			add(((IdentChain) chain).getDec(), reads);
+			return;
+		}
+		BinaryChain binaryChain = (BinaryChain) chain;
+		chain(binaryChain.getE0(), reads, writes);
+		ChainElem e1 = binaryChain.getE1();
+		if (e1 instanceof IdentChain) {
+			Dec dec = ((IdentChain) e1).getDec();
+			if (dec.getTypeName() == FRAME) {
+				add(dec, reads);
+			}
+			add(dec, writes);
+		} else if (e1 instanceof FilterOpChain) {
+			tuple(((FilterOpChain) e1).getArg(), reads);
+		} else if (e1 instanceof FrameOpChain) {
+			tuple(((FrameOpChain) e1).getArg(), reads);
+		} else if (e1 instanceof ImageOpChain) {
+			tuple(((ImageOpChain) e1).getArg(), reads);
+		}
+	}
+
+	void tuple(Tuple tuple, BitSet reads) {
+		for (Expression e : tuple.getExprList()) {
+			expression(e, reads);
+		}
+	}
+}
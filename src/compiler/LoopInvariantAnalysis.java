@@ -0,0 +1,503 @@
+package compiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import compiler.AST.ASTNode;
+import compiler.AST.ASTVisitor;
+import compiler.AST.AssignmentStatement;
+import compiler.AST.BinaryChain;
+import compiler.AST.BinaryExpression;
+import compiler.AST.Block;
+import compiler.AST.BooleanLitExpression;
+import compiler.AST.Chain;
+import compiler.AST.ChainElem;
+import compiler.AST.ConstantExpression;
+import compiler.AST.Dec;
+import compiler.AST.Expression;
+import compiler.AST.FilterOpChain;
+import compiler.AST.FrameOpChain;
+import compiler.AST.IdentChain;
+import compiler.AST.IdentExpression;
+import compiler.AST.IdentLValue;
+import compiler.AST.IfStatement;
+import compiler.AST.ImageOpChain;
+import compiler.AST.IntLitExpression;
+import compiler.AST.ParallelStatement;
+import compiler.AST.ParamDec;
+import compiler.AST.Program;
+import compiler.AST.SleepStatement;
+import compiler.AST.Statement;
+import compiler.AST.Tuple;
+import compiler.AST.WhileStatement;
+import compiler.AST.Type.TypeName;
+import compiler.Scanner.Kind;
+
+import static compiler.AST.Type.TypeName.FILE;
+import static compiler.AST.Type.TypeName.IMAGE;
+import static compiler.AST.Type.TypeName.URL;
+import static compiler.Scanner.Kind.*;
+
+/**
+ * Finds the computations of a while loop that yield the same value on every
+ * iteration and are worth computing once before the loop: screenwidth and
+ * screenheight, file and url decodes, image dimensions, and image ops and
+ * arithmetic over values the loop does not redefine.
+ *
+ * The analysis first collects every variable written in the loop, through an
+ * IdentLValue, an IdentChain on the right of an arrow or a declaration in the
+ * body. A read of any other variable is invariant. Image values are only
+ * treated as invariant if the loop neither mutates an image with |-> nor
+ * compares images, since a hoisted image is shared by all iterations. File
+ * decodes are only invariant if the loop writes no file.
+ *
+ * The condition is evaluated before the first iteration in any case, so its
+ * invariants are always hoisted; CodeGenVisitor saves their values during that
+ * first evaluation. Body invariants are computed after the first test, so the
+ * analysis only takes those that the first iteration would have evaluated
+ * before anything that can throw or has a visible effect. Invariants that
+ * cannot throw, such as screenwidth and integer arithmetic on it without / or
+ * %, are taken from anywhere in the loop, including nested blocks.
+ *
+ * Hoisting changes the log of the runtime calls, so CodeGenVisitor does not
+ * use the analysis when DEVEL or GRADE is set.
+ */
+public class LoopInvariantAnalysis implements ASTVisitor {
+
+	/**
+	 * Invariance of a subtree. SAFE_CALL and CALL mark invariants that are
+	 * worth hoisting; a SAFE_CALL cannot throw, so it may be hoisted from any
+	 * position in the loop, even one that is not reached on every iteration.
+	 */
+	enum Status {
+		VARIANT, CHEAP, SAFE_CALL, CALL
+	}
+
+	final Set<Dec> written = Collections.newSetFromMap(new IdentityHashMap<Dec, Boolean>());
+	final Set<ASTNode> hoisted;
+	boolean mutatesImages = false;
+	boolean comparesImages = false;
+	boolean writesFiles = false;
+
+	final List<ASTNode> condInvariants = new ArrayList<ASTNode>();
+	final List<ASTNode> bodyInvariants = new ArrayList<ASTNode>();
+	List<ASTNode> invariants;
+
+	/** Set once the code scanned so far may throw or have a visible effect. */
+	boolean barrier = false;
+
+	LoopInvariantAnalysis(Set<ASTNode> hoisted) {
+		this.hoisted = hoisted;
+	}
+
+	/**
+	 * Collects the variables written in node and the flags on image
+	 * mutation, image comparison and file writes, without looking for
+	 * invariants. node need not be a loop.
+	 */
+	static LoopInvariantAnalysis scan(ASTNode node) throws Exception {
+		LoopInvariantAnalysis analysis = new LoopInvariantAnalysis(Collections.<ASTNode> emptySet());
+		node.visit(analysis, null);
+		return analysis;
+	}
+
+	/**
+	 * Analyzes whileStatement. Nodes in hoisted already have their value
+	 * computed by an enclosing loop and are treated as cheap invariants.
+	 */
+	public static LoopInvariantAnalysis analyze(WhileStatement whileStatement, Set<ASTNode> hoisted) throws Exception {
+		LoopInvariantAnalysis analysis = new LoopInvariantAnalysis(hoisted);
+		whileStatement.visit(analysis, null);
+		analysis.invariants = analysis.condInvariants;
+		analysis.root(analysis.expression(whileStatement.getE()), whileStatement.getE());
+		analysis.invariants = analysis.bodyInvariants;
+		analysis.barrier = false;
+		for (Statement statement : whileStatement.getB().getStatements()) {
+			analysis.statement(statement);
+		}
+		return analysis;
+	}
+
+	/** Invariants of the condition, in evaluation order. */
+	public List<ASTNode> getCondInvariants() {
+		return condInvariants;
+	}
+
+	/** Invariants of the body, in evaluation order. */
+	public List<ASTNode> getBodyInvariants() {
+		return bodyInvariants;
+	}
+
+	public boolean isEmpty() {
+		return condInvariants.isEmpty() && bodyInvariants.isEmpty();
+	}
+
+	/**
+	 * Returns the type of the value hoisted for node. A file or url IdentChain
+	 * stands for the image decoded from it.
+	 */
+	public static TypeName valueType(ASTNode node) {
+		if (node instanceof IdentChain) {
+			return IMAGE;
+		}
+		if (node instanceof Expression) {
+			return ((Expression) node).getTypeName();
+		}
+		return ((Chain) node).getTypeName();
+	}
+
+	boolean imagesVary() {
+		return mutatesImages || comparesImages;
+	}
+
+	boolean isInvariantRead(Dec dec) {
+		if (written.contains(dec)) {
+			return false;
+		}
+		TypeName type = dec.getTypeName();
+		if (type == IMAGE && imagesVary()) {
+			return false;
+		}
+		return type != TypeName.FRAME;
+	}
+
+	/** Hoists node if its status says it is an invariant worth hoisting. */
+	void root(Status status, ASTNode node) {
+		if ((status == Status.CALL || status == Status.SAFE_CALL) && !hoisted.contains(node)) {
+			invariants.add(node);
+		}
+	}
+
+	void statement(Statement statement) {
+		if (statement instanceof AssignmentStatement) {
+			AssignmentStatement assignment = (AssignmentStatement) statement;
+			Expression e = assignment.getE();
+			root(expression(e), e);
+			if (assignment.getVar().getDec().getTypeName() == IMAGE) {
+				// the copy made by the assignment calls into the runtime
+				barrier = true;
+			}
+		} else if (statement instanceof BinaryChain) {
+			root(chain((Chain) statement), statement);
+		} else if (statement instanceof SleepStatement) {
+			Expression e = ((SleepStatement) statement).getE();
+			root(expression(e), e);
+			barrier = true;
+		} else if (statement instanceof IfStatement) {
+			IfStatement ifStatement = (IfStatement) statement;
+			root(expression(ifStatement.getE()), ifStatement.getE());
+			barrier = true;
+			block(ifStatement.getB());
+		} else if (statement instanceof WhileStatement) {
+			WhileStatement whileStatement = (WhileStatement) statement;
+			root(expression(whileStatement.getE()), whileStatement.getE());
+			barrier = true;
+			block(whileStatement.getB());
+		} else if (statement instanceof ParallelStatement) {
+			// its statements run in no particular order
+			barrier = true;
+			block(((ParallelStatement) statement).getB());
+		}
+	}
+
+	/**
+	 * Scans a nested block. It may not be executed, so the barrier is set and
+	 * only invariants that cannot throw are taken from it.
+	 */
+	void block(Block block) {
+		for (Statement statement : block.getStatements()) {
+			statement(statement);
+		}
+	}
+
+	/**
+	 * Computes the status of e, hoisting the maximal invariant subexpressions of
+	 * a variant e. Operands are visited in the order they are evaluated.
+	 */
+	Status expression(Expression e) {
+		if (hoisted.contains(e)) {
+			return Status.CHEAP;
+		}
+		boolean safe = !barrier;
+		Status status;
+		if (e instanceof IntLitExpression || e instanceof BooleanLitExpression) {
+			status = Status.CHEAP;
+		} else if (e instanceof IdentExpression) {
+			status = isInvariantRead(((IdentExpression) e).getDec()) ? Status.CHEAP : Status.VARIANT;
+		} else if (e instanceof ConstantExpression) {
+			status = Status.SAFE_CALL;
+		} else {
+			BinaryExpression be = (BinaryExpression) e;
+			Status s0 = expression(be.getE0());
+			Status s1 = expression(be.getE1());
+			Kind kind = be.getOp().kind;
+			boolean imageOp = be.getE0().getTypeName() == IMAGE || be.getE1().getTypeName() == IMAGE;
+			boolean throwing = (imageOp && !CodeGenVisitor.isRelational(kind)) || kind == DIV || kind == MOD;
+			if (s0 == Status.VARIANT || s1 == Status.VARIANT) {
+				root(s0, be.getE0());
+				root(s1, be.getE1());
+				status = Status.VARIANT;
+				if (throwing) {
+					barrier = true;
+				}
+			} else if (throwing || s0 == Status.CALL || s1 == Status.CALL) {
+				status = Status.CALL;
+			} else if (s0 == Status.SAFE_CALL || s1 == Status.SAFE_CALL) {
+				status = Status.SAFE_CALL;
+			} else {
+				status = Status.CHEAP;
+			}
+		}
+		if (status == Status.CALL && !safe) {
+			// evaluated after something that may throw, so it stays in the loop
+			barrier = true;
+			return Status.VARIANT;
+		}
+		return status;
+	}
+
+	/** Computes the status of each expression of tuple. */
+	Status[] tuple(Tuple tuple) {
+		List<Expression> exprList = tuple.getExprList();
+		Status[] statuses = new Status[exprList.size()];
+		for (int i = 0; i < statuses.length; i++) {
+			statuses[i] = expression(exprList.get(i));
+		}
+		return statuses;
+	}
+
+	/** Returns the combined status of a tuple, CHEAP for an empty one. */
+	static Status combine(Status[] statuses) {
+		Status status = Status.CHEAP;
+		for (Status s : statuses) {
+			if (s == Status.VARIANT) {
+				return Status.VARIANT;
+			}
+			if (s.compareTo(status) > 0) {
+				status = s;
+			}
+		}
+		return status;
+	}
+
+	void rootAll(Status[] statuses, Tuple tuple) {
+		for (int i = 0; i < statuses.length; i++) {
+			root(statuses[i], tuple.getExprList().get(i));
+		}
+	}
+
+	/**
+	 * Computes the status of the value of chain, hoisting the maximal
+	 * invariant parts of a variant chain.
+	 */
+	Status chain(Chain chain) {
+		if (hoisted.contains(chain)) {
+			return Status.CHEAP;
+		}
+		boolean safe = !barrier;
+		if (chain instanceof IdentChain) {
+			Dec dec = ((IdentChain) chain).getDec();
+			return isInvariantRead(dec) ? Status.CHEAP : Status.VARIANT;
+		}
+		BinaryChain binaryChain = (BinaryChain) chain;
+		Chain e0 = binaryChain.getE0();
+		Status s0 = chain(e0);
+		TypeName type0 = e0.getTypeName();
+		if (e0 instanceof IdentChain && (type0 == FILE || type0 == URL)) {
+			if (hoisted.contains(e0)) {
+				s0 = Status.CHEAP;
+			} else if (s0 == Status.VARIANT || (type0 == FILE && writesFiles) || imagesVary() || !safe) {
+				s0 = Status.VARIANT;
+				barrier = true;
+			} else {
+				s0 = Status.CALL;
+			}
+		}
+		ChainElem e1 = binaryChain.getE1();
+		Status status;
+		if (e1 instanceof IdentChain) {
+			root(s0, e0);
+			if (e1.getTypeName() == TypeName.FRAME || e1.getTypeName() == FILE) {
+				barrier = true;
+			}
+			status = Status.VARIANT;
+		} else {
+			Tuple arg;
+			if (e1 instanceof FrameOpChain) {
+				arg = ((FrameOpChain) e1).getArg();
+			} else if (e1 instanceof FilterOpChain) {
+				arg = ((FilterOpChain) e1).getArg();
+			} else {
+				arg = ((ImageOpChain) e1).getArg();
+			}
+			Status[] s1 = tuple(arg);
+			if (s0 == Status.VARIANT || combine(s1) == Status.VARIANT || e1 instanceof FrameOpChain
+					|| binaryChain.getArrow().kind == BARARROW) {
+				root(s0, e0);
+				rootAll(s1, arg);
+				barrier = true;
+				status = Status.VARIANT;
+			} else {
+				status = Status.CALL;
+			}
+		}
+		if (status == Status.CALL && !safe) {
+			barrier = true;
+			return Status.VARIANT;
+		}
+		return status;
+	}
+
+	/*
+	 * The visit methods collect the variables written anywhere in the loop,
+	 * including nested blocks, and the flags that restrict image and file
+	 * invariants.
+	 */
+
+	@Override
+	public Object visitAssignmentStatement(AssignmentStatement assignStatement, Object arg) throws Exception {
+		assignStatement.getE().visit(this, arg);
+		assignStatement.getVar().visit(this, arg);
+		return null;
+	}
+
+	@Override
+	public Object visitBinaryChain(BinaryChain binaryChain, Object arg) throws Exception {
+		binaryChain.getE0().visit(this, null);
+		if (binaryChain.getArrow().kind == BARARROW) {
+			mutatesImages = true;
+		}
+		binaryChain.getE1().visit(this, binaryChain);
+		return null;
+	}
+
+	@Override
+	public Object visitBinaryExpression(BinaryExpression binaryExpression, Object arg) throws Exception {
+		if (CodeGenVisitor.isRelational(binaryExpression.getOp().kind)
+				&& binaryExpression.getE0().getTypeName() == IMAGE) {
+			comparesImages = true;
+		}
+		binaryExpression.getE0().visit(this, arg);
+		binaryExpression.getE1().visit(this, arg);
+		return null;
+	}
+
+	@Override
+	public Object visitBlock(Block block, Object arg) throws Exception {
+		for (Dec dec : block.getDecs()) {
+			dec.visit(this, arg);
+		}
+		for (Statement statement : block.getStatements()) {
+			statement.visit(this, arg);
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitBooleanLitExpression(BooleanLitExpression booleanLitExpression, Object arg) throws Exception {
+		return null;
+	}
+
+	@Override
+	public Object visitConstantExpression(ConstantExpression constantExpression, Object arg) {
+		return null;
+	}
+
+	@Override
+	public Object visitDec(Dec declaration, Object arg) throws Exception {
+		// a declaration in the loop resets the variable on every iteration
+		written.add(declaration);
+		return null;
+	}
+
+	@Override
+	public Object visitFilterOpChain(FilterOpChain filterOpChain, Object arg) throws Exception {
+		return filterOpChain.getArg().visit(this, null);
+	}
+
+	@Override
+	public Object visitFrameOpChain(FrameOpChain frameOpChain, Object arg) throws Exception {
+		return frameOpChain.getArg().visit(this, null);
+	}
+
+	@Override
+	public Object visitIdentChain(IdentChain identChain, Object arg) throws Exception {
+		if (arg != null) {
+			// on the right of an arrow the ident is assigned
+			Dec dec = identChain.getDec();
+			written.add(dec);
+			if (dec.getTypeName() == FILE) {
+				writesFiles = true;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitIdentExpression(IdentExpression identExpression, Object arg) throws Exception {
+		return null;
+	}
+
+	@Override
+	public Object visitIdentLValue(IdentLValue identX, Object arg) throws Exception {
+		written.add(identX.getDec());
+		return null;
+	}
+
+	@Override
+	public Object visitIfStatement(IfStatement ifStatement, Object arg) throws Exception {
+		ifStatement.getE().visit(this, arg);
+		ifStatement.getB().visit(this, arg);
+		return null;
+	}
+
+	@Override
+	public Object visitImageOpChain(ImageOpChain imageOpChain, Object arg) throws Exception {
+		return imageOpChain.getArg().visit(this, null);
+	}
+
+	@Override
+	public Object visitIntLitExpression(IntLitExpression intLitExpression, Object arg) throws Exception {
+		return null;
+	}
+
+	@Override
+	public Object visitParallelStatement(ParallelStatement parallelStatement, Object arg) throws Exception {
+		parallelStatement.getB().visit(this, arg);
+		return null;
+	}
+
+	@Override
+	public Object visitParamDec(ParamDec paramDec, Object arg) throws Exception {
+		return null;
+	}
+
+	@Override
+	public Object visitProgram(Program program, Object arg) throws Exception {
+		return null;
+	}
+
+	@Override
+	public Object visitSleepStatement(SleepStatement sleepStatement, Object arg) throws Exception {
+		return sleepStatement.getE().visit(this, arg);
+	}
+
+	@Override
+	public Object visitTuple(Tuple tuple, Object arg) throws Exception {
+		for (Expression e : tuple.getExprList()) {
+			e.visit(this, null);
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitWhileStatement(WhileStatement whileStatement, Object arg) throws Exception {
+		whileStatement.getE().visit(this, arg);
+		whileStatement.getB().visit(this, arg);
+		return null;
+	}
+
+}
@@ -0,0 +1,110 @@
+package compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import compiler.AST.ASTNode;
+import compiler.AST.AssignmentStatement;
+import compiler.AST.BinaryChain;
+import compiler.AST.BinaryExpression;
+import compiler.AST.Block;
+import compiler.AST.FilterOpChain;
+import compiler.AST.FrameOpChain;
+import compiler.AST.IfStatement;
+import compiler.AST.ImageOpChain;
+import compiler.AST.ParallelStatement;
+import compiler.AST.SleepStatement;
+import compiler.AST.Statement;
+import compiler.AST.Tuple;
+import compiler.AST.WhileStatement;
+
+/**
+ * Size heuristic used by CodeGenVisitor to split run() into private
+ * methods that HotSpot is willing to compile.
+ *
+ * HotSpot does not compile methods whose bytecode is longer than
+ * HUGE_METHOD_LIMIT. The size of the code for a statement is estimated
+ * from the number of nodes in it, each of which accounts for a few
+ * instructions once variables are fields. A block estimated to be larger
+ * than CHUNK_BUDGET has its statements grouped into runs that fit the
+ * budget, each generated as a method of its own. Half the limit is left
+ * for the error of the estimate.
+ */
+public class MethodSplitter {
+
+	static final int HUGE_METHOD_LIMIT = 8000;
+	static final int CHUNK_BUDGET = HUGE_METHOD_LIMIT / 2;
+	/** Estimated bytes of code per AST node. */
+	static final int NODE_SIZE = 8;
+
+	/**
+	 * Returns true if the statements of block do not fit in one method.
+	 */
+	public static boolean isLarge(Block block) {
+		return estimate(block) > CHUNK_BUDGET;
+	}
+
+	/**
+	 * Groups statements into consecutive runs whose estimated size is
+	 * within CHUNK_BUDGET. A statement larger than that on its own makes up
+	 * a run by itself.
+	 */
+	public static List<List<Statement>> partition(List<Statement> statements) {
+		List<List<Statement>> chunks = new ArrayList<List<Statement>>();
+		List<Statement> chunk = new ArrayList<Statement>();
+		int size = 0;
+		for (Statement statement : statements) {
+			int n = estimate(statement);
+			if (!chunk.isEmpty() && size + n > CHUNK_BUDGET) {
+				chunks.add(chunk);
+				chunk = new ArrayList<Statement>();
+				size = 0;
+			}
+			chunk.add(statement);
+			size += n;
+		}
+		if (!chunk.isEmpty()) {
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
+
+	/**
+	 * Returns the estimated size in bytes of the code for node.
+	 */
+	public static int estimate(ASTNode node) {
+		int size = NODE_SIZE;
+		if (node instanceof Block) {
+			Block block = (Block) node;
+			size += NODE_SIZE * block.getDecs().size();
+			for (Statement statement : block.getStatements()) {
+				size += estimate(statement);
+			}
+		} else if (node instanceof IfStatement) {
+			size += estimate(((IfStatement) node).getE()) + estimate(((IfStatement) node).getB());
+		} else if (node instanceof WhileStatement) {
+			size += estimate(((WhileStatement) node).getE()) + estimate(((WhileStatement) node).getB());
+		} else if (node instanceof ParallelStatement) {
+			size += estimate(((ParallelStatement) node).getB());
+		} else if (node instanceof AssignmentStatement) {
+			size += estimate(((AssignmentStatement) node).getE());
+		} else if (node instanceof SleepStatement) {
+			size += estimate(((SleepStatement) node).getE());
+		} else if (node instanceof BinaryExpression) {
+			size += estimate(((BinaryExpression) node).getE0()) + estimate(((BinaryExpression) node).getE1());
+		} else if (node instanceof BinaryChain) {
+			size += estimate(((BinaryChain) node).getE0()) + estimate(((BinaryChain) node).getE1());
+		} else if (node instanceof FilterOpChain) {
+			size += estimate(((FilterOpChain) node).getArg());
+		} else if (node instanceof FrameOpChain) {
+			size += estimate(((FrameOpChain) node).getArg());
+		} else if (node instanceof ImageOpChain) {
+			size += estimate(((ImageOpChain) node).getArg());
+		} else if (node instanceof Tuple) {
+			for (ASTNode e : ((Tuple) node).getExprList()) {
+				size += estimate(e);
+			}
+		}
+		return size;
+	}
+}
@@ -0,0 +1,48 @@
+package compiler;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.objectweb.asm.ClassWriter;
+
+import compiler.AST.Type.TypeName;
+
+/**
+ * ClassWriter for the classes generated by CodeGenVisitor.
+ *
+ * To compute stack map frames, ASM asks for the common superclass of two
+ * reference types that reach the same instruction, which ClassWriter finds
+ * by loading both classes. That is slow, and loading the runtime types
+ * initializes AWT and Swing at compile time. The reference types in
+ * generated code are the types of the language, String and the generated
+ * class itself. None of them is a subtype of another, so the common
+ * superclass of two different ones is Object.
+ */
+public class PLPClassWriter extends ClassWriter {
+
+	final Set<String> types = new HashSet<String>();
+
+	public PLPClassWriter(int flags, String className) {
+		super(flags);
+		for (TypeName typeName : TypeName.values()) {
+			String desc = typeName.getJVMTypeDesc();
+			if (desc != null && desc.startsWith("L")) {
+				types.add(desc.substring(1, desc.length() - 1));
+			}
+		}
+		types.add("java/lang/Object");
+		types.add("java/lang/String");
+		types.add(className);
+	}
+
+	@Override
+	protected String getCommonSuperClass(String type1, String type2) {
+		if (type1.equals(type2)) {
+			return type1;
+		}
+		if (types.contains(type1) && types.contains(type2)) {
+			return "java/lang/Object";
+		}
+		return super.getCommonSuperClass(type1, type2);
+	}
+}
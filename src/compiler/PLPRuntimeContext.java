@@ -0,0 +1,197 @@
+package compiler;
+
+import java.awt.Component;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * The state of one execution of a program: its log, its frames and the
+ * limit on the pixels of the images it allocates. A program runs in a context while the context is
+ * bound to its thread by run, or by the Runnable that bind returns, and the
+ * statements it runs as tasks, see PLPRuntimeTasks, run in the same
+ * context. Concurrent executions in contexts of their own neither share a
+ * log nor place their frames relative to each other's.
+ *
+ * The pixel limit bounds the work of an execution, not its memory: the
+ * pixels of every image allocated are counted, and they are not given back
+ * when the image is dropped. An op charges the pixels of its result before
+ * allocating it, so the allocation that would exceed the limit does not
+ * happen; only decoding a file or url charges its image afterwards, since
+ * its size is not known before.
+ *
+ * A program that runs in no context uses the global log, see
+ * PLPRuntimeLog, and has no limit, as before there were contexts.
+ */
+public class PLPRuntimeContext {
+
+	static final ThreadLocal<PLPRuntimeContext> bound = new ThreadLocal<PLPRuntimeContext>();
+
+	/** The log of the execution, or null if it is not logged. */
+	volatile PLPRuntimeLog log = null;
+	/** Whether log counts as live, see PLPRuntimeLog.traceLog; guarded by this. */
+	private boolean traced = false;
+	volatile long pixelLimit = Long.MAX_VALUE;
+	/** The pixels of the images allocated so far. */
+	final AtomicLong pixels = new AtomicLong();
+	/** The frames the execution created. */
+	final List<PLPRuntimeFrame> frames = new ArrayList<PLPRuntimeFrame>();
+	/** The frame the next one is placed relative to; only used on the event dispatch thread. */
+	Component lastFrame = null;
+
+	/**
+	 * Returns the context bound to the current thread, or null.
+	 */
+	public static PLPRuntimeContext current() {
+		return bound.get();
+	}
+
+	/**
+	 * Binds context, which may be null, to the current thread, and returns
+	 * the context bound before.
+	 */
+	static PLPRuntimeContext enter(PLPRuntimeContext context) {
+		PLPRuntimeContext outer = bound.get();
+		bound.set(context);
+		return outer;
+	}
+
+	static void exit(PLPRuntimeContext outer) {
+		if (outer == null) {
+			bound.remove();
+		} else {
+			bound.set(outer);
+		}
+	}
+
+	/**
+	 * Runs program on the current thread in this context.
+	 */
+	public void run(Runnable program) {
+		PLPRuntimeContext outer = enter(this);
+		try {
+			program.run();
+		} finally {
+			exit(outer);
+		}
+	}
+
+	/**
+	 * Returns a Runnable that runs program in this context on whatever
+	 * thread runs it.
+	 */
+	public Runnable bind(final Runnable program) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				PLPRuntimeContext.this.run(program);
+			}
+		};
+	}
+
+	/**
+	 * Starts or stops recording a log of the runtime calls, which starts
+	 * empty. The log only gets entries while tracing is on, see
+	 * PLPRuntimeLog.setTracing.
+	 */
+	public synchronized void setLogging(boolean logging) {
+		log = logging ? new PLPRuntimeLog() : null;
+		trace(logging);
+	}
+
+	/**
+	 * Starts recording a log that keeps capacity entries, see PLPRuntimeLog.
+	 */
+	public synchronized void setLogging(int capacity, PLPRuntimeLog.Overflow overflow) {
+		log = new PLPRuntimeLog(capacity, overflow);
+		trace(true);
+	}
+
+	private void trace(boolean live) {
+		if (traced != live) {
+			traced = live;
+			PLPRuntimeLog.traceLog(live);
+		}
+	}
+
+	/**
+	 * Returns the log recorded so far, or "" if there is none.
+	 */
+	public String getLog() {
+		PLPRuntimeLog log = this.log;
+		return log == null ? "" : log.toString();
+	}
+
+	/**
+	 * Sets the number of pixels the images allocated in this context may
+	 * have in all, dropped images included. Allocating an image beyond that
+	 * throws an IllegalStateException.
+	 */
+	public void setPixelLimit(long pixelLimit) {
+		this.pixelLimit = pixelLimit;
+	}
+
+	/**
+	 * Returns the number of pixels of the images allocated in this context.
+	 */
+	public long getPixelsAllocated() {
+		return pixels.get();
+	}
+
+	/**
+	 * Charges the pixels of an image about to be allocated to the context of
+	 * the current thread, if any. An allocation that would exceed the limit
+	 * is not charged.
+	 */
+	static void charge(long count) {
+		PLPRuntimeContext context = bound.get();
+		if (context != null) {
+			long total = context.pixels.addAndGet(count);
+			if (total > context.pixelLimit) {
+				context.pixels.addAndGet(-count);
+				throw new IllegalStateException("images of " + total + " pixels exceed the limit of " + context.pixelLimit);
+			}
+		}
+	}
+
+	/**
+	 * Charges the pixels of a decoded image, whose size is only known once
+	 * it is allocated.
+	 */
+	static void charge(BufferedImage image) {
+		charge((long) image.getWidth() * image.getHeight());
+	}
+
+	void addFrame(PLPRuntimeFrame frame) {
+		synchronized (frames) {
+			frames.add(frame);
+		}
+	}
+
+	/**
+	 * Disposes of the frames created in this context, and stops its log
+	 * keeping tracing on; the log recorded so far can still be read.
+	 */
+	public void close() {
+		synchronized (this) {
+			trace(false);
+		}
+		final List<PLPRuntimeFrame> closed;
+		synchronized (frames) {
+			closed = new ArrayList<PLPRuntimeFrame>(frames);
+			frames.clear();
+		}
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				for (PLPRuntimeFrame frame : closed) {
+					frame.dispose();
+				}
+				lastFrame = null;
+			}
+		});
+	}
+}
@@ -3,7 +3,6 @@ package compiler;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.awt.image.BufferedImageOp;
-import java.awt.image.ColorModel;
 import java.awt.image.ConvolveOp;
 import java.awt.image.Kernel;
 
@@ -26,53 +25,70 @@ public class PLPRuntimeFilterOps {
 	
 	/**
 	 * Returns blurred version of source image in dest image. 
-	 * If dest is null, a new BufferedImage object is created and returned.
+	 * If dest is null, a new image is created and returned.
 	 * 
-	 * Precondition:  source != dest.
+	 * Source and dest may be the same image.
 	 * 
 	 * @param image
 	 * @param dest
 	 * @return
 	 */
-	public static BufferedImage blurOp(BufferedImage image, BufferedImage dest){
+	public static PLPRuntimeImage blurOp(PLPRuntimeImage image, PLPRuntimeImage dest){
 		PLPRuntimeLog.globalLogAddEntry("blurOp");
 		BufferedImageOp op = new ConvolveOp(new Kernel(3,3,blurKernel));
-		return op.filter(image, dest);
+		return filter(op, image, dest);
 	}
-	public final static String opSig = "(" + PLPRuntimeImageIO.BufferedImageDesc + PLPRuntimeImageIO.BufferedImageDesc + ")" + PLPRuntimeImageIO.BufferedImageDesc;
+	public final static String opSig = "(" + PLPRuntimeImageIO.ImageDesc + PLPRuntimeImageIO.ImageDesc + ")" + PLPRuntimeImageIO.ImageDesc;
 	
 	/**
 	 * Returns sharpened version of source image in dest image. 
-	 * If dest is null, a new BufferedImage object is created and returned.
+	 * If dest is null, a new image is created and returned.
 	 * 
-	 * Precondition:  source != dest.
+	 * Source and dest may be the same image.
 	 * 
 	 * @param image
 	 * @param dest
 	 * @return
 	 */
-	public static BufferedImage convolveOp(BufferedImage image, BufferedImage dest){
+	public static PLPRuntimeImage convolveOp(PLPRuntimeImage image, PLPRuntimeImage dest){
 		PLPRuntimeLog.globalLogAddEntry("convolve");
 		BufferedImageOp op = new ConvolveOp(new Kernel(3,3,sharpenKernel));
-		return op.filter(image, dest);
+		return filter(op, image, dest);
+	}
+
+	/**
+	 * A ConvolveOp cannot write into the pixels it reads, so the result
+	 * always gets new pixels, which replace those of dest.
+	 */
+	static PLPRuntimeImage filter(BufferedImageOp op, PLPRuntimeImage image, PLPRuntimeImage dest) {
+		PLPRuntimeContext.charge((long) image.getWidth() * image.getHeight());
+		BufferedImage result = op.filter(image.read(), null);
+		if (dest == null) {
+			return new PLPRuntimeImage(result);
+		}
+		dest.replace(result);
+		return dest;
 	}
 	
 	
 	/**
-	 * Returns a gray scale version of source image in dest image.
-	 * If dest is null, a new BufferedImage object is created and returned.
+	 * Returns a gray scale version of source image in target image.
+	 * If target is null, a new image is created and returned.
+	 * The pixels of target are written in place, after copying them if
+	 * another image shares them, so that target keeps its type.
 	 * 
-	 * @param image
-	 * @param dest
+	 * @param source
+	 * @param target
 	 * @return
 	 */
-	public static BufferedImage  grayOp(BufferedImage image, BufferedImage dest){
+	public static PLPRuntimeImage  grayOp(PLPRuntimeImage source, PLPRuntimeImage target){
 		PLPRuntimeLog.globalLogAddEntry("grayOp");
+		BufferedImage image = source.read();
+		BufferedImage dest = target == null ? null : target.write();
 		int w = image.getWidth();
 		int h = image.getHeight();
 		if (dest == null){
-			   	ColorModel destColorModel = image.getColorModel();   	
-			    dest = new BufferedImage(destColorModel, destColorModel.createCompatibleWritableRaster(w, h), destColorModel.isAlphaPremultiplied(), null);
+			    dest = PLPRuntimeImage.allocate(image.getColorModel(), w, h);
 		}
         for(int i=0; i<h; i++){            
             for(int j=0; j<w; j++){            
@@ -85,6 +101,10 @@ public class PLPRuntimeFilterOps {
                dest.setRGB(j,i,newColor.getRGB());
             }
          }
-        return dest;
+        if (target == null) {
+        	return new PLPRuntimeImage(dest);
+        }
+        target.replace(dest);
+        return target;
 	}
 }
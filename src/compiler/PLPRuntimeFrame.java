@@ -5,22 +5,22 @@ import java.awt.Container;
 import java.awt.Toolkit;
 import java.awt.image.BufferedImage;
 import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 //import cop5555.runtime.Image;
 import javax.swing.*;
 
 @SuppressWarnings("serial")
 public class PLPRuntimeFrame extends JFrame {
 	
-	static StringBuilder log;
-	public static void setLog(StringBuilder log){
-		PLPRuntimeFrame.log = log;
-	};
-	
 	private ImageIcon icon;
-	BufferedImage image;
+	PLPRuntimeImage image;
+	/** The context the frame was created in, or null. */
+	final PLPRuntimeContext context;
 	
 	boolean verbose = true;
 	
+	/** The last frame created in no context. */
 	static Component last = null;
 	
 	public final static String JVMClassName = "cop5556sp17/PLPRuntimeFrame";
@@ -34,18 +34,20 @@ public class PLPRuntimeFrame extends JFrame {
 	 * @param i
 	 * @return
 	 */
-	public final static String createOrSetFrameSig = "(" + PLPRuntimeImageIO.BufferedImageDesc + JVMDesc + ")" + JVMDesc;
-	public static PLPRuntimeFrame createOrSetFrame(BufferedImage i, PLPRuntimeFrame f) {
+	public final static String createOrSetFrameSig = "(" + PLPRuntimeImageIO.ImageDesc + JVMDesc + ")" + JVMDesc;
+	public static PLPRuntimeFrame createOrSetFrame(PLPRuntimeImage i, PLPRuntimeFrame f) {
 		PLPRuntimeLog.globalLogAddEntry("createOrSetFrame");
+		// the frame keeps its own handle, so that filtering i in place
+		// later on does not change what is displayed
 		if (f == null) {
-			return createFrame(i);
+			return createFrame(i.share());
 		} else
-			f.setImage(i);
+			f.setImage(i.share());
 		return f;
 	}
 	
 
-	private static PLPRuntimeFrame createFrame(BufferedImage i) {
+	private static PLPRuntimeFrame createFrame(PLPRuntimeImage i) {
 		final PLPRuntimeFrame frame = new PLPRuntimeFrame(i);
 		frame.setDefaultCloseOperation(EXIT_ON_CLOSE);
 		try {
@@ -61,19 +63,28 @@ public class PLPRuntimeFrame extends JFrame {
 		return frame;
 	}
 
-	private PLPRuntimeFrame(BufferedImage image) {
+	private PLPRuntimeFrame(PLPRuntimeImage image) {
 		this.image = image;
+		context = PLPRuntimeContext.current();
+		if (context != null) {
+			context.addFrame(this);
+		}
 	}
 
 	// initializes frame for display
 	private void initialize() {
 		Container contentPane = getContentPane();
 		icon = new ImageIcon();
-		icon.setImage(image);
+		icon.setImage(image.read());
 		contentPane.add(new JLabel(icon));
 		pack();
-		setLocationRelativeTo(last);  //initial location is centered.
-		last = this;
+		if (context == null) {
+			setLocationRelativeTo(last);  //initial location is centered.
+			last = this;
+		} else {
+			setLocationRelativeTo(context.lastFrame);
+			context.lastFrame = this;
+		}
 	}
 
 	
@@ -82,7 +93,7 @@ public class PLPRuntimeFrame extends JFrame {
 	public PLPRuntimeFrame moveFrame(final int x, final int y) {
 		PLPRuntimeLog.globalLogAddEntry("moveFrame");		
 		try {
-			SwingUtilities.invokeAndWait(new Runnable() {
+			invokeAndWait(new Runnable() {
 				public void run() {
 					setLocation(x,y);
 				}
@@ -114,12 +125,13 @@ public class PLPRuntimeFrame extends JFrame {
 	}
 
 
-	private void setImage(final BufferedImage image2) {
+	private void setImage(final PLPRuntimeImage image2) {
 		PLPRuntimeLog.globalLogAddEntry("showImage");
+		image = image2;
 		try {
-			SwingUtilities.invokeAndWait(new Runnable() {
+			invokeAndWait(new Runnable() {
 				public void run() {
-					BufferedImage image1 = image2;
+					BufferedImage image1 = image2.read();
 					icon.setImage(image1);
 					pack();
 					repaint();
@@ -133,6 +145,25 @@ public class PLPRuntimeFrame extends JFrame {
 	}
 
 
+	/**
+	 * Runs task on the event dispatch thread and waits for it to finish.
+	 * SwingUtilities.invokeAndWait waits in a monitor, which pins a virtual
+	 * thread to its carrier, while this parks it, see ProgramExecutor.
+	 */
+	static void invokeAndWait(Runnable task) throws InterruptedException, InvocationTargetException {
+		if (SwingUtilities.isEventDispatchThread()) {
+			task.run();
+			return;
+		}
+		FutureTask<Void> future = new FutureTask<Void>(task, null);
+		SwingUtilities.invokeLater(future);
+		try {
+			future.get();
+		} catch (ExecutionException e) {
+			throw new InvocationTargetException(e.getCause());
+		}
+	}
+
 	public static final String getXValDesc = "()I";
 	public int getXVal(){
 		PLPRuntimeLog.globalLogAddEntry("getX");
@@ -0,0 +1,118 @@
+package compiler;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The runtime value of an image variable.
+ *
+ * A handle refers to pixels that may be shared with other handles.  Copying
+ * an image only creates a new handle on the same pixels and counts it.  A
+ * filter applied in place writes into the pixels of its handle if no other
+ * handle refers to them, and otherwise gives its handle new pixels, so that
+ * the other handles never see the change.
+ *
+ * The count is not decreased when a handle is garbage collected, so pixels
+ * may be treated as shared after all but one of their handles are gone.
+ * That only costs an allocation.
+ */
+public class PLPRuntimeImage {
+
+	public final static String JVMClassName = "cop5556sp17/PLPRuntimeImage";
+	public final static String JVMDesc = "Lcop5556sp17/PLPRuntimeImage;";
+
+	static final class Buffer {
+		final BufferedImage pixels;
+		final AtomicInteger handles = new AtomicInteger(1);
+
+		Buffer(BufferedImage pixels) {
+			this.pixels = pixels;
+		}
+	}
+
+	private Buffer buffer;
+
+	public PLPRuntimeImage(BufferedImage pixels) {
+		buffer = new Buffer(pixels);
+	}
+
+	private PLPRuntimeImage(Buffer buffer) {
+		buffer.handles.incrementAndGet();
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Returns a new handle on the pixels of this image.
+	 */
+	public PLPRuntimeImage share() {
+		return new PLPRuntimeImage(buffer);
+	}
+
+	/**
+	 * Returns the pixels of this image.  They may be shared, so they must
+	 * only be read.
+	 */
+	public BufferedImage read() {
+		return buffer.pixels;
+	}
+
+	/**
+	 * Returns the pixels of this image for writing in place. If another
+	 * handle may refer to them, this handle first gets a copy of them of
+	 * the same size and type.
+	 */
+	public BufferedImage write() {
+		if (isShared()) {
+			BufferedImage pixels = buffer.pixels;
+			ColorModel colorModel = pixels.getColorModel();
+			PLPRuntimeContext.charge((long) pixels.getWidth() * pixels.getHeight());
+			replace(new BufferedImage(colorModel, pixels.copyData(null), colorModel.isAlphaPremultiplied(), null));
+		}
+		return buffer.pixels;
+	}
+
+	/**
+	 * Allocates the pixels of a new image, charging them to the context of
+	 * the current thread first, see PLPRuntimeContext.
+	 */
+	public static BufferedImage allocate(int width, int height, int imageType) {
+		PLPRuntimeContext.charge((long) width * height);
+		return new BufferedImage(width, height, imageType);
+	}
+
+	/**
+	 * Allocates the pixels of a new image with the given color model.
+	 */
+	public static BufferedImage allocate(ColorModel colorModel, int width, int height) {
+		PLPRuntimeContext.charge((long) width * height);
+		return new BufferedImage(colorModel, colorModel.createCompatibleWritableRaster(width, height), colorModel.isAlphaPremultiplied(), null);
+	}
+
+	/**
+	 * Returns true if another handle may refer to the pixels of this image.
+	 */
+	public boolean isShared() {
+		return buffer.handles.get() > 1;
+	}
+
+	/**
+	 * Gives this handle new pixels, which no other handle may refer to.
+	 */
+	public void replace(BufferedImage pixels) {
+		if (pixels != buffer.pixels) {
+			buffer.handles.decrementAndGet();
+			buffer = new Buffer(pixels);
+		}
+	}
+
+	public final static String getWidthSig = "()I";
+	public int getWidth() {
+		return buffer.pixels.getWidth();
+	}
+
+	public final static String getHeightSig = "()I";
+	public int getHeight() {
+		return buffer.pixels.getHeight();
+	}
+}
@@ -16,6 +16,7 @@ public class PLPRuntimeImageIO{
 	public static final String StringDesc = "Ljava/lang/String;";
 	public static final String BufferedImageDesc = "Ljava/awt/image/BufferedImage;";
 	public static final String BufferedImageClassName = "java/awt/image/BufferedImage";
+	public static final String ImageDesc = PLPRuntimeImage.JVMDesc;
 	public final static String StringArrayDesc = "[Ljava/lang/String;";
 	public final static String FileDesc = "Ljava/io/File;";
 	public final static String URLDesc = "Ljava/net/URL;";
@@ -23,7 +24,7 @@ public class PLPRuntimeImageIO{
 
 	public static final String getURLSig = "("+ StringArrayDesc + "I)" + URLDesc; 
 	public static URL getURL(String[] args, int index) {
-		PLPRuntimeLog.globalLogAddEntry("getURL("+args[index] + ")");
+		PLPRuntimeLog.globalLogAddCall("getURL", args[index]);
 		URL url;
 		try {
 			url = new URL(args[index]);
@@ -33,36 +34,45 @@ public class PLPRuntimeImageIO{
 		return url;
 	}
 
-	public static final String readFromFileDesc = "(" + FileDesc + ")" + BufferedImageDesc;
-	public static BufferedImage readFromFile(File f) {
-		PLPRuntimeLog.globalLogAddEntry("readFromFile("+f+")");
+	public static final String readFromFileDesc = "(" + FileDesc + ")" + ImageDesc;
+	public static PLPRuntimeImage readFromFile(File f) {
+		PLPRuntimeLog.globalLogAddCall("readFromFile", f);
 		BufferedImage bi;
 		try {
 			bi = ImageIO.read(f);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
-		return bi;
+		if (bi == null) {
+			return null;
+		}
+		PLPRuntimeContext.charge(bi);
+		return new PLPRuntimeImage(bi);
 	}
 
-	public static final String writeImageDesc = "(" +  BufferedImageDesc 
-			+ FileDesc + ")" + BufferedImageDesc;
-	public static BufferedImage write(BufferedImage image, File f) {
-		PLPRuntimeLog.globalLogAddEntry("write("+f+")");
+	public static final String writeImageDesc = "(" +  ImageDesc 
+			+ FileDesc + ")" + ImageDesc;
+	public static PLPRuntimeImage write(PLPRuntimeImage image, File f) {
+		PLPRuntimeLog.globalLogAddCall("write", f);
 		try {
-			ImageIO.write(image, "jpg", f);
+			ImageIO.write(image.read(), "jpg", f);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 		return image;
 	}
 
-	public final static String readFromURLSig = "(Ljava/net/URL;)" + BufferedImageDesc;
-	public static BufferedImage readFromURL(URL url) {
-		PLPRuntimeLog.globalLogAddEntry("readFromURL("+url+")");
+	public final static String readFromURLSig = "(Ljava/net/URL;)" + ImageDesc;
+	public static PLPRuntimeImage readFromURL(URL url) {
+		PLPRuntimeLog.globalLogAddCall("readFromURL", url);
 		try {
 			System.out.println("reading image from url " + url);
-			return ImageIO.read(url);
+			BufferedImage bi = ImageIO.read(url);
+			if (bi == null) {
+				return null;
+			}
+			PLPRuntimeContext.charge(bi);
+			return new PLPRuntimeImage(bi);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
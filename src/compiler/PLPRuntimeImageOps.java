@@ -14,42 +14,40 @@ import java.util.Hashtable;
 
 public class PLPRuntimeImageOps {
 
-	static StringBuilder log;
-	public static void setLog(StringBuilder log){
-		PLPRuntimeFrame.log = log;
-	};
-	
 	public static final String JVMName = "cop5556sp17/PLPRuntimeImageOps";
-	public final static String getWidthSig = "()I";
-	// use getWidth method of BufferedImage
+	public final static String getWidthSig = PLPRuntimeImage.getWidthSig;
+	// use getWidth method of PLPRuntimeImage
 
-	public final static String getHeightSig = "()I";
-	// use getHeight method of BufferedImage
+	public final static String getHeightSig = PLPRuntimeImage.getHeightSig;
+	// use getHeight method of PLPRuntimeImage
 
-	public final static String scaleSig = "(" + PLPRuntimeImageIO.BufferedImageDesc + "I)" + PLPRuntimeImageIO.BufferedImageDesc;
-	public static BufferedImage scale(BufferedImage image, int factor) {
+	public final static String scaleSig = "(" + PLPRuntimeImageIO.ImageDesc + "I)" + PLPRuntimeImageIO.ImageDesc;
+	public static PLPRuntimeImage scale(PLPRuntimeImage handle, int factor) {
 		PLPRuntimeLog.globalLogAddEntry("scale");
+		BufferedImage image = handle.read();
 		int w = image.getWidth();
 		int h = image.getHeight();
-		BufferedImage scaledImage = new BufferedImage(w * factor, h * factor, image.getType());
+		BufferedImage scaledImage = PLPRuntimeImage.allocate(w * factor, h * factor, image.getType());
 		AffineTransform at = new AffineTransform();
 		at.scale(factor, factor);
 		AffineTransformOp op = new AffineTransformOp(at, AffineTransformOp.TYPE_BILINEAR);
 		scaledImage = op.filter(image, scaledImage);
-		return scaledImage;
+		return new PLPRuntimeImage(scaledImage);
 	}
 
-	public static final String addSig = "(" + PLPRuntimeImageIO.BufferedImageDesc 
-			+ PLPRuntimeImageIO.BufferedImageDesc + ")" + PLPRuntimeImageIO.BufferedImageDesc;
-	public static BufferedImage add(BufferedImage i0, BufferedImage i1) {
+	public static final String addSig = "(" + PLPRuntimeImageIO.ImageDesc 
+			+ PLPRuntimeImageIO.ImageDesc + ")" + PLPRuntimeImageIO.ImageDesc;
+	public static PLPRuntimeImage add(PLPRuntimeImage image0, PLPRuntimeImage image1) {
 		PLPRuntimeLog.globalLogAddEntry("add");
+		BufferedImage i0 = image0.read();
+		BufferedImage i1 = image1.read();
 		int w0 = i0.getWidth();
 		int w1 = i1.getWidth();
 		int h0 = i0.getHeight();
 		int h1 = i0.getHeight();
 		int w = w0 <= w1 ? w0 : w1;
 		int h = h0 <= h1 ? h0 : h1;
-		BufferedImage dest = new BufferedImage(w,h,i0.getType());		for (int i = 0; i < h; i++) {
+		BufferedImage dest = PLPRuntimeImage.allocate(w,h,i0.getType());		for (int i = 0; i < h; i++) {
 			for (int j = 0; j < w; j++) {
 				Color c0 = new Color(i0.getRGB(j, i));
 				Color c1 = new Color(i1.getRGB(j, i));
@@ -64,20 +62,22 @@ public class PLPRuntimeImageOps {
 				dest.setRGB(j, i, newColor.getRGB());
 			}
 		}
-		return dest;
+		return new PLPRuntimeImage(dest);
 	}
 
-	public static final String subSig = "(" + PLPRuntimeImageIO.BufferedImageDesc 
-			+ PLPRuntimeImageIO.BufferedImageDesc + ")" + PLPRuntimeImageIO.BufferedImageDesc;	
-	public static BufferedImage sub(BufferedImage i0, BufferedImage i1) {
+	public static final String subSig = "(" + PLPRuntimeImageIO.ImageDesc 
+			+ PLPRuntimeImageIO.ImageDesc + ")" + PLPRuntimeImageIO.ImageDesc;	
+	public static PLPRuntimeImage sub(PLPRuntimeImage image0, PLPRuntimeImage image1) {
 		PLPRuntimeLog.globalLogAddEntry("sub");
+		BufferedImage i0 = image0.read();
+		BufferedImage i1 = image1.read();
 		int w0 = i0.getWidth();
 		int w1 = i1.getWidth();
 		int h0 = i0.getHeight();
 		int h1 = i0.getHeight();
 		int w = w0 <= w1 ? w0 : w1;
 		int h = h0 <= h1 ? h0 : h1;
-		BufferedImage dest = new BufferedImage(w,h,i0.getType());
+		BufferedImage dest = PLPRuntimeImage.allocate(w,h,i0.getType());
 		for (int i = 0; i < h; i++) {
 			for (int j = 0; j < w; j++) {
 				Color c0 = new Color(i0.getRGB(j, i));
@@ -93,16 +93,17 @@ public class PLPRuntimeImageOps {
 				dest.setRGB(j, i, newColor.getRGB());
 			}
 		}
-		return dest;
+		return new PLPRuntimeImage(dest);
 	}
 	
-	public static final String mulSig = "(" + PLPRuntimeImageIO.BufferedImageDesc 
-			+ "I" + ")" + PLPRuntimeImageIO.BufferedImageDesc;
-	public static BufferedImage mul(BufferedImage i0, int factor) {
+	public static final String mulSig = "(" + PLPRuntimeImageIO.ImageDesc 
+			+ "I" + ")" + PLPRuntimeImageIO.ImageDesc;
+	public static PLPRuntimeImage mul(PLPRuntimeImage image0, int factor) {
 		PLPRuntimeLog.globalLogAddEntry("mul");
+		BufferedImage i0 = image0.read();
 		int w = i0.getWidth();
 		int h = i0.getHeight();
-		BufferedImage dest = new BufferedImage(w,h,i0.getType());		for (int i = 0; i < h; i++) {
+		BufferedImage dest = PLPRuntimeImage.allocate(w,h,i0.getType());		for (int i = 0; i < h; i++) {
 			for (int j = 0; j < w; j++) {
 				Color c0 = new Color(i0.getRGB(j, i));
 				int red = (int) (c0.getRed() * factor);
@@ -116,16 +117,17 @@ public class PLPRuntimeImageOps {
 				dest.setRGB(j, i, newColor.getRGB());
 			}
 		}
-		return dest;
+		return new PLPRuntimeImage(dest);
 	}
 
-	public static final String divSig = "(" + PLPRuntimeImageIO.BufferedImageDesc 
-			+ "I" + ")" + PLPRuntimeImageIO.BufferedImageDesc;
-	public static BufferedImage div(BufferedImage i0, int divisor) {
-		PLPRuntimeLog.globalLogAddEntry("div");		
+	public static final String divSig = "(" + PLPRuntimeImageIO.ImageDesc 
+			+ "I" + ")" + PLPRuntimeImageIO.ImageDesc;
+	public static PLPRuntimeImage div(PLPRuntimeImage image0, int divisor) {
+		PLPRuntimeLog.globalLogAddEntry("div");
+		BufferedImage i0 = image0.read();
 		int w = i0.getWidth();
 		int h = i0.getHeight();
-		BufferedImage dest = new BufferedImage(w,h,i0.getType());
+		BufferedImage dest = PLPRuntimeImage.allocate(w,h,i0.getType());
 		for (int i = 0; i < h; i++) {
 			for (int j = 0; j < w; j++) {
 				Color c0 = new Color(i0.getRGB(j, i));
@@ -140,16 +142,17 @@ public class PLPRuntimeImageOps {
 				dest.setRGB(j, i, newColor.getRGB());
 			}
 		}
-		return dest;
+		return new PLPRuntimeImage(dest);
 	}
 
-	public static final String modSig = "(" + PLPRuntimeImageIO.BufferedImageDesc 
-			+ "I" + ")" + PLPRuntimeImageIO.BufferedImageDesc;
-	public static BufferedImage mod(BufferedImage i0, int divisor) {
+	public static final String modSig = "(" + PLPRuntimeImageIO.ImageDesc 
+			+ "I" + ")" + PLPRuntimeImageIO.ImageDesc;
+	public static PLPRuntimeImage mod(PLPRuntimeImage image0, int divisor) {
 		PLPRuntimeLog.globalLogAddEntry("mod");
+		BufferedImage i0 = image0.read();
 		int w = i0.getWidth();
 		int h = i0.getHeight();
-		BufferedImage dest = new BufferedImage(w,h,i0.getType());
+		BufferedImage dest = PLPRuntimeImage.allocate(w,h,i0.getType());
 		for (int i = 0; i < h; i++) {
 			for (int j = 0; j < w; j++) {
 				Color c0 = new Color(i0.getRGB(j, i));
@@ -164,16 +167,16 @@ public class PLPRuntimeImageOps {
 				dest.setRGB(j, i, newColor.getRGB());
 			}
 		}
-		return dest;
+		return new PLPRuntimeImage(dest);
 	}
 	
-	public static final String copyImageSig = "("+PLPRuntimeImageIO.BufferedImageDesc+")"+PLPRuntimeImageIO.BufferedImageDesc; 
-	public static BufferedImage copyImage(BufferedImage source){
+	public static final String copyImageSig = "("+PLPRuntimeImageIO.ImageDesc+")"+PLPRuntimeImageIO.ImageDesc; 
+	/**
+	 * Returns a copy of source.  The pixels are only copied when one of the
+	 * images is modified in place.
+	 */
+	public static PLPRuntimeImage copyImage(PLPRuntimeImage source){
 		PLPRuntimeLog.globalLogAddEntry("copyImage");
-	    BufferedImage b = new BufferedImage(source.getWidth(), source.getHeight(), source.getType());
-	    Graphics2D g = (Graphics2D) b.getGraphics();
-	    g.drawImage(source, 0, 0, null);
-	    g.dispose();
-	    return b;
+		return source.share();
 	}
 }
@@ -0,0 +1,121 @@
+package compiler;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Links the invokedynamic instructions that generated code uses to call
+ * the image and filter ops to the implementation of a backend.
+ *
+ * The name of a call site is the name of the op, and its type is the type
+ * of the op. A backend is a list of classes searched in order for a static
+ * method of that name and type. The backend is chosen at startup by the
+ * system property plp.backend, and is "scalar" unless set. Since the call
+ * sites are MutableCallSites, setBackend and relink switch loaded programs
+ * to another backend without recompiling them. A call site linked by
+ * bootstrapBackend is bound to the backend named by its static argument,
+ * which a program generated from a profile chooses per site, and is not
+ * switched.
+ */
+public class PLPRuntimeLinker {
+
+	public static final String JVMClassName = "cop5556sp17/PLPRuntimeLinker";
+	public static final String bootstrapDesc = "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;";
+	public static final String bootstrapBackendDesc = "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;)Ljava/lang/invoke/CallSite;";
+
+	static final Map<String, Class<?>[]> backends = new LinkedHashMap<String, Class<?>[]>();
+	static {
+		backends.put("scalar", new Class<?>[] { PLPRuntimeImageOps.class, PLPRuntimeFilterOps.class });
+		backends.put("parallel", new Class<?>[] { PLPRuntimeParallelOps.class, PLPRuntimeImageOps.class, PLPRuntimeFilterOps.class });
+	}
+
+	/** A call site linked by bootstrap; the site goes away with its class. */
+	static class Site {
+		final String name;
+		final WeakReference<MutableCallSite> site;
+
+		Site(String name, MutableCallSite site) {
+			this.name = name;
+			this.site = new WeakReference<MutableCallSite>(site);
+		}
+	}
+
+	static final List<Site> sites = new ArrayList<Site>();
+	static String backend = System.getProperty("plp.backend", "scalar");
+
+	public static CallSite bootstrap(MethodHandles.Lookup caller, String name, MethodType type) throws ReflectiveOperationException {
+		synchronized (sites) {
+			MutableCallSite site = new MutableCallSite(find(backend, name, type));
+			sites.add(new Site(name, site));
+			return site;
+		}
+	}
+
+	public static CallSite bootstrapBackend(MethodHandles.Lookup caller, String name, MethodType type, String backend)
+			throws ReflectiveOperationException {
+		return new ConstantCallSite(find(backend, name, type));
+	}
+
+	public static String getBackend() {
+		synchronized (sites) {
+			return backend;
+		}
+	}
+
+	/**
+	 * Links every call site, those of programs already running included,
+	 * to the given backend.
+	 */
+	public static void setBackend(String backend) throws ReflectiveOperationException {
+		synchronized (sites) {
+			relink(null, backend);
+			PLPRuntimeLinker.backend = backend;
+		}
+	}
+
+	/**
+	 * Links the call sites of the op name, or of every op if name is null,
+	 * to the given backend. Sites linked later use the startup backend.
+	 */
+	public static void relink(String name, String backend) throws ReflectiveOperationException {
+		synchronized (sites) {
+			List<MutableCallSite> changed = new ArrayList<MutableCallSite>();
+			for (Iterator<Site> i = sites.iterator(); i.hasNext();) {
+				Site entry = i.next();
+				MutableCallSite site = entry.site.get();
+				if (site == null) {
+					i.remove();
+				} else if (name == null || name.equals(entry.name)) {
+					site.setTarget(find(backend, entry.name, site.type()));
+					changed.add(site);
+				}
+			}
+			MutableCallSite.syncAll(changed.toArray(new MutableCallSite[changed.size()]));
+		}
+	}
+
+	static MethodHandle find(String backend, String name, MethodType type) throws ReflectiveOperationException {
+		Class<?>[] classes = backends.get(backend);
+		if (classes == null) {
+			throw new IllegalArgumentException("unknown backend " + backend);
+		}
+		for (Class<?> c : classes) {
+			try {
+				return MethodHandles.lookup().findStatic(c, name, type);
+			} catch (NoSuchMethodException e) {
+				// try the next class
+			}
+		}
+		throw new NoSuchMethodException(name + type + " in backend " + backend);
+	}
+}
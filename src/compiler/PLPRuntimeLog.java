@@ -1,5 +1,13 @@
 package compiler;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MutableCallSite;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /**
  * 
  * A simple globalLog that can be used to record a trace of 
@@ -9,24 +17,215 @@ package compiler;
  * 
  * The output can be used for grading and debugging.
  *
+ * The entries of a program that runs in a PLPRuntimeContext go to the log
+ * of the context instead.
+ *
+ * A log is a ring buffer of a fixed number of records, which threads add
+ * to without locking: a record is its kind, a constant string, and an int,
+ * boolean or object argument, and its text is only formatted by toString.
+ * What happens when the buffer is full depends on the Overflow policy,
+ * and getLost tells how many entries are missing from the text. The
+ * capacity and policy of the logs created by initLog and
+ * PLPRuntimeContext.setLogging are given by the system properties
+ * plp.log.capacity and plp.log.overflow.
+ *
+ * Entries are only added while tracing is on. It is on while there is a
+ * live log: the global log between initLog and resetLogToNull, or the log
+ * of a context between PLPRuntimeContext.setLogging and setLogging(false)
+ * or close. Once setTracing is called, only setTracing turns it on or off;
+ * so a production run that calls setTracing(false) stays untraced whatever
+ * logs its programs create. A log created with new does not count. Whether
+ * it is on is
+ * the target of a
+ * MutableCallSite, which the JIT compiler takes as a constant and
+ * recompiles the code that depends on when it changes, so that the
+ * globalLogAdd* methods, which look at it first and are small enough to
+ * be inlined, compile to nothing while it is off.
  */
 public class PLPRuntimeLog {
 
-	private StringBuffer sb;
+	/** What a full log does with further entries. */
+	public enum Overflow {
+		/** Keeps the newest entries, overwriting the oldest. */
+		OVERWRITE,
+		/** Keeps the oldest entries, dropping further ones. */
+		DROP
+	}
+
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+	static final int capacityProperty = Integer.getInteger("plp.log.capacity", DEFAULT_CAPACITY);
+	static final Overflow overflowProperty = Overflow.valueOf(System.getProperty("plp.log.overflow", Overflow.OVERWRITE.name()));
+
+	static final int TEXT = 0;
+	static final int CALL = 1;
+	static final int INT = 2;
+	static final int BOOLEAN = 3;
+	/** The sequence number of a record that is being written. */
+	static final long WRITING = -1;
+
+	final int mask;
+	final Overflow overflow;
+	/** The number of entries ever added. */
+	private final AtomicLong next = new AtomicLong();
+	/** The sequence number of the entry in each record, or WRITING. */
+	private final AtomicLongArray sequence;
+	private final AtomicIntegerArray kinds;
+	private final AtomicReferenceArray<String> texts;
+	private final AtomicLongArray values;
+	private final AtomicReferenceArray<Object> args;
+
+	static final MutableCallSite tracingSite = new MutableCallSite(MethodHandles.constant(boolean.class, false));
+	static final MethodHandle tracing = tracingSite.dynamicInvoker();
+	static volatile boolean tracingOn = false;
+	/** Set once setTracing has been called. */
+	static boolean tracingSet = false;
+	/** The number of live logs; guarded by tracingSite. */
+	static int liveLogs = 0;
 
 	public static PLPRuntimeLog globalLog;
 
+	public PLPRuntimeLog() {
+		this(capacityProperty, overflowProperty);
+	}
+
+	/**
+	 * @param capacity
+	 *            the number of entries the log keeps, rounded up to a power
+	 *            of two
+	 */
+	public PLPRuntimeLog(int capacity, Overflow overflow) {
+		if (capacity < 1 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("capacity=" + capacity);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.overflow = overflow;
+		sequence = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequence.set(i, WRITING);
+		}
+		kinds = new AtomicIntegerArray(size);
+		texts = new AtomicReferenceArray<String>(size);
+		values = new AtomicLongArray(size);
+		args = new AtomicReferenceArray<Object>(size);
+	}
+
+	/**
+	 * Turns tracing on or off in every program, those already running
+	 * included. While it is off, no log gets entries.
+	 */
+	public static void setTracing(boolean on) {
+		synchronized (tracingSite) {
+			tracingSet = true;
+			switchTracing(on);
+		}
+	}
+
+	/**
+	 * Counts a log that becomes live, or is dropped if live is false, and
+	 * turns tracing on while any is live, unless setTracing was called.
+	 */
+	static void traceLog(boolean live) {
+		synchronized (tracingSite) {
+			liveLogs += live ? 1 : -1;
+			if (!tracingSet) {
+				switchTracing(liveLogs > 0);
+			}
+		}
+	}
+
+	private static void switchTracing(boolean on) {
+		if (tracingOn != on) {
+			tracingSite.setTarget(MethodHandles.constant(boolean.class, on));
+			MutableCallSite.syncAll(new MutableCallSite[] { tracingSite });
+			tracingOn = on;
+		}
+	}
+
+	public static boolean isTracing() {
+		try {
+			return (boolean) tracing.invokeExact();
+		} catch (Throwable e) {
+			throw new AssertionError(e);
+		}
+	}
+
 	public static void initLog() {
-		globalLog = new PLPRuntimeLog();
-		globalLog.sb = new StringBuffer();
+		setGlobalLog(new PLPRuntimeLog());
 	}
-	
+
+	public static void initLog(int capacity, Overflow overflow) {
+		setGlobalLog(new PLPRuntimeLog(capacity, overflow));
+	}
+
+	private static synchronized void setGlobalLog(PLPRuntimeLog log) {
+		boolean live = globalLog != null;
+		globalLog = log;
+		if (live != (log != null)) {
+			traceLog(!live);
+		}
+	}
+
+	/**
+	 * Returns the log entries of the current thread go to, or null.
+	 */
+	static PLPRuntimeLog current() {
+		PLPRuntimeContext context = PLPRuntimeContext.current();
+		return context == null ? globalLog : context.log;
+	}
+
 	public static void globalLogAddEntry(String entry){
-		if (globalLog != null) globalLog.addEntry(entry);
+		if (isTracing()) addEntry(TEXT, entry, 0, null);
+	}
+
+	/**
+	 * Adds the entry name(arg).
+	 */
+	public static void globalLogAddCall(String name, Object arg) {
+		if (isTracing()) addEntry(CALL, name, 0, arg);
+	}
+
+	public static void globalLogAddInt(int value) {
+		if (isTracing()) addEntry(INT, null, value, null);
+	}
+
+	public static void globalLogAddBoolean(boolean value) {
+		if (isTracing()) addEntry(BOOLEAN, null, value ? 1 : 0, null);
+	}
+
+	static void addEntry(int kind, String text, long value, Object arg) {
+		PLPRuntimeLog log = current();
+		if (log != null) log.add(kind, text, value, arg);
 	}
-	
-	private void addEntry(String entry) {
-		sb.append(entry);
+
+	/**
+	 * Claims the next record and writes it. The record is marked as being
+	 * written while its fields change, so that toString skips it rather
+	 * than mix its fields with those of the entry it overwrites.
+	 */
+	private void add(int kind, String text, long value, Object arg) {
+		long n = next.getAndIncrement();
+		if (overflow == Overflow.DROP && n > mask) {
+			return;
+		}
+		int i = (int) n & mask;
+		sequence.set(i, WRITING);
+		kinds.lazySet(i, kind);
+		texts.lazySet(i, text);
+		values.lazySet(i, value);
+		args.lazySet(i, arg);
+		sequence.lazySet(i, n);
+	}
+
+	/**
+	 * Returns the number of entries added that are not in the text, because
+	 * the log was full or they were being written while toString ran.
+	 */
+	public long getLost() {
+		return next.get() - entries(null);
 	}
 
 	public static String getString() {
@@ -35,11 +234,62 @@ public class PLPRuntimeLog {
 
 	@Override
 	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		entries(sb);
 		return sb.toString();
 	}
 
+	/**
+	 * Appends the text of the entries in the log to sb, unless it is null,
+	 * oldest first, and returns their number.
+	 */
+	private int entries(StringBuilder sb) {
+		long end = next.get();
+		long start = 0;
+		if (end > mask + 1) {
+			if (overflow == Overflow.DROP) {
+				end = mask + 1;
+			} else {
+				start = end - (mask + 1);
+			}
+		}
+		int count = 0;
+		for (long n = start; n < end; n++) {
+			int i = (int) n & mask;
+			if (sequence.get(i) != n) {
+				continue;
+			}
+			int kind = kinds.get(i);
+			String text = texts.get(i);
+			long value = values.get(i);
+			Object arg = args.get(i);
+			if (sequence.get(i) != n) {
+				continue;
+			}
+			count++;
+			if (sb == null) {
+				continue;
+			}
+			switch (kind) {
+			case TEXT:
+				sb.append(text);
+				break;
+			case CALL:
+				sb.append(text).append('(').append(arg).append(')');
+				break;
+			case INT:
+				sb.append((int) value);
+				break;
+			case BOOLEAN:
+				sb.append(value != 0);
+				break;
+			}
+		}
+		return count;
+	}
+
 	public static void resetLogToNull() {
-		globalLog = null;
+		setGlobalLog(null);
 	}
 
 }
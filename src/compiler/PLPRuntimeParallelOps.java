@@ -0,0 +1,201 @@
+package compiler;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The ops of the "parallel" backend of PLPRuntimeLinker. They compute the
+ * same pixels as the ops of the same name in PLPRuntimeImageOps and
+ * PLPRuntimeFilterOps, but split the rows among the threads of the common
+ * ForkJoinPool. Images that are small, or whose pixels are not stored one
+ * per int or per group of bytes so that rows can be written concurrently,
+ * are left to the scalar ops.
+ */
+public class PLPRuntimeParallelOps {
+
+	static final int MIN_PIXELS = 1 << 16;
+	static final int ROWS_PER_TASK = 16;
+
+	/** Computes the new value of each pixel. */
+	static abstract class Pixels {
+		abstract int at(int x, int y);
+	}
+
+	static final class Rows extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final Pixels pixels;
+		final BufferedImage dest;
+		final int w, lo, hi;
+
+		Rows(Pixels pixels, BufferedImage dest, int w, int lo, int hi) {
+			this.pixels = pixels;
+			this.dest = dest;
+			this.w = w;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo <= ROWS_PER_TASK) {
+				for (int y = lo; y < hi; y++) {
+					for (int x = 0; x < w; x++) {
+						dest.setRGB(x, y, pixels.at(x, y));
+					}
+				}
+			} else {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new Rows(pixels, dest, w, lo, mid), new Rows(pixels, dest, w, mid, hi));
+			}
+		}
+	}
+
+	static boolean isSplittable(BufferedImage image) {
+		return (long) image.getWidth() * image.getHeight() >= MIN_PIXELS && isSplittableType(image.getType());
+	}
+
+	/**
+	 * Returns true if images of the given BufferedImage type store their
+	 * pixels so that rows can be written concurrently.
+	 */
+	public static boolean isSplittableType(int type) {
+		switch (type) {
+			case BufferedImage.TYPE_INT_RGB:
+			case BufferedImage.TYPE_INT_ARGB:
+			case BufferedImage.TYPE_INT_ARGB_PRE:
+			case BufferedImage.TYPE_INT_BGR:
+			case BufferedImage.TYPE_3BYTE_BGR:
+			case BufferedImage.TYPE_4BYTE_ABGR:
+			case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	static void fill(BufferedImage dest, Pixels pixels) {
+		ForkJoinPool.commonPool().invoke(new Rows(pixels, dest, dest.getWidth(), 0, dest.getHeight()));
+	}
+
+	static int clamp(int c) {
+		return c > 255 ? 255 : (c < 0 ? 0 : c);
+	}
+
+	/** The value of new Color(red, green, blue).getRGB() for components in [0,255]. */
+	static int rgb(int red, int green, int blue) {
+		return 0xFF000000 | red << 16 | green << 8 | blue;
+	}
+
+	public static PLPRuntimeImage add(PLPRuntimeImage image0, PLPRuntimeImage image1) {
+		final BufferedImage i0 = image0.read();
+		final BufferedImage i1 = image1.read();
+		if (!isSplittable(i0)) {
+			return PLPRuntimeImageOps.add(image0, image1);
+		}
+		PLPRuntimeLog.globalLogAddEntry("add");
+		// the height of image1 is not taken into account, as in PLPRuntimeImageOps
+		BufferedImage dest = PLPRuntimeImage.allocate(Math.min(i0.getWidth(), i1.getWidth()), i0.getHeight(), i0.getType());
+		fill(dest, new Pixels() {
+			int at(int x, int y) {
+				int c0 = i0.getRGB(x, y), c1 = i1.getRGB(x, y);
+				return rgb(clamp((c0 >> 16 & 0xFF) + (c1 >> 16 & 0xFF)), clamp((c0 >> 8 & 0xFF) + (c1 >> 8 & 0xFF)),
+						clamp((c0 & 0xFF) + (c1 & 0xFF)));
+			}
+		});
+		return new PLPRuntimeImage(dest);
+	}
+
+	public static PLPRuntimeImage sub(PLPRuntimeImage image0, PLPRuntimeImage image1) {
+		final BufferedImage i0 = image0.read();
+		final BufferedImage i1 = image1.read();
+		if (!isSplittable(i0)) {
+			return PLPRuntimeImageOps.sub(image0, image1);
+		}
+		PLPRuntimeLog.globalLogAddEntry("sub");
+		BufferedImage dest = PLPRuntimeImage.allocate(Math.min(i0.getWidth(), i1.getWidth()), i0.getHeight(), i0.getType());
+		fill(dest, new Pixels() {
+			int at(int x, int y) {
+				int c0 = i0.getRGB(x, y), c1 = i1.getRGB(x, y);
+				return rgb(clamp((c0 >> 16 & 0xFF) - (c1 >> 16 & 0xFF)), clamp((c0 >> 8 & 0xFF) - (c1 >> 8 & 0xFF)),
+						clamp((c0 & 0xFF) - (c1 & 0xFF)));
+			}
+		});
+		return new PLPRuntimeImage(dest);
+	}
+
+	public static PLPRuntimeImage mul(PLPRuntimeImage image0, final int factor) {
+		final BufferedImage i0 = image0.read();
+		if (!isSplittable(i0)) {
+			return PLPRuntimeImageOps.mul(image0, factor);
+		}
+		PLPRuntimeLog.globalLogAddEntry("mul");
+		BufferedImage dest = PLPRuntimeImage.allocate(i0.getWidth(), i0.getHeight(), i0.getType());
+		fill(dest, new Pixels() {
+			int at(int x, int y) {
+				int c0 = i0.getRGB(x, y);
+				return rgb(clamp((c0 >> 16 & 0xFF) * factor), clamp((c0 >> 8 & 0xFF) * factor), clamp((c0 & 0xFF) * factor));
+			}
+		});
+		return new PLPRuntimeImage(dest);
+	}
+
+	public static PLPRuntimeImage div(PLPRuntimeImage image0, final int divisor) {
+		final BufferedImage i0 = image0.read();
+		if (!isSplittable(i0)) {
+			return PLPRuntimeImageOps.div(image0, divisor);
+		}
+		PLPRuntimeLog.globalLogAddEntry("div");
+		BufferedImage dest = PLPRuntimeImage.allocate(i0.getWidth(), i0.getHeight(), i0.getType());
+		fill(dest, new Pixels() {
+			int at(int x, int y) {
+				int c0 = i0.getRGB(x, y);
+				return rgb(clamp((c0 >> 16 & 0xFF) / divisor), clamp((c0 >> 8 & 0xFF) / divisor), clamp((c0 & 0xFF) / divisor));
+			}
+		});
+		return new PLPRuntimeImage(dest);
+	}
+
+	public static PLPRuntimeImage mod(PLPRuntimeImage image0, final int divisor) {
+		final BufferedImage i0 = image0.read();
+		if (!isSplittable(i0)) {
+			return PLPRuntimeImageOps.mod(image0, divisor);
+		}
+		PLPRuntimeLog.globalLogAddEntry("mod");
+		BufferedImage dest = PLPRuntimeImage.allocate(i0.getWidth(), i0.getHeight(), i0.getType());
+		fill(dest, new Pixels() {
+			int at(int x, int y) {
+				int c0 = i0.getRGB(x, y);
+				return rgb(clamp((c0 >> 16 & 0xFF) % divisor), clamp((c0 >> 8 & 0xFF) % divisor), clamp((c0 & 0xFF) % divisor));
+			}
+		});
+		return new PLPRuntimeImage(dest);
+	}
+
+	public static PLPRuntimeImage grayOp(PLPRuntimeImage source, PLPRuntimeImage target) {
+		final BufferedImage image = source.read();
+		if (!isSplittable(image)) {
+			return PLPRuntimeFilterOps.grayOp(source, target);
+		}
+		BufferedImage dest = target == null ? null : target.write();
+		if (dest == null) {
+			dest = PLPRuntimeImage.allocate(image.getColorModel(), image.getWidth(), image.getHeight());
+		}
+		if (!isSplittable(dest)) {
+			return PLPRuntimeFilterOps.grayOp(source, target);
+		}
+		PLPRuntimeLog.globalLogAddEntry("grayOp");
+		fill(dest, new Pixels() {
+			int at(int x, int y) {
+				int c = image.getRGB(x, y);
+				int gray = (int) ((c >> 16 & 0xFF) * 0.299) + (int) ((c >> 8 & 0xFF) * 0.587) + (int) ((c & 0xFF) * 0.114);
+				return rgb(gray, gray, gray);
+			}
+		});
+		if (target == null) {
+			return new PLPRuntimeImage(dest);
+		}
+		target.replace(dest);
+		return target;
+	}
+}
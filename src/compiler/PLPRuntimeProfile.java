@@ -0,0 +1,223 @@
+package compiler;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The profile that a class generated by CodeGenVisitor in profiling mode
+ * records while it runs: how many times each if and while statement and
+ * its body are run, and how many pixels and of which BufferedImage types
+ * the images returned at each image op call site have. The sites are
+ * numbered by ProfileSites.
+ *
+ * The classes of a program share one profile. If the system property
+ * plp.profile names a file, the profiles are added to the ones in that
+ * file when the JVM exits, so that the file collects any number of runs.
+ * CodeGenVisitor reads it back to generate classes from the profile.
+ *
+ * In the file, a program starts with a line "program name sites", which is
+ * followed by a line "site count n" for each counter that is not zero and
+ * a line "site image calls pixels types" for each op site that ran, with
+ * the types as a bit set.
+ */
+public class PLPRuntimeProfile {
+
+	public static final String JVMClassName = "cop5556sp17/PLPRuntimeProfile";
+	public static final String JVMDesc = "Lcop5556sp17/PLPRuntimeProfile;";
+	public static final String forProgramSig = "(Ljava/lang/String;I)" + JVMDesc;
+	public static final String countSig = "(I)V";
+	public static final String imageSig = "(" + PLPRuntimeImage.JVMDesc + "I)" + PLPRuntimeImage.JVMDesc;
+
+	static final Map<String, PLPRuntimeProfile> profiles = new LinkedHashMap<String, PLPRuntimeProfile>();
+	static boolean saveOnExit = false;
+
+	final String program;
+	final AtomicLongArray counts;
+	// the image statistics of each site are guarded by the profile
+	final long[] images;
+	final long[] pixels;
+	final int[] types;
+
+	PLPRuntimeProfile(String program, int sites) {
+		this.program = program;
+		counts = new AtomicLongArray(sites);
+		images = new long[sites];
+		pixels = new long[sites];
+		types = new int[sites];
+	}
+
+	/**
+	 * Returns the profile of the program name with the given number of
+	 * sites. A program of the same name with another number of sites
+	 * starts a new profile.
+	 */
+	public static PLPRuntimeProfile forProgram(String name, int sites) {
+		synchronized (profiles) {
+			PLPRuntimeProfile profile = profiles.get(name);
+			if (profile == null || profile.size() != sites) {
+				profile = new PLPRuntimeProfile(name, sites);
+				profiles.put(name, profile);
+			}
+			final String file = System.getProperty("plp.profile");
+			if (file != null && !saveOnExit) {
+				saveOnExit = true;
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					@Override
+					public void run() {
+						try {
+							save(Paths.get(file));
+						} catch (IOException e) {
+							System.err.println("Problem writing profile " + file + ": " + e);
+						}
+					}
+				});
+			}
+			return profile;
+		}
+	}
+
+	public void count(int site) {
+		counts.incrementAndGet(site);
+	}
+
+	/**
+	 * Records the size and type of image, the result of the op at site,
+	 * and returns it.
+	 */
+	public PLPRuntimeImage image(PLPRuntimeImage image, int site) {
+		BufferedImage pixels = image.read();
+		synchronized (this) {
+			images[site]++;
+			this.pixels[site] += (long) pixels.getWidth() * pixels.getHeight();
+			types[site] |= 1 << pixels.getType();
+		}
+		return image;
+	}
+
+	public String getProgram() {
+		return program;
+	}
+
+	public int size() {
+		return counts.length();
+	}
+
+	public long getCount(int site) {
+		return counts.get(site);
+	}
+
+	public synchronized long getImageCount(int site) {
+		return images[site];
+	}
+
+	/**
+	 * Returns the mean number of pixels of the images returned at site, or
+	 * 0 if it never ran.
+	 */
+	public synchronized long getMeanPixels(int site) {
+		return images[site] == 0 ? 0 : pixels[site] / images[site];
+	}
+
+	/**
+	 * Returns the set of the BufferedImage types of the images returned at
+	 * site, with type t as bit 1 << t.
+	 */
+	public synchronized int getTypes(int site) {
+		return types[site];
+	}
+
+	/**
+	 * Adds the profile recorded since the last call to save in this JVM to
+	 * the one in file, which need not exist.
+	 */
+	public static void save(Path file) throws IOException {
+		Map<String, PLPRuntimeProfile> merged = Files.exists(file) ? read(file) : new LinkedHashMap<String, PLPRuntimeProfile>();
+		synchronized (profiles) {
+			for (PLPRuntimeProfile profile : profiles.values()) {
+				PLPRuntimeProfile old = merged.get(profile.program);
+				if (old == null || old.size() != profile.size()) {
+					old = new PLPRuntimeProfile(profile.program, profile.size());
+					merged.put(profile.program, old);
+				}
+				profile.moveTo(old);
+			}
+		}
+		StringBuilder text = new StringBuilder();
+		for (PLPRuntimeProfile profile : merged.values()) {
+			profile.write(text);
+		}
+		Path dir = file.toAbsolutePath().getParent();
+		Path temp = Files.createTempFile(dir, ".tmp-", ".profile");
+		Files.write(temp, text.toString().getBytes(StandardCharsets.UTF_8));
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Adds the counts of this profile to profile and clears them.
+	 */
+	synchronized void moveTo(PLPRuntimeProfile profile) {
+		for (int site = 0; site < size(); site++) {
+			profile.counts.addAndGet(site, counts.getAndSet(site, 0));
+			profile.images[site] += images[site];
+			profile.pixels[site] += pixels[site];
+			profile.types[site] |= types[site];
+			images[site] = 0;
+			pixels[site] = 0;
+			types[site] = 0;
+		}
+	}
+
+	synchronized void write(StringBuilder text) {
+		text.append("program ").append(program).append(' ').append(size()).append('\n');
+		for (int site = 0; site < size(); site++) {
+			if (counts.get(site) != 0) {
+				text.append(site).append(" count ").append(counts.get(site)).append('\n');
+			}
+			if (images[site] != 0) {
+				text.append(site).append(" image ").append(images[site]).append(' ').append(pixels[site]).append(' ')
+						.append(types[site]).append('\n');
+			}
+		}
+	}
+
+	/**
+	 * Returns the profiles in file by program name.
+	 */
+	public static Map<String, PLPRuntimeProfile> read(Path file) throws IOException {
+		Map<String, PLPRuntimeProfile> read = new LinkedHashMap<String, PLPRuntimeProfile>();
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		PLPRuntimeProfile profile = null;
+		for (int i = 0; i < lines.size(); i++) {
+			String[] fields = lines.get(i).trim().split(" ");
+			try {
+				if (fields[0].isEmpty()) {
+					continue;
+				} else if (fields[0].equals("program") && fields.length == 3) {
+					profile = new PLPRuntimeProfile(fields[1], Integer.parseInt(fields[2]));
+					read.put(profile.program, profile);
+				} else if (profile != null && fields.length == 3 && fields[1].equals("count")) {
+					profile.counts.set(Integer.parseInt(fields[0]), Long.parseLong(fields[2]));
+				} else if (profile != null && fields.length == 5 && fields[1].equals("image")) {
+					int site = Integer.parseInt(fields[0]);
+					profile.images[site] = Long.parseLong(fields[2]);
+					profile.pixels[site] = Long.parseLong(fields[3]);
+					profile.types[site] = Integer.parseInt(fields[4]);
+				} else {
+					throw new IOException(file + ":" + (i + 1) + ": malformed profile line");
+				}
+			} catch (NumberFormatException | IndexOutOfBoundsException e) {
+				throw new IOException(file + ":" + (i + 1) + ": malformed profile line", e);
+			}
+		}
+		return read;
+	}
+}
@@ -0,0 +1,105 @@
+package compiler;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the statements that a program starts on other threads. Those that
+ * DataflowAnalysis forks mostly read images and wait on I/O, so they run
+ * on a pool of daemon threads of their own rather than on the common
+ * ForkJoinPool, whose threads the parallel ops keep busy. The statements
+ * of a parallel block are pipelines the program asks to run in parallel,
+ * and run on the common pool like the parallel ops.
+ */
+public class PLPRuntimeTasks {
+
+	public static final String JVMClassName = "cop5556sp17/PLPRuntimeTasks";
+	public static final String forkSig = "(Ljava/lang/invoke/MethodHandle;Ljava/lang/Object;)Ljava/util/concurrent/Future;";
+	public static final String joinSig = "(Ljava/util/concurrent/Future;)V";
+
+	static final AtomicInteger threads = new AtomicInteger();
+	static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "plp-task-" + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Starts task, a method of program without arguments.
+	 */
+	public static Future<?> fork(MethodHandle task, Object program) {
+		return executor.submit(call(task, program));
+	}
+
+	/**
+	 * Starts task, a method of program without arguments, in the common
+	 * ForkJoinPool.
+	 */
+	public static Future<?> forkParallel(MethodHandle task, Object program) {
+		return ForkJoinPool.commonPool().submit(call(task, program));
+	}
+
+	/**
+	 * Returns a Callable that runs task in the PLPRuntimeContext of the
+	 * current thread.
+	 */
+	static Callable<Void> call(final MethodHandle task, final Object program) {
+		final PLPRuntimeContext context = PLPRuntimeContext.current();
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				PLPRuntimeContext outer = PLPRuntimeContext.enter(context);
+				try {
+					task.invoke(program);
+				} catch (Exception | Error e) {
+					throw e;
+				} catch (Throwable t) {
+					throw new UndeclaredThrowableException(t);
+				} finally {
+					PLPRuntimeContext.exit(outer);
+				}
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Waits for task to finish, and throws what it threw.
+	 */
+	public static void join(Future<?> task) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					task.get();
+					return;
+				} catch (InterruptedException e) {
+					// the statement has to finish before the program goes on
+					interrupted = true;
+				} catch (ExecutionException e) {
+					PLPRuntimeTasks.<RuntimeException> rethrow(e.getCause());
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T extends Throwable> void rethrow(Throwable t) throws T {
+		throw (T) t;
+	}
+}
@@ -23,6 +23,7 @@ import compiler.AST.IdentLValue;
 import compiler.AST.IfStatement;
 import compiler.AST.ImageOpChain;
 import compiler.AST.IntLitExpression;
+import compiler.AST.ParallelStatement;
 import compiler.AST.ParamDec;
 import compiler.AST.Program;
 import compiler.AST.SleepStatement;
@@ -250,6 +251,9 @@ public class Parser {
             case KW_IF:
                 statement = ifBlock();
                 break;
+            case KW_PARALLEL:
+                statement = parallelBlock();
+                break;
             case IDENT:
                 if (scanner.peek().isKind(ASSIGN)) {
                     statement = assign();
@@ -310,6 +314,18 @@ public class Parser {
         return new IfStatement(firstToken, ifExpression, block);
     }
 
+    public ParallelStatement parallelBlock() throws SyntaxException {
+        Block block = null;
+        Token firstToken = t;
+        try {
+            consume();
+            block = block();
+        } catch (Exception e) {
+            throw new SyntaxException("Illegal token found in parallel block.");
+        }
+        return new ParallelStatement(firstToken, block);
+    }
+
     public SleepStatement opSleep() throws SyntaxException {
         Token firstToken = t;
         Expression sleepExpression = null;
@@ -0,0 +1,366 @@
+package compiler;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Peephole optimizer run by CodeGenVisitor over every generated method
+ * before it is written to the class file.
+ *
+ * The patterns are the ones the code generator actually produces:
+ * <ul>
+ * <li>int constants are pushed with the shortest of ICONST_n, BIPUSH, SIPUSH and LDC
+ * (SIPUSH silently truncates values outside the short range)</li>
+ * <li>xSTORE n; xLOAD n becomes DUP; xSTORE n</li>
+ * <li>ALOAD 0; SWAP; PUTFIELD f; ALOAD 0; GETFIELD f becomes DUP; ALOAD 0; SWAP; PUTFIELD f</li>
+ * <li>values that are pushed and immediately popped are not pushed</li>
+ * <li>jumps to the next instruction, jumps to GOTOs and code following an
+ * unconditional transfer of control are removed or threaded</li>
+ * </ul>
+ * Labels that are the target of a jump are never crossed by a pattern.
+ */
+public class PeepholeOptimizer implements Opcodes {
+
+	/** Upper bound on rewriting rounds, each of which must shrink or simplify the method. */
+	static final int MAX_ROUNDS = 16;
+
+	public static void optimize(MethodNode mn) {
+		InsnList insns = mn.instructions;
+		for (int round = 0; round < MAX_ROUNDS; round++) {
+			Set<LabelNode> targets = jumpTargets(mn);
+			boolean changed = false;
+			for (AbstractInsnNode insn = insns.getFirst(); insn != null;) {
+				AbstractInsnNode next = insn.getNext();
+				changed |= pushConstant(insns, insn);
+				insn = next;
+			}
+			for (AbstractInsnNode insn = insns.getFirst(); insn != null;) {
+				// rewrites only touch insn and what follows it, so prev survives
+				// and the rewritten code is examined again from there
+				AbstractInsnNode prev = insn.getPrevious();
+				if (insn.getOpcode() >= 0 && rewrite(insns, insn, targets)) {
+					changed = true;
+					insn = (prev == null) ? insns.getFirst() : prev.getNext();
+				} else {
+					insn = insn.getNext();
+				}
+			}
+			if (!changed) {
+				return;
+			}
+		}
+	}
+
+	static boolean rewrite(InsnList insns, AbstractInsnNode insn, Set<LabelNode> targets) {
+		return removePushPop(insns, insn, targets)
+				|| collapseStoreLoad(insns, insn, targets)
+				|| collapseFieldReload(insns, insn, targets)
+				|| simplifyJump(insns, insn, targets)
+				|| removeUnreachable(insns, insn, targets);
+	}
+
+	/**
+	 * Returns the labels that can be reached other than by falling through.
+	 */
+	static Set<LabelNode> jumpTargets(MethodNode mn) {
+		Set<LabelNode> targets = new HashSet<LabelNode>();
+		for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+			if (insn instanceof JumpInsnNode) {
+				targets.add(((JumpInsnNode) insn).label);
+			} else if (insn instanceof TableSwitchInsnNode) {
+				targets.add(((TableSwitchInsnNode) insn).dflt);
+				targets.addAll(((TableSwitchInsnNode) insn).labels);
+			} else if (insn instanceof LookupSwitchInsnNode) {
+				targets.add(((LookupSwitchInsnNode) insn).dflt);
+				targets.addAll(((LookupSwitchInsnNode) insn).labels);
+			}
+		}
+		for (TryCatchBlockNode tcb : mn.tryCatchBlocks) {
+			targets.add(tcb.start);
+			targets.add(tcb.end);
+			targets.add(tcb.handler);
+		}
+		return targets;
+	}
+
+	/**
+	 * Returns the next instruction that executes after insn when control falls through,
+	 * or null if a jump target (or the end of the method) comes first.
+	 */
+	static AbstractInsnNode nextInBlock(AbstractInsnNode insn, Set<LabelNode> targets) {
+		for (AbstractInsnNode n = insn.getNext(); n != null; n = n.getNext()) {
+			if (n instanceof LabelNode && targets.contains(n)) {
+				return null;
+			}
+			if (n.getOpcode() >= 0) {
+				return n;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the first instruction executed when control reaches label.
+	 */
+	static AbstractInsnNode firstAfter(LabelNode label) {
+		AbstractInsnNode n = label;
+		while (n != null && n.getOpcode() < 0) {
+			n = n.getNext();
+		}
+		return n;
+	}
+
+	static boolean pushConstant(InsnList insns, AbstractInsnNode insn) {
+		Integer value = null;
+		if (insn.getOpcode() == SIPUSH || insn.getOpcode() == BIPUSH) {
+			value = ((IntInsnNode) insn).operand;
+		} else if (insn instanceof LdcInsnNode && ((LdcInsnNode) insn).cst instanceof Integer) {
+			value = (Integer) ((LdcInsnNode) insn).cst;
+		}
+		if (value == null) {
+			return false;
+		}
+		AbstractInsnNode best = intConstant(value);
+		if (best.getOpcode() == insn.getOpcode()) {
+			return false;
+		}
+		insns.set(insn, best);
+		return true;
+	}
+
+	/**
+	 * Returns the shortest instruction that pushes value.
+	 */
+	static AbstractInsnNode intConstant(int value) {
+		if (value >= -1 && value <= 5) {
+			return new InsnNode(ICONST_0 + value);
+		}
+		if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			return new IntInsnNode(BIPUSH, value);
+		}
+		if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			return new IntInsnNode(SIPUSH, value);
+		}
+		return new LdcInsnNode(value);
+	}
+
+	static boolean isPush(AbstractInsnNode insn) {
+		int op = insn.getOpcode();
+		return op == ILOAD || op == ALOAD || op == ACONST_NULL || (op >= ICONST_M1 && op <= ICONST_5)
+				|| op == BIPUSH || op == SIPUSH || op == DUP
+				|| (insn instanceof LdcInsnNode && !(((LdcInsnNode) insn).cst instanceof Long)
+						&& !(((LdcInsnNode) insn).cst instanceof Double));
+	}
+
+	/**
+	 * push; POP is removed, as is ALOAD 0; GETFIELD f; POP, and
+	 * DUP; xSTORE n; POP which leaves just the store.
+	 */
+	static boolean removePushPop(InsnList insns, AbstractInsnNode insn, Set<LabelNode> targets) {
+		AbstractInsnNode next = nextInBlock(insn, targets);
+		if (next == null) {
+			return false;
+		}
+		if (isPush(insn) && next.getOpcode() == POP) {
+			insns.remove(insn);
+			insns.remove(next);
+			return true;
+		}
+		if (isLoadThis(insn) && next.getOpcode() == GETFIELD) {
+			String desc = ((FieldInsnNode) next).desc;
+			AbstractInsnNode pop = nextInBlock(next, targets);
+			if (pop != null && pop.getOpcode() == POP && !desc.equals("J") && !desc.equals("D")) {
+				insns.remove(insn);
+				insns.remove(next);
+				insns.remove(pop);
+				return true;
+			}
+		}
+		if (insn.getOpcode() == DUP && (next.getOpcode() == ISTORE || next.getOpcode() == ASTORE)) {
+			AbstractInsnNode pop = nextInBlock(next, targets);
+			if (pop != null && pop.getOpcode() == POP) {
+				insns.remove(insn);
+				insns.remove(pop);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static boolean collapseStoreLoad(InsnList insns, AbstractInsnNode insn, Set<LabelNode> targets) {
+		int op = insn.getOpcode();
+		if (op != ISTORE && op != ASTORE) {
+			return false;
+		}
+		AbstractInsnNode next = nextInBlock(insn, targets);
+		int load = (op == ISTORE) ? ILOAD : ALOAD;
+		if (next == null || next.getOpcode() != load || ((VarInsnNode) next).var != ((VarInsnNode) insn).var) {
+			return false;
+		}
+		insns.insertBefore(insn, new InsnNode(DUP));
+		insns.remove(next);
+		return true;
+	}
+
+	static boolean collapseFieldReload(InsnList insns, AbstractInsnNode insn, Set<LabelNode> targets) {
+		if (!isLoadThis(insn)) {
+			return false;
+		}
+		AbstractInsnNode swap = nextInBlock(insn, targets);
+		if (swap == null || swap.getOpcode() != SWAP) {
+			return false;
+		}
+		AbstractInsnNode put = nextInBlock(swap, targets);
+		if (put == null || put.getOpcode() != PUTFIELD) {
+			return false;
+		}
+		AbstractInsnNode loadThis = nextInBlock(put, targets);
+		if (loadThis == null || !isLoadThis(loadThis)) {
+			return false;
+		}
+		AbstractInsnNode get = nextInBlock(loadThis, targets);
+		if (get == null || get.getOpcode() != GETFIELD || !sameField((FieldInsnNode) put, (FieldInsnNode) get)) {
+			return false;
+		}
+		String desc = ((FieldInsnNode) put).desc;
+		if (desc.equals("J") || desc.equals("D")) {
+			return false;
+		}
+		insns.insertBefore(insn, new InsnNode(DUP));
+		insns.remove(loadThis);
+		insns.remove(get);
+		return true;
+	}
+
+	static boolean isLoadThis(AbstractInsnNode insn) {
+		return insn.getOpcode() == ALOAD && ((VarInsnNode) insn).var == 0;
+	}
+
+	static boolean sameField(FieldInsnNode f0, FieldInsnNode f1) {
+		return f0.owner.equals(f1.owner) && f0.name.equals(f1.name) && f0.desc.equals(f1.desc);
+	}
+
+	/**
+	 * Threads jumps whose target is a GOTO, removes jumps to the next
+	 * instruction and turns IFxx L; GOTO M; L: into IFnotxx M; L:.
+	 */
+	static boolean simplifyJump(InsnList insns, AbstractInsnNode insn, Set<LabelNode> targets) {
+		if (!(insn instanceof JumpInsnNode) || insn.getOpcode() == JSR) {
+			return false;
+		}
+		JumpInsnNode jump = (JumpInsnNode) insn;
+		LabelNode threaded = finalTarget(jump.label);
+		if (threaded != jump.label) {
+			jump.label = threaded;
+			return true;
+		}
+		if (fallsInto(jump, jump.label)) {
+			if (jump.getOpcode() != GOTO) {
+				boolean twoOperands = jump.getOpcode() >= IF_ICMPEQ && jump.getOpcode() <= IF_ACMPNE;
+				insns.insertBefore(jump, new InsnNode(twoOperands ? POP2 : POP));
+			}
+			insns.remove(jump);
+			return true;
+		}
+		if (jump.getOpcode() != GOTO) {
+			AbstractInsnNode next = nextInBlock(jump, targets);
+			if (next != null && next.getOpcode() == GOTO && fallsInto(next, jump.label)) {
+				jump.setOpcode(invert(jump.getOpcode()));
+				jump.label = ((JumpInsnNode) next).label;
+				insns.remove(next);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Follows a chain of GOTOs starting at label and returns the label
+	 * where it ends; chains that loop back on themselves end where the cycle closes.
+	 */
+	static LabelNode finalTarget(LabelNode label) {
+		Set<LabelNode> seen = new HashSet<LabelNode>();
+		LabelNode target = label;
+		while (seen.add(target)) {
+			AbstractInsnNode atTarget = firstAfter(target);
+			if (atTarget == null || atTarget.getOpcode() != GOTO) {
+				break;
+			}
+			target = ((JumpInsnNode) atTarget).label;
+		}
+		return target;
+	}
+
+	/**
+	 * Returns true if label immediately follows insn, with no instruction in between.
+	 */
+	static boolean fallsInto(AbstractInsnNode insn, LabelNode label) {
+		for (AbstractInsnNode n = insn.getNext(); n != null && n.getOpcode() < 0; n = n.getNext()) {
+			if (n == label) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static int invert(int opcode) {
+		switch (opcode) {
+		case IFEQ: return IFNE;
+		case IFNE: return IFEQ;
+		case IFLT: return IFGE;
+		case IFGE: return IFLT;
+		case IFGT: return IFLE;
+		case IFLE: return IFGT;
+		case IF_ICMPEQ: return IF_ICMPNE;
+		case IF_ICMPNE: return IF_ICMPEQ;
+		case IF_ICMPLT: return IF_ICMPGE;
+		case IF_ICMPGE: return IF_ICMPLT;
+		case IF_ICMPGT: return IF_ICMPLE;
+		case IF_ICMPLE: return IF_ICMPGT;
+		case IF_ACMPEQ: return IF_ACMPNE;
+		case IF_ACMPNE: return IF_ACMPEQ;
+		case IFNULL: return IFNONNULL;
+		case IFNONNULL: return IFNULL;
+		default: throw new IllegalArgumentException("not a conditional jump " + opcode);
+		}
+	}
+
+	/**
+	 * Removes the instructions between an unconditional transfer of control
+	 * and the next jump target, which can never execute.
+	 */
+	static boolean removeUnreachable(InsnList insns, AbstractInsnNode insn, Set<LabelNode> targets) {
+		int op = insn.getOpcode();
+		boolean unconditional = op == GOTO || op == ATHROW || (op >= IRETURN && op <= RETURN)
+				|| insn instanceof TableSwitchInsnNode || insn instanceof LookupSwitchInsnNode;
+		if (!unconditional) {
+			return false;
+		}
+		boolean changed = false;
+		AbstractInsnNode n = insn.getNext();
+		while (n != null && !(n instanceof LabelNode && targets.contains(n))) {
+			AbstractInsnNode next = n.getNext();
+			if (n.getOpcode() >= 0) {
+				insns.remove(n);
+				changed = true;
+			}
+			n = next;
+		}
+		return changed;
+	}
+}
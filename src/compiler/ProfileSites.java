@@ -0,0 +1,121 @@
+package compiler;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import compiler.AST.ASTNode;
+import compiler.AST.AssignmentStatement;
+import compiler.AST.BinaryChain;
+import compiler.AST.BinaryExpression;
+import compiler.AST.Block;
+import compiler.AST.Chain;
+import compiler.AST.ChainElem;
+import compiler.AST.Expression;
+import compiler.AST.FilterOpChain;
+import compiler.AST.FrameOpChain;
+import compiler.AST.IfStatement;
+import compiler.AST.ImageOpChain;
+import compiler.AST.ParallelStatement;
+import compiler.AST.Program;
+import compiler.AST.SleepStatement;
+import compiler.AST.Statement;
+import compiler.AST.Tuple;
+import compiler.AST.WhileStatement;
+
+import static compiler.AST.Type.TypeName.IMAGE;
+import static compiler.Scanner.Kind.KW_SCALE;
+
+/**
+ * Numbers the sites of a program that PLPRuntimeProfile records, in the
+ * order of the source, so that a class generated from a profile finds the
+ * counts of the class that recorded it.
+ *
+ * An if or while statement has two counters, site for the times the
+ * statement is run and site + 1 for the times its body is run. A call of
+ * an image or filter op, that is an image valued BinaryExpression or a
+ * FilterOpChain or scale at the right of a BinaryChain, has one site.
+ */
+public class ProfileSites {
+
+	final Map<ASTNode, Integer> sites = new IdentityHashMap<ASTNode, Integer>();
+	int size = 0;
+
+	public static ProfileSites number(Program program) {
+		ProfileSites sites = new ProfileSites();
+		sites.block(program.getB());
+		return sites;
+	}
+
+	/**
+	 * Returns the site of node, or null if it is not profiled.
+	 */
+	public Integer get(ASTNode node) {
+		return sites.get(node);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	void add(ASTNode node, int counters) {
+		sites.put(node, size);
+		size += counters;
+	}
+
+	void block(Block block) {
+		for (Statement statement : block.getStatements()) {
+			if (statement instanceof IfStatement) {
+				add(statement, 2);
+				expression(((IfStatement) statement).getE());
+				block(((IfStatement) statement).getB());
+			} else if (statement instanceof WhileStatement) {
+				add(statement, 2);
+				expression(((WhileStatement) statement).getE());
+				block(((WhileStatement) statement).getB());
+			} else if (statement instanceof ParallelStatement) {
+				block(((ParallelStatement) statement).getB());
+			} else if (statement instanceof AssignmentStatement) {
+				expression(((AssignmentStatement) statement).getE());
+			} else if (statement instanceof SleepStatement) {
+				expression(((SleepStatement) statement).getE());
+			} else if (statement instanceof Chain) {
+				chain((Chain) statement);
+			}
+		}
+	}
+
+	void expression(Expression e) {
+		if (e instanceof BinaryExpression) {
+			expression(((BinaryExpression) e).getE0());
+			expression(((BinaryExpression) e).getE1());
+			if (e.getTypeName() == IMAGE) {
+				add(e, 1);
+			}
+		}
+	}
+
+	void chain(Chain chain) {
+		if (!(chain instanceof BinaryChain)) {
+			return;
+		}
+		chain(((BinaryChain) chain).getE0());
+		ChainElem e1 = ((BinaryChain) chain).getE1();
+		if (e1 instanceof FilterOpChain) {
+			tuple(((FilterOpChain) e1).getArg());
+			add(e1, 1);
+		} else if (e1 instanceof ImageOpChain) {
+			tuple(((ImageOpChain) e1).getArg());
+			if (e1.getFirstToken().kind == KW_SCALE) {
+				add(e1, 1);
+			}
+		} else if (e1 instanceof FrameOpChain) {
+			tuple(((FrameOpChain) e1).getArg());
+		}
+	}
+
+	void tuple(Tuple tuple) {
+		for (Expression e : tuple.getExprList()) {
+			expression(e);
+		}
+	}
+}
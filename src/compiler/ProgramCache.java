@@ -0,0 +1,119 @@
+package compiler;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The programs loaded by Compiler.compile, keyed by the hash of their
+ * source and options. At most capacity programs are kept; the one used
+ * least recently is dropped first, after which its class can be unloaded
+ * once no instance of it is running.
+ */
+public class ProgramCache {
+
+	/**
+	 * A snapshot of the cache and of the class metadata of the JVM.
+	 */
+	public static class Metrics {
+		public final int size;
+		public final int capacity;
+		public final long hits;
+		public final long misses;
+		public final long evictions;
+		/** Classes currently loaded in the JVM, generated or not. */
+		public final int loadedClasses;
+		public final long unloadedClasses;
+		/** Bytes of metaspace in use, or -1 if the JVM has no metaspace pool. */
+		public final long metaspaceUsed;
+
+		Metrics(ProgramCache cache) {
+			size = cache.programs.size();
+			capacity = cache.capacity;
+			hits = cache.hits;
+			misses = cache.misses;
+			evictions = cache.evictions;
+			ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+			loadedClasses = classLoading.getLoadedClassCount();
+			unloadedClasses = classLoading.getUnloadedClassCount();
+			long used = -1;
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				if (pool.getName().equals("Metaspace")) {
+					used = pool.getUsage().getUsed();
+				}
+			}
+			metaspaceUsed = used;
+		}
+
+		@Override
+		public String toString() {
+			return "programs=" + size + "/" + capacity + " hits=" + hits + " misses=" + misses
+					+ " evictions=" + evictions + " loadedClasses=" + loadedClasses
+					+ " unloadedClasses=" + unloadedClasses + " metaspaceUsed=" + metaspaceUsed;
+		}
+	}
+
+	int capacity;
+	long hits, misses, evictions;
+
+	final LinkedHashMap<String, CompiledProgram> programs = new LinkedHashMap<String, CompiledProgram>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CompiledProgram> eldest) {
+			if (size() > capacity) {
+				evictions++;
+				return true;
+			}
+			return false;
+		}
+	};
+
+	public ProgramCache(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the program cached under key, or null.
+	 */
+	public synchronized CompiledProgram get(String key) {
+		CompiledProgram program = programs.get(key);
+		if (program == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return program;
+	}
+
+	/**
+	 * Caches program under key unless another thread got there first, and
+	 * returns the cached program.
+	 */
+	public synchronized CompiledProgram put(String key, CompiledProgram program) {
+		CompiledProgram cached = programs.get(key);
+		if (cached != null) {
+			return cached;
+		}
+		programs.put(key, program);
+		return program;
+	}
+
+	public synchronized void setCapacity(int capacity) {
+		this.capacity = capacity;
+		while (programs.size() > capacity) {
+			programs.remove(programs.keySet().iterator().next());
+			evictions++;
+		}
+	}
+
+	public synchronized void clear() {
+		programs.clear();
+	}
+
+	public synchronized Metrics getMetrics() {
+		return new Metrics(this);
+	}
+}
@@ -0,0 +1,190 @@
+package compiler;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs programs, each on a thread of its own, so that a service can run
+ * many at once. On Java 21 and later the threads are virtual threads: a
+ * program that sleeps, waits for a file, url or frame update, or joins its
+ * tasks unmounts from its carrier, and thousands of sleeping programs
+ * share a few cores. The runtime waits for frame updates with a parked
+ * thread rather than in a monitor, so that it does not pin the carrier.
+ * Virtual threads are found reflectively, so that the compiler still runs
+ * on older JVMs, where the programs run on daemon platform threads.
+ *
+ * At most maxRunning programs run at once, and at most maxWaiting wait
+ * for their turn; submit rejects further programs. A waiting program is
+ * also held back while the heap is fuller than maxHeapFraction and another
+ * program is running, since most of the heap the programs use is their
+ * images, which are released when they finish.
+ */
+public class ProgramExecutor {
+
+	static final ThreadFactory virtualThreads = virtualThreadFactory();
+	/** How long a program held back for memory waits before it looks at the heap again. */
+	static final long HEAP_POLL_MILLIS = 100;
+
+	final int maxRunning;
+	final int maxWaiting;
+	final double maxHeapFraction;
+	final ThreadFactory threads;
+	final Semaphore permits;
+	/** The programs submitted that have not finished. */
+	final AtomicInteger active = new AtomicInteger();
+	final AtomicInteger running = new AtomicInteger();
+	final AtomicInteger platformThreads = new AtomicInteger();
+	final ReentrantLock lock = new ReentrantLock();
+	final Condition finished = lock.newCondition();
+	volatile boolean shutdown = false;
+
+	/**
+	 * @param maxHeapFraction
+	 *            the fraction of the maximum heap size above which no
+	 *            further program starts while another is running, or 1 for
+	 *            no limit
+	 */
+	public ProgramExecutor(int maxRunning, int maxWaiting, double maxHeapFraction) {
+		if (maxRunning < 1 || maxWaiting < 0 || maxHeapFraction <= 0) {
+			throw new IllegalArgumentException("maxRunning=" + maxRunning + " maxWaiting=" + maxWaiting
+					+ " maxHeapFraction=" + maxHeapFraction);
+		}
+		this.maxRunning = maxRunning;
+		this.maxWaiting = maxWaiting;
+		this.maxHeapFraction = maxHeapFraction;
+		this.permits = new Semaphore(maxRunning, true);
+		this.threads = virtualThreads != null ? virtualThreads : new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "plp-program-" + platformThreads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Returns a factory of virtual threads, or null before Java 21.
+	 */
+	static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "plp-program-", 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	public static boolean hasVirtualThreads() {
+		return virtualThreads != null;
+	}
+
+	/**
+	 * Starts a new instance of program with the given arguments.
+	 */
+	public Future<?> submit(CompiledProgram program, String[] args) {
+		return submit(program.newInstance(args));
+	}
+
+	/**
+	 * Starts a new instance of program with the given arguments, which runs
+	 * in context, see PLPRuntimeContext.
+	 */
+	public Future<?> submit(CompiledProgram program, String[] args, PLPRuntimeContext context) {
+		return submit(program.newInstance(args, context));
+	}
+
+	/**
+	 * Starts program on a thread of its own once there is room for it, and
+	 * returns its Future, whose get throws what run threw.
+	 *
+	 * @throws RejectedExecutionException
+	 *             if maxWaiting programs are waiting already, or the
+	 *             executor is shut down
+	 */
+	public Future<?> submit(final Runnable program) {
+		if (shutdown) {
+			throw new RejectedExecutionException("the executor is shut down");
+		}
+		if (active.incrementAndGet() > maxRunning + maxWaiting) {
+			active.decrementAndGet();
+			throw new RejectedExecutionException(maxWaiting + " programs are waiting already");
+		}
+		final FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					admit();
+				} catch (InterruptedException e) {
+					active.decrementAndGet();
+					throw new RejectedExecutionException("interrupted while waiting to start", e);
+				}
+				try {
+					program.run();
+				} finally {
+					leave();
+				}
+			}
+		}, null);
+		threads.newThread(task).start();
+		return task;
+	}
+
+	void admit() throws InterruptedException {
+		permits.acquire();
+		lock.lock();
+		try {
+			while (running.get() > 0 && heapFraction() > maxHeapFraction) {
+				finished.await(HEAP_POLL_MILLIS, TimeUnit.MILLISECONDS);
+			}
+			running.incrementAndGet();
+		} catch (InterruptedException e) {
+			permits.release();
+			throw e;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void leave() {
+		lock.lock();
+		try {
+			running.decrementAndGet();
+			finished.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		permits.release();
+		active.decrementAndGet();
+	}
+
+	static double heapFraction() {
+		Runtime runtime = Runtime.getRuntime();
+		return (double) (runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory();
+	}
+
+	/**
+	 * Rejects programs submitted from now on. Programs already submitted
+	 * still run.
+	 */
+	public void shutdown() {
+		shutdown = true;
+	}
+
+	public int getRunning() {
+		return running.get();
+	}
+
+	public int getWaiting() {
+		return active.get() - running.get();
+	}
+}
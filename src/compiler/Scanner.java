@@ -6,7 +6,7 @@ import compiler.Scanner.Kind;
 
 public class Scanner {
 
-    static int line_pos = 0, line_start = 0;
+    int line_pos = 0, line_start = 0;
 
     /**
      * enum Kind
@@ -23,7 +23,7 @@ public class Scanner {
             KW_SCREENHEIGHT("screenheight"), KW_SCREENWIDTH("screenwidth"),
             OP_WIDTH("width"), OP_HEIGHT("height"), KW_XLOC("xloc"), KW_YLOC("yloc"),
             KW_HIDE("hide"), KW_SHOW("show"), KW_MOVE("move"), OP_SLEEP("sleep"),
-            KW_SCALE("scale"), EOF("eof");
+            KW_SCALE("scale"), KW_PARALLEL("parallel"), EOF("eof");
 
         Kind(String text) {
             this.text = text;
@@ -440,6 +440,10 @@ public class Scanner {
                                     tokens.add(new Token(Kind.KW_IF, startpos, pos - startpos));
                                     state = State.START;
                                     break;
+                                case "parallel":
+                                    tokens.add(new Token(Kind.KW_PARALLEL, startpos, pos - startpos));
+                                    state = State.START;
+                                    break;
                                 case "true":
                                     tokens.add(new Token(Kind.KW_TRUE, startpos, pos - startpos));
                                     state = State.START;
@@ -3,7 +3,10 @@ package compiler;
 import compiler.AST.*;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 import compiler.AST.ASTVisitor;
 import compiler.AST.BinaryChain;
@@ -23,6 +26,7 @@ import compiler.AST.IdentLValue;
 import compiler.AST.IfStatement;
 import compiler.AST.ImageOpChain;
 import compiler.AST.IntLitExpression;
+import compiler.AST.ParallelStatement;
 import compiler.AST.ParamDec;
 import compiler.AST.Program;
 import compiler.AST.SleepStatement;
@@ -49,6 +53,11 @@ public class TypeCheckVisitor implements ASTVisitor {
 	}
 
 	SymbolTable symtab = new SymbolTable();
+	/** The variables that the statement of a parallel block being checked reads and writes, or null. */
+	Set<Dec> reads = null;
+	Set<Dec> writes = null;
+	/** Set if that statement applies a filter in place. */
+	boolean filtersInPlace = false;
 
 	@Override
 	public Object visitBinaryChain(BinaryChain binaryChain, Object arg) throws Exception {
@@ -58,6 +67,14 @@ public class TypeCheckVisitor implements ASTVisitor {
 		chain1.visit(this,null);
 		chainElm1.visit(this,null);
 		Token t = binaryChain.getArrow();
+		if(chainElm1 instanceof IdentChain && writes != null){
+			writes.add(((IdentChain) chainElm1).getDec());
+		}
+		if(t.isKind(BARARROW) && writes != null){
+			// the filter writes the pixels of the image on its left
+			addImages(chain1, writes);
+			filtersInPlace = true;
+		}
 		TypeName chain = chain1.getTypeName();
 		TypeName chainElm = chainElm1.getTypeName();
 		if(chain == URL && chainElm == IMAGE && t.isKind(ARROW)){
@@ -238,6 +255,9 @@ public class TypeCheckVisitor implements ASTVisitor {
 		}
 		identChain.setDec(dec);
 		identChain.setTypeName(dec.getTypeName());
+		if(reads != null){
+			reads.add(dec);
+		}
 		return identChain.getTypeName();
 	}
 
@@ -249,6 +269,9 @@ public class TypeCheckVisitor implements ASTVisitor {
 		}
 		identExpression.setTypeName(dec.getTypeName());
 		identExpression.setDec(dec);
+		if(reads != null){
+			reads.add(dec);
+		}
 		return identExpression.getTypeName();
 	}
 
@@ -287,6 +310,84 @@ public class TypeCheckVisitor implements ASTVisitor {
 		return whileStatement;
 	}
 
+	/**
+	 * The statements of a parallel block run concurrently, so a variable
+	 * that one of them writes may not be used by another. A filter applied
+	 * in place writes the pixels of its image, which a chain may have stored
+	 * in any image variable, so a statement that applies one may not run
+	 * with another that uses an image.
+	 */
+	@Override
+	public Object visitParallelStatement(ParallelStatement parallelStatement, Object arg) throws Exception {
+		Set<Dec> outerReads = reads;
+		Set<Dec> outerWrites = writes;
+		boolean outerFiltersInPlace = filtersInPlace;
+		Set<Dec> allReads = newDecSet();
+		Set<Dec> allWrites = newDecSet();
+		boolean anyImages = false;
+		boolean anyFiltersInPlace = false;
+		Block block = parallelStatement.getB();
+		symtab.enterScope();
+		for(Dec dec : block.getDecs()){
+			dec.visit(this, null);
+		}
+		for(Statement st : block.getStatements()){
+			reads = newDecSet();
+			writes = newDecSet();
+			filtersInPlace = false;
+			st.visit(this, null);
+			boolean images = usesImages(reads) || usesImages(writes);
+			if(!Collections.disjoint(writes, allReads) || !Collections.disjoint(writes, allWrites) || !Collections.disjoint(reads, allWrites)
+					|| filtersInPlace && anyImages || images && anyFiltersInPlace){
+				throw new TypeCheckException("statements of a parallel block use a variable that one of them writes");
+			}
+			allReads.addAll(reads);
+			allWrites.addAll(writes);
+			anyImages |= images;
+			anyFiltersInPlace |= filtersInPlace;
+		}
+		symtab.leaveScope();
+		reads = outerReads;
+		writes = outerWrites;
+		filtersInPlace = outerFiltersInPlace || anyFiltersInPlace;
+		if(reads != null){
+			reads.addAll(allReads);
+			writes.addAll(allWrites);
+		}
+		return parallelStatement;
+	}
+
+	/**
+	 * Adds the image variables of chain to decs.
+	 */
+	static void addImages(Chain chain, Set<Dec> decs){
+		if(chain instanceof IdentChain){
+			Dec dec = ((IdentChain) chain).getDec();
+			if(dec.getTypeName() == IMAGE){
+				decs.add(dec);
+			}
+		}
+		else if(chain instanceof BinaryChain){
+			addImages(((BinaryChain) chain).getE0(), decs);
+			if(((BinaryChain) chain).getE1() instanceof IdentChain){
+				addImages((IdentChain) ((BinaryChain) chain).getE1(), decs);
+			}
+		}
+	}
+
+	static boolean usesImages(Set<Dec> decs){
+		for(Dec dec : decs){
+			if(dec.getTypeName() == IMAGE){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static Set<Dec> newDecSet(){
+		return Collections.newSetFromMap(new IdentityHashMap<Dec, Boolean>());
+	}
+
 	@Override
 	public Object visitDec(Dec declaration, Object arg) throws Exception {
 		Token firstToken = declaration.getType();
@@ -332,6 +433,9 @@ public class TypeCheckVisitor implements ASTVisitor {
 			throw new TypeCheckException("declaration is null");
 		}
 		identX.setDec(dec);
+		if(writes != null){
+			writes.add(dec);
+		}
 		return identX.getDec().getTypeName();
 	}
 